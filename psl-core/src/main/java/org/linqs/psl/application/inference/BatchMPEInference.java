@@ -0,0 +1,202 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.application.inference;
+
+import org.linqs.psl.application.ModelApplication;
+import org.linqs.psl.application.groundrulestore.GroundRuleStore;
+import org.linqs.psl.application.util.Grounding;
+import org.linqs.psl.config.Config;
+import org.linqs.psl.database.Database;
+import org.linqs.psl.database.atom.PersistedAtomManager;
+import org.linqs.psl.model.Model;
+import org.linqs.psl.reasoner.admm.ADMMReasoner;
+import org.linqs.psl.reasoner.admm.term.ADMMTermGenerator;
+import org.linqs.psl.reasoner.admm.term.ADMMTermStore;
+import org.linqs.psl.reasoner.admm.term.TermComponents;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MPE inference (see MPEInference) over many small independent problems that share a model.
+ * Each problem is its own Database (with its own RandomVariableAtoms persisted in it).
+ *
+ * Instead of paying for a full inference application per problem, every problem is grounded
+ * and then generated into a single ADMMTermStore (one after another, so each problem is a contiguous
+ * range of terms and variables), and all the problems are solved together with ADMMReasoner.optimizeBatch(),
+ * which optimizes each problem on a single thread and runs as many problems at a time as there are threads.
+ *
+ * Always uses ADMM (regardless of InferenceApplication.REASONER_KEY and friends).
+ * The problems do not share any atoms, even if their databases have the same atoms:
+ * the term store tells atoms apart by identity, not by predicate and arguments.
+ */
+public class BatchMPEInference implements ModelApplication {
+    private static final Logger log = LoggerFactory.getLogger(BatchMPEInference.class);
+
+    private Model model;
+    private List<Database> dbs;
+
+    private ADMMReasoner reasoner;
+    private ADMMTermStore termStore;
+    private ADMMTermGenerator termGenerator;
+    private List<PersistedAtomManager> atomManagers;
+
+    // Where each problem lives in the term store.
+    private TermComponents problems;
+
+    public BatchMPEInference(Model model, List<Database> dbs) {
+        if (dbs.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one problem (database) for batch inference.");
+        }
+
+        // Reordering the whole store would mix the problems together.
+        if (Config.getBoolean(ADMMTermGenerator.REORDER_KEY, ADMMTermGenerator.REORDER_DEFAULT)) {
+            throw new IllegalArgumentException("Property " + ADMMTermGenerator.REORDER_KEY + " cannot be used with batch inference.");
+        }
+
+        this.model = model;
+        this.dbs = new ArrayList<Database>(dbs);
+
+        initialize();
+    }
+
+    /**
+     * Ground every problem and generate all their terms into the same store.
+     */
+    private void initialize() {
+        reasoner = new ADMMReasoner();
+        termStore = new ADMMTermStore();
+        termGenerator = new ADMMTermGenerator();
+        atomManagers = new ArrayList<PersistedAtomManager>(dbs.size());
+
+        int[] termOffsets = new int[dbs.size() + 1];
+        int[] variableOffsets = new int[dbs.size() + 1];
+        int numAtoms = 0;
+
+        log.info("Grounding out {} problems.", dbs.size());
+
+        for (int i = 0; i < dbs.size(); i++) {
+            PersistedAtomManager atomManager = new PersistedAtomManager(dbs.get(i));
+            atomManagers.add(atomManager);
+
+            GroundRuleStore groundRuleStore = null;
+            try {
+                groundRuleStore = (GroundRuleStore)Config.getNewObject(
+                        InferenceApplication.GROUND_RULE_STORE_KEY, InferenceApplication.GROUND_RULE_STORE_DEFAULT);
+            } catch (Exception ex) {
+                // The caller couldn't handle these exception anyways, convert them to runtime ones.
+                throw new RuntimeException("Failed to prepare storage for batch inference.", ex);
+            }
+
+            Grounding.groundAll(model, atomManager, groundRuleStore);
+
+            // Every problem's atoms are new variables in the shared store.
+            // Their indexes collide with the other problems', so most of them are registered by identity.
+            numAtoms += atomManager.getCachedRVACount();
+            int termCount = termGenerator.generateTerms(groundRuleStore, termStore, numAtoms);
+
+            // The terms keep their ground rules, so the store itself is not needed any more.
+            groundRuleStore.close();
+
+            termOffsets[i + 1] = termStore.size();
+            variableOffsets[i + 1] = termStore.getNumGlobalVariables();
+
+            log.trace("Problem {} has {} terms and {} variables.", i, termCount, variableOffsets[i + 1] - variableOffsets[i]);
+        }
+
+        problems = new TermComponents(termOffsets, variableOffsets);
+
+        log.debug("Generated {} terms over {} variables for {} problems.",
+                termStore.size(), termStore.getNumGlobalVariables(), dbs.size());
+    }
+
+    /**
+     * Infer every problem and commit each problem's RandomVariableAtoms back to its Database.
+     */
+    public void inference() {
+        log.info("Beginning batch inference.");
+        reasoner.optimizeBatch(termStore, problems);
+        log.info("Batch inference complete. Writing results to Databases.");
+
+        for (PersistedAtomManager atomManager : atomManagers) {
+            atomManager.commitPersistedAtoms();
+        }
+
+        log.info("Results committed to databases.");
+    }
+
+    public int getNumProblems() {
+        return dbs.size();
+    }
+
+    /**
+     * Get the number of iterations the last inference took on a problem.
+     */
+    public int getIterationCount(int problem) {
+        return reasoner.getIterationCount(problem);
+    }
+
+    /**
+     * Get the objective of a problem after the last inference.
+     */
+    public float getObjective(int problem) {
+        return reasoner.getObjective(problem);
+    }
+
+    /**
+     * Whether the last inference found a solution that satisfies all of a problem's constraints.
+     */
+    public boolean isFeasible(int problem) {
+        return reasoner.getViolatedConstraints(problem) == 0;
+    }
+
+    public ADMMReasoner getReasoner() {
+        return reasoner;
+    }
+
+    public ADMMTermStore getTermStore() {
+        return termStore;
+    }
+
+    /**
+     * Get where each problem lives in the term store.
+     */
+    public TermComponents getProblems() {
+        return problems;
+    }
+
+    public PersistedAtomManager getAtomManager(int problem) {
+        return atomManagers.get(problem);
+    }
+
+    @Override
+    public void close() {
+        termStore.close();
+        reasoner.close();
+
+        termStore = null;
+        reasoner = null;
+        atomManagers = null;
+
+        model = null;
+        dbs = null;
+    }
+}
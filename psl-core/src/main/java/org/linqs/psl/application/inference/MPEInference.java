@@ -23,6 +23,7 @@ import org.linqs.psl.application.util.Grounding;
 import org.linqs.psl.database.Database;
 import org.linqs.psl.database.atom.PersistedAtomManager;
 import org.linqs.psl.model.Model;
+import org.linqs.psl.reasoner.admm.ADMMReasoner;
 import org.linqs.psl.reasoner.admm.term.ADMMTermStore;
 
 import org.slf4j.Logger;
@@ -39,8 +40,21 @@ import org.slf4j.LoggerFactory;
 public class MPEInference extends InferenceApplication {
     private static final Logger log = LoggerFactory.getLogger(MPEInference.class);
 
+    // If the last inference stopped because the reasoner ran out of time.
+    private boolean deadlineReached;
+
     public MPEInference(Model model, Database db) {
         super(model, db);
+        deadlineReached = false;
+    }
+
+    /**
+     * Whether the last call to inference() stopped because the reasoner hit its time limit
+     * (see ADMMReasoner.TIME_LIMIT_KEY), in which case the results are the best ones found before the limit.
+     * Always false for reasoners without a time limit.
+     */
+    public boolean isDeadlineReached() {
+        return deadlineReached;
     }
 
     @Override
@@ -65,6 +79,12 @@ public class MPEInference extends InferenceApplication {
     public void inference() {
         log.info("Beginning inference.");
         reasoner.optimize(termStore);
+
+        deadlineReached = (reasoner instanceof ADMMReasoner) && ((ADMMReasoner)reasoner).isDeadlineReached();
+        if (deadlineReached) {
+            log.warn("Inference hit the reasoner's time limit, results may not be converged.");
+        }
+
         log.info("Inference complete. Writing results to Database.");
 
         // Commits the RandomVariableAtoms back to the Database,
@@ -151,6 +151,12 @@ public abstract class WeightLearningApplication implements ModelApplication {
     protected boolean inMPEState;
     protected boolean inLatentMPEState;
 
+    /**
+     * True if the terms were last generated when no rule had a negative weight.
+     * Negative weights change which terms get generated, so terms may only be reused while this holds.
+     */
+    private boolean termsGeneratedNonNegative;
+
     public WeightLearningApplication(List<Rule> rules, Database rvDB, Database observedDB,
             boolean supportsLatentVariables) {
         this.rvDB = rvDB;
@@ -216,7 +222,7 @@ public abstract class WeightLearningApplication implements ModelApplication {
             int iterations = (int)Math.ceil(maxIterations * budget);
             ((ADMMReasoner)reasoner).setMaxIter((int)Math.max(MIN_ADMM_STEPS, iterations));
 
-            if (termStore instanceof ADMMTermStore) {
+            if (termStore instanceof ADMMTermStore && !isWarmStart()) {
                 ((ADMMTermStore)termStore).resetLocalVairables();
             }
         }
@@ -370,17 +376,50 @@ public abstract class WeightLearningApplication implements ModelApplication {
             return;
         }
 
-        // TEST
-        // termGenerator.updateWeights(groundRuleStore, termStore);
-
-        termStore.clear();
-        int count = termGenerator.generateTerms(groundRuleStore, termStore);
+        if (canReuseTerms()) {
+            // Keep the terms (and the reasoner's state on them) and just pick up the new weights.
+            termGenerator.updateWeights(groundRuleStore, termStore);
+        } else {
+            termStore.clear();
+            termGenerator.generateTerms(groundRuleStore, termStore);
+            termsGeneratedNonNegative = !hasNegativeWeights();
+        }
 
         reasoner.optimize(termStore);
 
         inMPEState = true;
     }
 
+    /**
+     * Terms are only kept between MPE computations when the reasoner wants to warm start from them
+     * and no weight has crossed into (or out of) the negatives since they were generated.
+     */
+    private boolean canReuseTerms() {
+        if (!(reasoner instanceof ADMMReasoner) || !((ADMMReasoner)reasoner).getWarmStart()) {
+            return false;
+        }
+
+        return termsGeneratedNonNegative && !hasNegativeWeights();
+    }
+
+    private boolean hasNegativeWeights() {
+        for (WeightedRule rule : mutableRules) {
+            if (rule.getWeight() < 0.0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the reasoner will warm start from its previous state.
+     * If so, callers should not reset the state of the term store between optimizations.
+     */
+    protected boolean isWarmStart() {
+        return reasoner instanceof ADMMReasoner && ((ADMMReasoner)reasoner).getWarmStart();
+    }
+
     @SuppressWarnings("unchecked")
     protected void computeLatentMPEState() {
         if (inLatentMPEState) {
@@ -96,15 +96,8 @@ public class PairedDualLearner extends ExpectationMaximization {
             expectedIncompatibility[i] = 0.0;
         }
 
-        ADMMReasoner admmReasoner = (ADMMReasoner)reasoner;
-        float[] consensusBuffer = new float[((ADMMTermStore)termStore).getNumGlobalVariables()];
-
-        // Compute the dual incompatbility for each ground rule.
-        for (int i = 0; i < mutableRules.size(); i++) {
-            for (GroundRule groundRule : groundRuleStore.getGroundRules(mutableRules.get(i))) {
-                expectedIncompatibility[i] += admmReasoner.getDualIncompatibility(groundRule, (ADMMTermStore)termStore, consensusBuffer);
-            }
-        }
+        // Compute the dual incompatbility for each ground rule (in a single pass).
+        ((ADMMReasoner)reasoner).getDualIncompatibilities(mutableRules, groundRuleStore, (ADMMTermStore)termStore, expectedIncompatibility);
     }
 
     @Override
@@ -117,15 +110,8 @@ public class PairedDualLearner extends ExpectationMaximization {
             observedIncompatibility[i] = 0.0;
         }
 
-        ADMMReasoner admmReasoner = (ADMMReasoner)reasoner;
-        float[] consensusBuffer = new float[((ADMMTermStore)latentTermStore).getNumGlobalVariables()];
-
-        // Computes the observed incompatibilities.
-        for (int i = 0; i < mutableRules.size(); i++) {
-            for (GroundRule groundRule : latentGroundRuleStore.getGroundRules(mutableRules.get(i))) {
-                observedIncompatibility[i] += admmReasoner.getDualIncompatibility(groundRule, (ADMMTermStore)latentTermStore, consensusBuffer);
-            }
-        }
+        // Computes the observed incompatibilities (in a single pass).
+        ((ADMMReasoner)reasoner).getDualIncompatibilities(mutableRules, latentGroundRuleStore, (ADMMTermStore)latentTermStore, observedIncompatibility);
     }
 
     @Override
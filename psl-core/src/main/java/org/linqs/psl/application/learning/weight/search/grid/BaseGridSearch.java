@@ -153,7 +153,7 @@ public abstract class BaseGridSearch extends WeightLearningApplication {
         // Reset the RVAs to default values.
         setDefaultRandomVariables();
 
-        if (termStore instanceof ADMMTermStore) {
+        if (termStore instanceof ADMMTermStore && !isWarmStart()) {
             ((ADMMTermStore)termStore).resetLocalVairables();
         }
 
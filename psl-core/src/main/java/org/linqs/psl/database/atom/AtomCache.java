@@ -48,9 +48,13 @@ public class AtomCache {
 
     protected final Map<QueryAtom, GroundAtom> cache;
 
-    // The number of random variable atoms that have been instantiated.
+    // The number of random variable atoms that are currently cached.
     private int rvaCount;
 
+    // The index to give the next random variable atom (see RandomVariableAtom.getIndex()).
+    // Never reused, even if an atom is removed.
+    private int nextRVAIndex;
+
     /**
      * Constructs a new AtomCache for a Database.
      *
@@ -60,6 +64,7 @@ public class AtomCache {
         this.db = db;
         this.cache = new HashMap<QueryAtom, GroundAtom>();
         this.rvaCount = 0;
+        this.nextRVAIndex = 0;
     }
 
     /**
@@ -194,7 +199,7 @@ public class AtomCache {
             return (RandomVariableAtom)cache.get(key);
         }
 
-        RandomVariableAtom atom = new RandomVariableAtom(predicate, args, value);
+        RandomVariableAtom atom = new RandomVariableAtom(predicate, args, value, nextRVAIndex++);
         cache.put(key, atom);
         rvaCount++;
 
@@ -44,13 +44,26 @@ public class RandomVariableAtom extends GroundAtom {
      */
     private boolean isAccessException;
 
+    /**
+     * A dense id for this atom, assigned once by the AtomCache that created it.
+     * Ids are unique among the atoms of a single Database (but not across Databases),
+     * so consumers can use them to index plain arrays instead of hashing atoms.
+     * -1 if the atom was not given an id.
+     */
+    private final int index;
+
     /**
      * Instantiation of GrondAtoms should typically be left to the Database so it can maintain a cache.
      */
     public RandomVariableAtom(StandardPredicate p, Constant[] args, float value) {
+        this(p, args, value, -1);
+    }
+
+    public RandomVariableAtom(StandardPredicate p, Constant[] args, float value, int index) {
         super(p, args, value);
         isPersisted = false;
         isAccessException = false;
+        this.index = index;
     }
 
     @Override
@@ -85,4 +98,11 @@ public class RandomVariableAtom extends GroundAtom {
     public boolean getAccessException() {
         return isAccessException;
     }
+
+    /**
+     * Get the dense id of this atom (see the index field), or -1 if it does not have one.
+     */
+    public int getIndex() {
+        return index;
+    }
 }
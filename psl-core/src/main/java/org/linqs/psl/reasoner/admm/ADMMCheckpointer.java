@@ -0,0 +1,312 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm;
+
+import org.linqs.psl.reasoner.admm.term.CanonicalOrder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary checkpoints of an ADMM optimization:
+ * the consensus values, the local variables, and the lagrange multipliers,
+ * along with the iteration and step size they were taken at.
+ * Values are saved in the term store's canonical order (see ADMMTermStore.getCanonicalOrder()),
+ * so a checkpoint can be loaded back into a store that has the same problem with its terms in a different order.
+ * Each checkpoint is keyed by the fingerprint of that order and is only loaded back into a store with the same fingerprint.
+ *
+ * A checkpoint is copied into a buffer on the calling thread (which must not be changing the values at the time)
+ * and then written to a temporary file and moved into place on a background thread,
+ * so the file is always either the previous or the new complete checkpoint.
+ * The caller never waits on I/O: if the previous write has not finished yet,
+ * the new checkpoint is written right after it (replacing any other checkpoint that was waiting).
+ * Call awaitWrite() (or load()/delete()) to be sure that the last checkpoint is on disk.
+ */
+public class ADMMCheckpointer {
+    private static final Logger log = LoggerFactory.getLogger(ADMMCheckpointer.class);
+
+    private static final int MAGIC = 0x50534C43;
+    private static final int FORMAT_VERSION = 2;
+
+    // magic, version, fingerprint, iteration, step size, number of global variables, number of local variables.
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 4;
+
+    private final Path path;
+    private final Path tempPath;
+
+    // Two buffers, so a checkpoint can be taken while the other one is being written.
+    private final ByteBuffer[] buffers;
+
+    // Guarded by this: the buffer the writer is working on, the one it will write next, and the writer itself.
+    private ByteBuffer writing;
+    private ByteBuffer pending;
+    private Thread writer;
+
+    // The iteration and step size of the last loaded checkpoint.
+    private int iteration;
+    private float stepSize;
+
+    public ADMMCheckpointer(String path) {
+        this.path = Paths.get(path);
+        this.tempPath = Paths.get(path + ".tmp");
+
+        buffers = new ByteBuffer[2];
+        writing = null;
+        pending = null;
+        writer = null;
+        iteration = -1;
+        stepSize = 0.0f;
+    }
+
+    public String getPath() {
+        return path.toString();
+    }
+
+    /**
+     * Snapshot the state and write it out in the background.
+     * Only the consensus values and the local values and lagranges covered by the order are saved.
+     * @return false if the snapshot replaced an earlier one that was still waiting to be written.
+     */
+    public synchronized boolean checkpoint(CanonicalOrder order, int iteration, float stepSize,
+            float[] consensusValues, float[] localValues, float[] localLagranges) {
+        int numGlobalVariables = order.getNumVariables();
+        int numLocalVariables = order.getNumLocalVariables();
+
+        boolean replaced = (pending != null);
+
+        // Never touch the buffer that is being written.
+        int bufferIndex = (writing != null && writing == buffers[0]) ? 1 : 0;
+
+        int size = HEADER_SIZE + 4 * (numGlobalVariables + 2 * numLocalVariables);
+        if (buffers[bufferIndex] == null || buffers[bufferIndex].capacity() < size) {
+            buffers[bufferIndex] = ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = buffers[bufferIndex];
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(order.getFingerprint());
+        buffer.putInt(iteration);
+        buffer.putFloat(stepSize);
+        buffer.putInt(numGlobalVariables);
+        buffer.putInt(numLocalVariables);
+
+        for (int i = 0; i < numGlobalVariables; i++) {
+            buffer.putFloat(consensusValues[order.getVariable(i)]);
+        }
+
+        for (int i = 0; i < numLocalVariables; i++) {
+            buffer.putFloat(localValues[order.getLocalVariable(i)]);
+        }
+
+        for (int i = 0; i < numLocalVariables; i++) {
+            buffer.putFloat(localLagranges[order.getLocalVariable(i)]);
+        }
+
+        buffer.flip();
+
+        pending = buffer;
+        if (writer == null) {
+            writer = new Thread("ADMM-checkpoint") {
+                @Override
+                public void run() {
+                    writeAll();
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        return !replaced;
+    }
+
+    /**
+     * Load the checkpoint (if there is one for this order's fingerprint) into the given arrays.
+     * On success, the checkpoint's iteration and step size are available from getIteration() and getStepSize().
+     * @return true if a matching checkpoint was loaded.
+     */
+    public boolean load(CanonicalOrder order, float[] consensusValues, float[] localValues, float[] localLagranges) {
+        int numGlobalVariables = order.getNumVariables();
+        int numLocalVariables = order.getNumLocalVariables();
+
+        awaitWrite();
+
+        if (!Files.exists(path)) {
+            return false;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(channel, header);
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                log.warn("Ignoring {}, it is not an ADMM checkpoint (or from an unsupported version).", path);
+                return false;
+            }
+
+            if (header.getLong() != order.getFingerprint()) {
+                log.info("Ignoring checkpoint {}, it is for a different problem.", path);
+                return false;
+            }
+
+            int savedIteration = header.getInt();
+            float savedStepSize = header.getFloat();
+
+            int savedGlobals = header.getInt();
+            int savedLocals = header.getInt();
+            if (savedGlobals != numGlobalVariables || savedLocals != numLocalVariables) {
+                log.warn("Ignoring checkpoint {}, it has {} global and {} local variables (expected {} and {}).",
+                        path, savedGlobals, savedLocals, numGlobalVariables, numLocalVariables);
+                return false;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(4 * (numGlobalVariables + 2 * numLocalVariables));
+            readFully(channel, body);
+            body.flip();
+
+            for (int i = 0; i < numGlobalVariables; i++) {
+                consensusValues[order.getVariable(i)] = body.getFloat();
+            }
+
+            for (int i = 0; i < numLocalVariables; i++) {
+                localValues[order.getLocalVariable(i)] = body.getFloat();
+            }
+
+            for (int i = 0; i < numLocalVariables; i++) {
+                localLagranges[order.getLocalVariable(i)] = body.getFloat();
+            }
+
+            iteration = savedIteration;
+            stepSize = savedStepSize;
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to read checkpoint from " + path + ".", ex);
+        }
+
+        return true;
+    }
+
+    /**
+     * The iteration of the last loaded checkpoint.
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * The step size of the last loaded checkpoint.
+     */
+    public float getStepSize() {
+        return stepSize;
+    }
+
+    /**
+     * Drop any checkpoint that is waiting to be written, wait for the current write, and remove the checkpoint.
+     */
+    public void delete() {
+        synchronized (this) {
+            pending = null;
+        }
+        awaitWrite();
+
+        try {
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(tempPath);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to delete checkpoint " + path + ".", ex);
+        }
+    }
+
+    /**
+     * Wait for every checkpoint taken so far to be written.
+     */
+    public void awaitWrite() {
+        Thread toJoin = null;
+        synchronized (this) {
+            toJoin = writer;
+        }
+
+        if (toJoin == null) {
+            return;
+        }
+
+        try {
+            toJoin.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("Interrupted waiting for checkpoint to be written.", ex);
+        }
+    }
+
+    /**
+     * The body of the writer thread: write checkpoints until none are waiting.
+     */
+    private void writeAll() {
+        while (true) {
+            ByteBuffer data = null;
+            synchronized (this) {
+                data = pending;
+                pending = null;
+                writing = data;
+
+                if (data == null) {
+                    writer = null;
+                    return;
+                }
+            }
+
+            // The iteration is right after the magic, version, and fingerprint.
+            int checkpointIteration = data.getInt(4 + 4 + 8);
+            try {
+                write(data);
+                log.debug("Wrote checkpoint for iteration {} to {}.", checkpointIteration, path);
+            } catch (IOException ex) {
+                log.warn("Failed to write checkpoint to " + path + ".", ex);
+            }
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        try (FileChannel channel = FileChannel.open(tempPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (channel.read(data) < 0) {
+                throw new IOException("Unexpected end of checkpoint.");
+            }
+        }
+    }
+}
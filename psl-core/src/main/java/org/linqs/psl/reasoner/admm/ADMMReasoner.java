@@ -17,14 +17,19 @@
  */
 package org.linqs.psl.reasoner.admm;
 
+import org.linqs.psl.application.groundrulestore.GroundRuleStore;
 import org.linqs.psl.config.Config;
+import org.linqs.psl.model.atom.RandomVariableAtom;
 import org.linqs.psl.model.rule.GroundRule;
+import org.linqs.psl.model.rule.Rule;
 import org.linqs.psl.model.rule.WeightedGroundRule;
 import org.linqs.psl.reasoner.Reasoner;
 import org.linqs.psl.reasoner.admm.term.ADMMObjectiveTerm;
 import org.linqs.psl.reasoner.admm.term.ADMMTermStore;
-import org.linqs.psl.reasoner.admm.term.LinearConstraintTerm;
-import org.linqs.psl.reasoner.admm.term.LocalVariable;
+import org.linqs.psl.reasoner.admm.term.CanonicalOrder;
+import org.linqs.psl.reasoner.admm.term.TermComponents;
+import org.linqs.psl.reasoner.function.FunctionTerm;
+import org.linqs.psl.reasoner.function.GeneralFunction;
 import org.linqs.psl.reasoner.term.TermGenerator;
 import org.linqs.psl.reasoner.term.TermStore;
 import org.linqs.psl.util.MathUtils;
@@ -34,6 +39,17 @@ import org.linqs.psl.util.RandUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * Uses an ADMM optimization method to optimize its GroundRules.
  */
@@ -66,6 +82,38 @@ public class ADMMReasoner implements Reasoner {
     public static final String STEP_SIZE_KEY = CONFIG_PREFIX + ".stepsize";
     public static final float STEP_SIZE_DEFAULT = 1.0f;
 
+    /**
+     * Adapt the step size during optimization to keep the primal and dual residuals balanced.
+     * The step size will start at STEP_SIZE_KEY at the start of each optimization.
+     */
+    public static final String ADAPTIVE_STEP_SIZE_KEY = CONFIG_PREFIX + ".adaptivestepsize";
+    public static final boolean ADAPTIVE_STEP_SIZE_DEFAULT = false;
+
+    /**
+     * When adapting the step size, the step size is changed when one residual is larger than
+     * the other by more than this factor.
+     * Should be greater than 1.
+     */
+    public static final String STEP_SIZE_BALANCE_KEY = CONFIG_PREFIX + ".stepsizebalance";
+    public static final float STEP_SIZE_BALANCE_DEFAULT = 10.0f;
+
+    /**
+     * When adapting the step size, the factor the step size is multiplied or divided by.
+     * Should be greater than 1.
+     */
+    public static final String STEP_SIZE_SCALE_KEY = CONFIG_PREFIX + ".stepsizescale";
+    public static final float STEP_SIZE_SCALE_DEFAULT = 2.0f;
+
+    /**
+     * Over-relaxation parameter (alpha).
+     * The local values that feed the consensus and lagrange updates are replaced with
+     * alpha * x + (1 - alpha) * z, where z is the previous consensus value.
+     * 1.0 is no relaxation, values in (1, 2) over-relax and usually converge in fewer iterations.
+     * Must be in (0, 2).
+     */
+    public static final String RELAXATION_KEY = CONFIG_PREFIX + ".relaxation";
+    public static final float RELAXATION_DEFAULT = 1.0f;
+
     /**
      * Absolute error component of stopping criteria.
      * Should be positive.
@@ -108,15 +156,184 @@ public class ADMMReasoner implements Reasoner {
     public static final String INITIAL_LOCAL_VALUE_KEY = CONFIG_PREFIX + ".initiallocalvalue";
     public static final String INITIAL_LOCAL_VALUE_DEFAULT = InitialValue.RANDOM.toString();
 
+    /**
+     * Run iterations on a fixed set of long-lived threads instead of the shared Parallel pool.
+     * Each thread owns a static slice of the terms and variables and the phases of an iteration
+     * are separated by a barrier, so there is no per-iteration allocation or queue handoff.
+     * This pays off on models that need many (cheap) iterations.
+     */
+    public static final String PERSISTENT_WORKERS_KEY = CONFIG_PREFIX + ".persistentworkers";
+    public static final boolean PERSISTENT_WORKERS_DEFAULT = false;
+
+    /**
+     * Start each optimization from the consensus values, local values, and lagrange multipliers
+     * left by the previous optimization instead of reinitializing them.
+     * Only used when the same term store is optimized again without having been restructured
+     * (e.g. repeated optimizations during weight learning where only weights change).
+     */
+    public static final String WARM_START_KEY = CONFIG_PREFIX + ".warmstart";
+    public static final boolean WARM_START_DEFAULT = false;
+
+    /**
+     * Split the terms into connected components (terms that do not share any variables, even transitively)
+     * and optimize each component as its own problem with its own convergence check.
+     * Components that are large compared to the whole problem are optimized one at a time using all threads.
+     * The rest are optimized in parallel, each on a single thread with a fixed step size and no objective break.
+     * Grouping the components reorders the term store.
+     */
+    public static final String COMPONENTS_KEY = CONFIG_PREFIX + ".components";
+    public static final boolean COMPONENTS_DEFAULT = false;
+
+    /**
+     * Run asynchronous ADMM: each thread repeatedly minimizes its slice of the terms and then updates
+     * its slice of the consensus values without waiting on any other thread (reading whatever values
+     * the other threads have written so far).
+     * The calling thread periodically checks the combined residuals and stops the workers on convergence.
+     * Results are not deterministic between runs.
+     * Only the residuals are used to stop (no objective break), the step size is not adapted,
+     * and over-relaxation cannot be used (see RELAXATION_KEY).
+     */
+    public static final String ASYNCHRONOUS_KEY = CONFIG_PREFIX + ".asynchronous";
+    public static final boolean ASYNCHRONOUS_DEFAULT = false;
+
+    /**
+     * The most rounds an asynchronous thread may get ahead of the slowest thread.
+     * Asynchronous ADMM only converges when the staleness of what the threads read is bounded.
+     * Without a bound, a thread that gets more time (e.g. when there are more threads than cores)
+     * keeps optimizing against a stale view of the others and the iterates may never settle.
+     * A thread that is too far ahead blocks (rather than spinning) until the slowest thread catches up.
+     */
+    public static final String ASYNCHRONOUS_MAX_DELAY_KEY = CONFIG_PREFIX + ".asynchronousmaxdelay";
+    public static final int ASYNCHRONOUS_MAX_DELAY_DEFAULT = 1;
+
+    /**
+     * Statically partition the problem between persistent sweep threads (implies PERSISTENT_WORKERS_KEY).
+     * The global variables are split into one contiguous range per thread (balanced by number of local variables),
+     * and each term is moved next to the other terms of the thread that owns most of its variables.
+     * Every thread then minimizes the same terms and updates the same variables on every sweep,
+     * so each thread keeps working on the same (mostly disjoint) memory.
+     * Pairs well with ADMMTermGenerator.REORDER_KEY, which keeps the terms of each range close together.
+     * Cannot be used with COMPONENTS_KEY or ASYNCHRONOUS_KEY.
+     */
+    public static final String PARTITION_KEY = CONFIG_PREFIX + ".partition";
+    public static final boolean PARTITION_DEFAULT = false;
+
+    /**
+     * Where to keep a checkpoint (see ADMMCheckpointer) of the optimization, null to not checkpoint.
+     * A checkpoint is written every CHECKPOINT_PERIOD_KEY iterations (in the background).
+     * If the path has a checkpoint for the same term store when optimization starts,
+     * the optimization resumes from it instead of starting over.
+     * The checkpoint is removed once the optimization converges, and kept if it stopped early
+     * (MAX_ITER_KEY or TIME_LIMIT_KEY) so that it can be continued.
+     * A resumed optimization continues up to MAX_ITER_KEY iterations,
+     * or for another MAX_ITER_KEY iterations if the checkpoint was already at (or past) that many.
+     * Cannot be used with COMPONENTS_KEY or ASYNCHRONOUS_KEY.
+     */
+    public static final String CHECKPOINT_PATH_KEY = CONFIG_PREFIX + ".checkpointpath";
+    public static final String CHECKPOINT_PATH_DEFAULT = null;
+
+    public static final String CHECKPOINT_PERIOD_KEY = CONFIG_PREFIX + ".checkpointperiod";
+    public static final int CHECKPOINT_PERIOD_DEFAULT = 1000;
+
+    /**
+     * Where to write a per-iteration convergence trace (see ADMMTrace), null to not trace.
+     * The file is overwritten when the reasoner is created and every optimize() on it is added as another run.
+     * Iterations are sampled every TRACE_PERIOD_KEY iterations (asynchronous optimization records each check instead).
+     * With COMPONENTS_KEY, only the large components are traced (one after another in the same run),
+     * and batches (optimizeBatch()) are not traced at all.
+     */
+    public static final String TRACE_PATH_KEY = CONFIG_PREFIX + ".tracepath";
+    public static final String TRACE_PATH_DEFAULT = null;
+
+    /**
+     * The format of the trace, one of ADMMTrace.Format.
+     */
+    public static final String TRACE_FORMAT_KEY = CONFIG_PREFIX + ".traceformat";
+    public static final String TRACE_FORMAT_DEFAULT = ADMMTrace.Format.CSV.toString();
+
+    public static final String TRACE_PERIOD_KEY = CONFIG_PREFIX + ".traceperiod";
+    public static final int TRACE_PERIOD_DEFAULT = 1;
+
+    /**
+     * A wall-clock budget (in milliseconds) for each call to optimize().
+     * Once it runs out, optimization stops and the best feasible iterate (the best objective
+     * at the consensus values with no violated constraints) seen at any check (every COMPUTE_PERIOD_KEY iterations)
+     * is used instead of the last one (when it is better).
+     * The objective and violated constraints of a restored iterate are those of its consensus values.
+     * Zero means no limit.
+     */
+    public static final String TIME_LIMIT_KEY = CONFIG_PREFIX + ".timelimit";
+    public static final long TIME_LIMIT_DEFAULT = 0;
+
+    /**
+     * Freeze variables that have stopped moving and skip them (and any term whose variables are all frozen)
+     * in the sweeps. Everything is swept again every ACTIVE_SET_REVALIDATE_PERIOD_KEY iterations,
+     * which unfreezes any variable that has moved, and the optimization only stops after a full sweep.
+     * Only used by the synchronous (all threads) iterations.
+     */
+    public static final String ACTIVE_SET_KEY = CONFIG_PREFIX + ".activeset";
+    public static final boolean ACTIVE_SET_DEFAULT = false;
+
+    /**
+     * The number of consecutive stable iterations before a variable is frozen.
+     * A variable is stable in an iteration when its consensus value moved by at most ACTIVE_SET_TOLERANCE_KEY
+     * and all of its local copies are within ACTIVE_SET_TOLERANCE_KEY of the consensus value
+     * (so their lagrange multipliers barely move).
+     */
+    public static final String ACTIVE_SET_STABLE_ITERATIONS_KEY = CONFIG_PREFIX + ".activesetstableiterations";
+    public static final int ACTIVE_SET_STABLE_ITERATIONS_DEFAULT = 10;
+
+    public static final String ACTIVE_SET_TOLERANCE_KEY = CONFIG_PREFIX + ".activesettolerance";
+    public static final float ACTIVE_SET_TOLERANCE_DEFAULT = 1e-6f;
+
+    /**
+     * How often (in iterations) to sweep everything and revalidate the frozen variables.
+     */
+    public static final String ACTIVE_SET_REVALIDATE_PERIOD_KEY = CONFIG_PREFIX + ".activesetrevalidateperiod";
+    public static final int ACTIVE_SET_REVALIDATE_PERIOD_DEFAULT = 50;
+
     private static final float LOWER_BOUND = 0.0f;
     private static final float UPPER_BOUND = 1.0f;
 
+    // The layout of each variable worker's slice of the residual accumulators.
+    private static final int ACCUMULATOR_PRIMAL_RES = 0;
+    private static final int ACCUMULATOR_DUAL_RES = 1;
+    private static final int ACCUMULATOR_AX_NORM = 2;
+    private static final int ACCUMULATOR_AY_NORM = 3;
+    private static final int ACCUMULATOR_BZ_NORM = 4;
+    private static final int ACCUMULATOR_LAGRANGE_PENALTY = 5;
+    private static final int ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY = 6;
+    private static final int ACCUMULATOR_OBJECTIVE = 7;
+    private static final int ACCUMULATOR_VIOLATED_CONSTRAINTS = 8;
+    // The norms of the variables that were frozen during a sweep (see ACTIVE_SET_KEY).
+    private static final int ACCUMULATOR_FROZEN_AX_NORM = 9;
+    private static final int ACCUMULATOR_FROZEN_AY_NORM = 10;
+    private static final int ACCUMULATOR_FROZEN_BZ_NORM = 11;
+    private static final int ACCUMULATOR_SKIPPED_TERMS = 12;
+    // The objective and violated constraints at the consensus values (see TIME_LIMIT_KEY).
+    private static final int ACCUMULATOR_CONSENSUS_OBJECTIVE = 13;
+    private static final int ACCUMULATOR_CONSENSUS_VIOLATED_CONSTRAINTS = 14;
+
+    // Each worker's slice is padded out to a full cache line (64 bytes) so that workers do not false share.
+    private static final int ACCUMULATOR_STRIDE = 16;
+
+    // How often the monitor checks on asynchronous workers.
+    private static final long ASYNCHRONOUS_CHECK_PERIOD_US = 200;
+
     private int computePeriod;
 
     /**
-     * Sometimes called eta or rho,
+     * Sometimes called eta or rho.
+     * Starts each optimization at initialStepSize, but may be adapted (see ADAPTIVE_STEP_SIZE_KEY).
      */
-    private final float stepSize;
+    private float stepSize;
+    private final float initialStepSize;
+
+    private float relaxation;
+
+    private boolean adaptiveStepSize;
+    private float stepSizeBalance;
+    private float stepSizeScale;
 
     private float epsilonRel;
     private float epsilonAbs;
@@ -132,21 +349,180 @@ public class ADMMReasoner implements Reasoner {
     private float lagrangePenalty;
     private float augmentedLagrangePenalty;
 
+    // The objective and number of violated constraints, as of the last time they were computed.
+    private float objective;
+    private int violatedConstraints;
+
     private int maxIter;
 
+    // The number of iterations the last optimization took.
+    private int iterationCount;
+
     // Also sometimes called 'z'.
     // Only populated after inference.
     private float[] consensusValues;
 
+    // Per-worker partial sums of the residuals and norms (see ACCUMULATOR_*).
+    // Each variable worker only writes to its own slice, and the slices are combined once per sweep.
+    private float[] residualAccumulators;
+
     private int termBlockSize;
     private int variableBlockSize;
     private boolean objectiveBreak;
+    private boolean persistentWorkers;
+
+    private boolean warmStart;
+    private boolean useComponents;
+    private boolean asynchronous;
+    private int asynchronousMaxDelay;
+    private boolean partition;
+
+    // The static partitioning (see PARTITION_KEY) of the store it was computed on, as of partitionVersion.
+    private ADMMTermStore partitionTermStore;
+    private int partitionVersion;
+    private int[] partitionTermOffsets;
+    private int[] partitionVariableOffsets;
+
+    private boolean activeSet;
+    private int activeSetStableIterations;
+    private float activeSetTolerance;
+    private int activeSetRevalidatePeriod;
+
+    // The number of consecutive iterations each variable has been stable for.
+    // A variable is frozen once this reaches activeSetStableIterations.
+    private int[] variableStableCounts;
+
+    // Which terms had all their variables frozen at the start of the current sweep (only kept while skipping),
+    // and the value (see ADMMTermStore.evaluate()) of each frozen term, taken when it froze.
+    private boolean[] frozenTerms;
+    private float[] frozenTermValues;
+
+    // Whether the current sweep tracks variable stability, and whether it skips frozen variables and terms.
+    private boolean trackActiveSet;
+    private boolean skipFrozen;
+
+    // The norms of all the frozen variables, as of when they were frozen.
+    private float frozenAxNorm;
+    private float frozenAyNorm;
+    private float frozenBzNorm;
+
+    private long timeLimitMS;
+
+    // When the current optimization has to stop (System.nanoTime()), or zero for no limit.
+    private long deadlineNS;
+
+    // If the last optimization stopped because it ran out of time.
+    private volatile boolean deadlineReached;
+
+    // The best feasible iterate of the range being optimized (only used with a time limit).
+    private float[] bestConsensusValues;
+    private float bestConsensusObjective;
+    private boolean haveBestConsensus;
+
+    // The result of the last evaluateConsensus().
+    private float consensusObjective;
+    private int consensusViolatedConstraints;
+
+    private ADMMCheckpointer checkpointer;
+    private int checkpointPeriod;
+    private CanonicalOrder checkpointOrder;
+
+    private ADMMTrace trace;
+    private int tracePeriod;
+
+    // Where to pick up the iterations from, when resuming from a checkpoint.
+    private int resumeIteration;
+
+    // The last iteration the current optimization may run (see MAX_ITER_KEY and CHECKPOINT_PATH_KEY).
+    private int lastIteration;
+    private float resumeStepSize;
+
+    // The results for each problem of the last optimizeBatch().
+    private int[] problemIterations;
+    private float[] problemObjectives;
+    private int[] problemViolatedConstraints;
+
+    // What the last optimization ran on, used to validate a warm start.
+    private ADMMTermStore lastTermStore;
+    private int lastStructureVersion;
 
     public ADMMReasoner() {
         maxIter = Config.getInt(MAX_ITER_KEY, MAX_ITER_DEFAULT);
-        stepSize = Config.getFloat(STEP_SIZE_KEY, STEP_SIZE_DEFAULT);
+        initialStepSize = Config.getFloat(STEP_SIZE_KEY, STEP_SIZE_DEFAULT);
+        stepSize = initialStepSize;
         computePeriod = Config.getInt(COMPUTE_PERIOD_KEY, COMPUTE_PERIOD_DEFAULT);
         objectiveBreak = Config.getBoolean(OBJECTIVE_BREAK_KEY, OBJECTIVE_BREAK_DEFAULT);
+        persistentWorkers = Config.getBoolean(PERSISTENT_WORKERS_KEY, PERSISTENT_WORKERS_DEFAULT);
+        warmStart = Config.getBoolean(WARM_START_KEY, WARM_START_DEFAULT);
+        useComponents = Config.getBoolean(COMPONENTS_KEY, COMPONENTS_DEFAULT);
+        asynchronous = Config.getBoolean(ASYNCHRONOUS_KEY, ASYNCHRONOUS_DEFAULT);
+
+        asynchronousMaxDelay = Config.getInt(ASYNCHRONOUS_MAX_DELAY_KEY, ASYNCHRONOUS_MAX_DELAY_DEFAULT);
+        if (asynchronousMaxDelay < 0) {
+            throw new IllegalArgumentException("Property " + ASYNCHRONOUS_MAX_DELAY_KEY + " must be non-negative.");
+        }
+
+        partition = Config.getBoolean(PARTITION_KEY, PARTITION_DEFAULT);
+        if (partition && (useComponents || asynchronous)) {
+            throw new IllegalArgumentException("Property " + PARTITION_KEY + " cannot be used with "
+                    + COMPONENTS_KEY + " or " + ASYNCHRONOUS_KEY + ".");
+        }
+
+        activeSet = Config.getBoolean(ACTIVE_SET_KEY, ACTIVE_SET_DEFAULT);
+        trackActiveSet = false;
+        skipFrozen = false;
+
+        activeSetStableIterations = Config.getInt(ACTIVE_SET_STABLE_ITERATIONS_KEY, ACTIVE_SET_STABLE_ITERATIONS_DEFAULT);
+        if (activeSetStableIterations < 1) {
+            throw new IllegalArgumentException("Property " + ACTIVE_SET_STABLE_ITERATIONS_KEY + " must be positive.");
+        }
+
+        activeSetTolerance = Config.getFloat(ACTIVE_SET_TOLERANCE_KEY, ACTIVE_SET_TOLERANCE_DEFAULT);
+        if (activeSetTolerance < 0.0f) {
+            throw new IllegalArgumentException("Property " + ACTIVE_SET_TOLERANCE_KEY + " must be non-negative.");
+        }
+
+        activeSetRevalidatePeriod = Config.getInt(ACTIVE_SET_REVALIDATE_PERIOD_KEY, ACTIVE_SET_REVALIDATE_PERIOD_DEFAULT);
+        if (activeSetRevalidatePeriod < 1) {
+            throw new IllegalArgumentException("Property " + ACTIVE_SET_REVALIDATE_PERIOD_KEY + " must be positive.");
+        }
+
+        checkpointer = null;
+        String checkpointPath = Config.getString(CHECKPOINT_PATH_KEY, CHECKPOINT_PATH_DEFAULT);
+        if (checkpointPath != null) {
+            if (useComponents || asynchronous) {
+                throw new IllegalArgumentException("Property " + CHECKPOINT_PATH_KEY + " cannot be used with "
+                        + COMPONENTS_KEY + " or " + ASYNCHRONOUS_KEY + ".");
+            }
+
+            checkpointer = new ADMMCheckpointer(checkpointPath);
+        }
+
+        checkpointPeriod = Config.getInt(CHECKPOINT_PERIOD_KEY, CHECKPOINT_PERIOD_DEFAULT);
+        if (checkpointPeriod < 1) {
+            throw new IllegalArgumentException("Property " + CHECKPOINT_PERIOD_KEY + " must be positive.");
+        }
+        resumeIteration = 0;
+
+        trace = null;
+        String tracePath = Config.getString(TRACE_PATH_KEY, TRACE_PATH_DEFAULT);
+        if (tracePath != null) {
+            ADMMTrace.Format traceFormat = ADMMTrace.Format.valueOf(
+                    Config.getString(TRACE_FORMAT_KEY, TRACE_FORMAT_DEFAULT).toUpperCase());
+            trace = new ADMMTrace(tracePath, traceFormat);
+        }
+
+        tracePeriod = Config.getInt(TRACE_PERIOD_KEY, TRACE_PERIOD_DEFAULT);
+        if (tracePeriod < 1) {
+            throw new IllegalArgumentException("Property " + TRACE_PERIOD_KEY + " must be positive.");
+        }
+
+        timeLimitMS = Config.getLong(TIME_LIMIT_KEY, TIME_LIMIT_DEFAULT);
+        if (timeLimitMS < 0) {
+            throw new IllegalArgumentException("Property " + TIME_LIMIT_KEY + " must be non-negative.");
+        }
+        deadlineNS = 0;
+        deadlineReached = false;
 
         epsilonAbs = Config.getFloat(EPSILON_ABS_KEY, EPSILON_ABS_DEFAULT);
         if (epsilonAbs <= 0) {
@@ -157,6 +533,28 @@ public class ADMMReasoner implements Reasoner {
         if (epsilonRel <= 0) {
             throw new IllegalArgumentException("Property " + EPSILON_REL_KEY + " must be positive.");
         }
+
+        relaxation = Config.getFloat(RELAXATION_KEY, RELAXATION_DEFAULT);
+        if (relaxation <= 0.0f || relaxation >= 2.0f) {
+            throw new IllegalArgumentException("Property " + RELAXATION_KEY + " must be in (0, 2).");
+        }
+
+        // Relaxation writes into other terms' local variables, which asynchronous workers do not own.
+        if (asynchronous && relaxation != 1.0f) {
+            throw new IllegalArgumentException("Property " + RELAXATION_KEY + " cannot be used with " + ASYNCHRONOUS_KEY + ".");
+        }
+
+        adaptiveStepSize = Config.getBoolean(ADAPTIVE_STEP_SIZE_KEY, ADAPTIVE_STEP_SIZE_DEFAULT);
+
+        stepSizeBalance = Config.getFloat(STEP_SIZE_BALANCE_KEY, STEP_SIZE_BALANCE_DEFAULT);
+        if (stepSizeBalance <= 1.0f) {
+            throw new IllegalArgumentException("Property " + STEP_SIZE_BALANCE_KEY + " must be greater than 1.");
+        }
+
+        stepSizeScale = Config.getFloat(STEP_SIZE_SCALE_KEY, STEP_SIZE_SCALE_DEFAULT);
+        if (stepSizeScale <= 1.0f) {
+            throw new IllegalArgumentException("Property " + STEP_SIZE_SCALE_KEY + " must be greater than 1.");
+        }
     }
 
     public int getMaxIter() {
@@ -183,6 +581,81 @@ public class ADMMReasoner implements Reasoner {
         this.epsilonAbs = epsilonAbs;
     }
 
+    public boolean getWarmStart() {
+        return warmStart;
+    }
+
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    /**
+     * Get the time limit (in milliseconds) for each optimization, zero for none.
+     */
+    public long getTimeLimit() {
+        return timeLimitMS;
+    }
+
+    public void setTimeLimit(long timeLimitMS) {
+        if (timeLimitMS < 0) {
+            throw new IllegalArgumentException("Time limit must be non-negative, got " + timeLimitMS + ".");
+        }
+
+        this.timeLimitMS = timeLimitMS;
+    }
+
+    /**
+     * Whether the last call to optimize() stopped because it ran out of time (see TIME_LIMIT_KEY).
+     */
+    public boolean isDeadlineReached() {
+        return deadlineReached;
+    }
+
+    /**
+     * Get the number of iterations that the last call to optimize() took.
+     */
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    /**
+     * Get the objective (of the local variables) at the end of the last optimization.
+     * If a time limit restored an earlier iterate (see TIME_LIMIT_KEY), this is the objective of its consensus values.
+     */
+    public float getObjective() {
+        return objective;
+    }
+
+    /**
+     * Get the number of constraints violated (by the local variables) at the end of the last optimization.
+     * Like getObjective(), this is of the consensus values of a restored iterate.
+     */
+    public int getViolatedConstraints() {
+        return violatedConstraints;
+    }
+
+    /**
+     * Get the number of iterations that a problem of the last call to optimizeBatch() took.
+     */
+    public int getIterationCount(int problem) {
+        return problemIterations[problem];
+    }
+
+    /**
+     * Get the objective (of the local variables) of a problem at the end of the last call to optimizeBatch().
+     */
+    public float getObjective(int problem) {
+        return problemObjectives[problem];
+    }
+
+    /**
+     * Get the number of constraints violated (by the local variables) in a problem
+     * at the end of the last call to optimizeBatch().
+     */
+    public int getViolatedConstraints(int problem) {
+        return problemViolatedConstraints[problem];
+    }
+
     public float getLagrangianPenalty() {
         return this.lagrangePenalty;
     }
@@ -207,275 +680,1720 @@ public class ADMMReasoner implements Reasoner {
         }
         ADMMTermStore termStore = (ADMMTermStore)baseTermStore;
 
-        termStore.resetLocalVairables(initialLocal);
-
-        int numTerms = termStore.size();
-        int numVariables = termStore.getNumGlobalVariables();
+        // The budget covers all the preparation too.
+        deadlineReached = false;
+        deadlineNS = 0;
+        if (timeLimitMS > 0) {
+            deadlineNS = System.nanoTime() + timeLimitMS * 1000000L;
+        }
 
-        log.debug("Performing optimization with {} variables and {} terms.", numVariables, numTerms);
+        // Pick up any weight changes since the terms were packed.
+        termStore.updateWeights();
 
-        initConsensusValues(termStore, initialConsensus);
+        // Grouping may reorder the store, so it has to happen before any state is checked or initialized.
+        TermComponents components = null;
+        if (useComponents) {
+            components = termStore.groupComponents();
+        }
 
-        termBlockSize = numTerms / (Parallel.getNumThreads() * 4) + 1;
-        variableBlockSize = numVariables / (Parallel.getNumThreads() * 4) + 1;
+        if (partition) {
+            partition(termStore);
+        }
 
-        int numTermBlocks = (int)Math.ceil(numTerms / (float)termBlockSize);
-        int numVariableBlocks = (int)Math.ceil(numVariables / (float)variableBlockSize);
+        int numTerms = termStore.size();
+        int numVariables = termStore.getNumGlobalVariables();
 
-        // Performs inference.
-        float epsilonAbsTerm = (float)(Math.sqrt(termStore.getNumLocalVariables()) * epsilonAbs);
+        if (warmStart && canWarmStart(termStore)) {
+            log.debug("Warm starting optimization with {} variables and {} terms.", numVariables, numTerms);
+        } else {
+            log.debug("Performing optimization with {} variables and {} terms.", numVariables, numTerms);
 
-        float objective = 0.0f;
-        float oldObjective = 0.0f;
+            termStore.resetLocalVairables(initialLocal);
+            initConsensusValues(termStore, initialConsensus);
+        }
 
-        int iteration = 1;
-        while (
-                (iteration == 1 || primalRes > epsilonPrimal || dualRes > epsilonDual)
-                && (!objectiveBreak || (MathUtils.isZero(oldObjective) || !MathUtils.equals(objective, oldObjective)))
-                && iteration <= maxIter) {
-            // Zero out the iteration variables.
-            primalRes = 0.0f;
-            dualRes = 0.0f;
-            AxNorm = 0.0f;
-            AyNorm = 0.0f;
-            BzNorm = 0.0f;
-            lagrangePenalty = 0.0f;
-            augmentedLagrangePenalty = 0.0f;
+        lastTermStore = termStore;
+        lastStructureVersion = termStore.getStructureVersion();
 
-            // Minimize all the terms.
-            Parallel.count(numTermBlocks, new TermWorker(termStore, termBlockSize));
+        resumeIteration = 0;
+        if (checkpointer != null) {
+            checkpointOrder = termStore.getCanonicalOrder();
+            if (checkpointer.load(checkpointOrder, consensusValues, termStore.getLocalValues(), termStore.getLocalLagranges())) {
+                resumeIteration = checkpointer.getIteration();
+                resumeStepSize = checkpointer.getStepSize();
+                log.info("Resuming optimization from iteration {} of checkpoint {}.", resumeIteration, checkpointer.getPath());
+            }
+        }
 
-            // Compute new consensus values and residuals.
-            Parallel.count(numVariableBlocks, new VariableWorker(termStore, variableBlockSize));
+        // A checkpoint that already used up the iterations (it stopped at MAX_ITER_KEY) gets a new budget.
+        lastIteration = maxIter;
+        if (resumeIteration >= maxIter) {
+            lastIteration = (int)Math.min(Integer.MAX_VALUE, (long)resumeIteration + maxIter);
+        }
 
-            primalRes = (float)Math.sqrt(primalRes);
-            dualRes = (float)(stepSize * Math.sqrt(dualRes));
+        residualAccumulators = new float[Parallel.getNumThreads() * ACCUMULATOR_STRIDE];
 
-            epsilonPrimal = (float)(epsilonAbsTerm + epsilonRel * Math.max(Math.sqrt(AxNorm), Math.sqrt(BzNorm)));
-            epsilonDual = (float)(epsilonAbsTerm + epsilonRel * Math.sqrt(AyNorm));
+        if (trace != null) {
+            trace.startRun();
+        }
 
-            if (iteration % computePeriod == 0) {
-                if (!objectiveBreak) {
-                    log.trace(
-                            "Iteration {} -- Primal: {}, Dual: {}, Epsilon Primal: {}, Epsilon Dual: {}.",
-                            iteration, primalRes, dualRes, epsilonPrimal, epsilonDual);
-                } else {
-                    oldObjective = objective;
+        if (activeSet) {
+            variableStableCounts = new int[numVariables];
+            frozenTerms = new boolean[numTerms];
+            frozenTermValues = new float[numTerms];
+        }
 
-                    objective = 0.0f;
-                    boolean feasible = true;
+        bestConsensusValues = null;
+        if (deadlineNS != 0) {
+            bestConsensusValues = new float[numVariables];
+        }
 
-                    for (ADMMObjectiveTerm term : termStore) {
-                        if (term instanceof LinearConstraintTerm) {
-                            if (term.evaluate() > 0.0f) {
-                                feasible = false;
-                            }
-                        } else {
-                            objective += (1.0f - term.evaluate());
-                        }
-                    }
+        if (components == null) {
+            optimizeRange(termStore, 0, numTerms, 0, numVariables);
+        } else {
+            optimizeComponents(termStore, components);
+        }
 
-                    log.trace(
-                            "Iteration {} -- Objective: {}, Feasible: {}, Primal: {}, Dual: {}, Epsilon Primal: {}, Epsilon Dual: {}.",
-                            iteration, objective, feasible, primalRes, dualRes, epsilonPrimal, epsilonDual);
-                }
-            }
+        int infeasibleCount = violatedConstraints;
+        if (infeasibleCount > 0) {
+            log.warn("No feasible solution found. {} constraints violated.", infeasibleCount);
+        }
 
-            iteration++;
+        if (deadlineReached) {
+            log.info("Optimization stopped at the time limit ({}ms).", timeLimitMS);
         }
 
-        objective = 0.0f;
-        int infeasibleCount = 0;
-        for (ADMMObjectiveTerm term : termStore) {
-            if (term instanceof LinearConstraintTerm) {
-                if (term.evaluate() > 0.0f) {
-                    infeasibleCount++;
-                }
+        log.info("Optimization completed in {} iterations. Objective: {}, Feasible: {}, Primal res.: {}, Dual res.: {}",
+                iterationCount, objective, (infeasibleCount == 0), primalRes, dualRes);
+
+        bestConsensusValues = null;
+        deadlineNS = 0;
+
+        if (checkpointer != null) {
+            if (deadlineReached || iterationCount >= lastIteration) {
+                // Save exactly where we stopped (written in the background, close() waits for it).
+                checkpointer.checkpoint(checkpointOrder, iterationCount, stepSize, consensusValues,
+                        termStore.getLocalValues(), termStore.getLocalLagranges());
             } else {
-                objective += (1.0f - term.evaluate());
+                checkpointer.delete();
             }
         }
 
-        if (infeasibleCount > 0) {
-            log.warn("No feasible solution found. {} constraints violated.", infeasibleCount);
+        if (trace != null) {
+            trace.flush();
         }
 
-        log.info("Optimization completed in {} iterations. Objective: {}, Feasible: {}, Primal res.: {}, Dual res.: {}",
-                iteration - 1, objective, (infeasibleCount == 0), primalRes, dualRes);
-
         // Updates variables
         termStore.updateVariables(consensusValues);
     }
 
-    @Override
-    public void close() {
-    }
-
     /**
-     * Computes the incompatibility of the local variable copies corresponding to GroundRule groundRule.
-     * The caller should provide a buffer that will be used to keep copies of the consensus values.
-     * It should be sized: termStore().getNumGlobalVariables().
-     * Null may be passed instead, but it will cause an allocation.
+     * Statically partition the store between the sweep threads (see PARTITION_KEY).
+     * The partitioning is kept until the store changes.
      */
-    public double getDualIncompatibility(GroundRule groundRule, ADMMTermStore termStore, float[] consensusBuffer) {
-        if (consensusBuffer == null) {
-            consensusBuffer = new float[termStore.getNumGlobalVariables()];
+    private void partition(ADMMTermStore termStore) {
+        int numThreads = Parallel.getNumThreads();
+        if (partitionTermStore == termStore && partitionVersion == termStore.getStructureVersion()
+                && partitionVariableOffsets.length == numThreads + 1) {
+            return;
         }
 
-        assert(consensusBuffer.length == consensusValues.length);
-
-        // Set the global variables to the value of the local variables for this rule.
-        for (ADMMObjectiveTerm term : termStore.getTerms(groundRule)) {
-            for (LocalVariable localVariable : term.getVariables()) {
-                consensusBuffer[localVariable.getGlobalId()] = localVariable.getValue();
+        int numVariables = termStore.getNumGlobalVariables();
+        int[] globalLocalOffsets = termStore.getGlobalLocalOffsets();
+        long numLocalVariables = globalLocalOffsets[numVariables];
+
+        // Balance the partitions by the number of local variables (which is about the work for both sweeps).
+        int[] variableOffsets = new int[numThreads + 1];
+        int variable = 0;
+        for (int i = 1; i < numThreads; i++) {
+            long target = numLocalVariables * i / numThreads;
+            while (variable < numVariables && globalLocalOffsets[variable] < target) {
+                variable++;
             }
+            variableOffsets[i] = variable;
         }
+        variableOffsets[numThreads] = numVariables;
 
-        // Updates variables
-        termStore.updateVariables(consensusBuffer);
-        double incompatibility = ((WeightedGroundRule)groundRule).getIncompatibility();
-
-        // Reset the variables to the correct values.
-        termStore.updateVariables(consensusValues);
+        partitionTermOffsets = termStore.partitionTerms(variableOffsets);
+        partitionVariableOffsets = variableOffsets;
+        partitionTermStore = termStore;
+        partitionVersion = termStore.getStructureVersion();
 
-        return incompatibility;
+        log.debug("Partitioned {} terms and {} variables between {} threads.", termStore.size(), numVariables, numThreads);
     }
 
-    private void initConsensusValues(ADMMTermStore termStore, InitialValue initialConsensus) {
-        consensusValues = new float[termStore.getNumGlobalVariables()];
-
-        if (initialConsensus == InitialValue.ZERO) {
-            for (int i = 0; i < consensusValues.length; i++) {
-                consensusValues[i] = 0.0f;
-            }
-        } else if (initialConsensus == InitialValue.RANDOM) {
-            for (int i = 0; i < consensusValues.length; i++) {
-                consensusValues[i] = RandUtils.nextFloat();
-            }
-        } else if (initialConsensus == InitialValue.ATOM) {
-            termStore.getAtomValues(consensusValues);
-        } else {
-            throw new IllegalStateException("Unknown initial consensus value: " + initialConsensus);
+    /**
+     * Split [start, end) into numSlices contiguous ranges of (almost) the same size.
+     * Slice i is [slices[i], slices[i + 1]).
+     */
+    private static int[] slice(int start, int end, int numSlices) {
+        int[] slices = new int[numSlices + 1];
+        for (int i = 0; i <= numSlices; i++) {
+            slices[i] = start + (int)((long)(end - start) * i / numSlices);
         }
+        return slices;
     }
 
-    private synchronized void updateIterationVariables(
-            float primalRes, float dualRes,
-            float AxNorm, float BzNorm, float AyNorm,
-            float lagrangePenalty, float augmentedLagrangePenalty) {
-        this.primalRes += primalRes;
-        this.dualRes += dualRes;
-        this.AxNorm += AxNorm;
-        this.AyNorm += AyNorm;
-        this.BzNorm += BzNorm;
-        this.lagrangePenalty += lagrangePenalty;
-        this.augmentedLagrangePenalty += augmentedLagrangePenalty;
-    }
-
-    private class TermWorker extends Parallel.Worker<Integer> {
-        private ADMMTermStore termStore;
-        private int blockSize;
+    /**
+     * Optimize many small independent problems that were all generated into the same term store.
+     * Problem i has the terms [problems.getTermStart(i), problems.getTermEnd(i))
+     * and the global variables [problems.getVariableStart(i), problems.getVariableEnd(i)),
+     * and no two problems may share a variable.
+     * The problems are spread over the threads and each one is optimized entirely on a single thread
+     * (no inner parallelism, like the small components of COMPONENTS_KEY).
+     * Every problem starts from the initial values (no warm start).
+     * The per-problem results are available from getIterationCount(int), getObjective(int),
+     * and getViolatedConstraints(int), and the non-indexed getters give the totals (the largest iteration count).
+     * The iteration modes (components, asynchronous, active set, partitioning, checkpoints) do not apply here,
+     * but TIME_LIMIT_KEY covers the whole batch.
+     */
+    public void optimizeBatch(ADMMTermStore termStore, TermComponents problems) {
+        InitialValue initialConsensus = InitialValue.valueOf(
+                Config.getString(INITIAL_CONSENSUS_VALUE_KEY, INITIAL_CONSENSUS_VALUE_DEFAULT).toUpperCase());
+        InitialValue initialLocal = InitialValue.valueOf(
+                Config.getString(INITIAL_LOCAL_VALUE_KEY, INITIAL_LOCAL_VALUE_DEFAULT).toUpperCase());
+
+        deadlineReached = false;
+        deadlineNS = 0;
+        if (timeLimitMS > 0) {
+            deadlineNS = System.nanoTime() + timeLimitMS * 1000000L;
+        }
+
+        termStore.updateWeights();
+
+        int numProblems = problems.size();
+        log.debug("Optimizing {} problems with {} variables and {} terms.",
+                numProblems, termStore.getNumGlobalVariables(), termStore.size());
+
+        termStore.resetLocalVairables(initialLocal);
+        initConsensusValues(termStore, initialConsensus);
+
+        // The problems are not comparable to anything that came before (or after).
+        lastTermStore = null;
+
+        residualAccumulators = new float[Parallel.getNumThreads() * ACCUMULATOR_STRIDE];
+        stepSize = initialStepSize;
+
+        problemIterations = new int[numProblems];
+        problemObjectives = new float[numProblems];
+        problemViolatedConstraints = new int[numProblems];
+
+        Parallel.count(numProblems, new ComponentWorker(termStore, problems, 0,
+                problemIterations, problemObjectives, problemViolatedConstraints));
+
+        objective = 0.0f;
+        violatedConstraints = 0;
+        iterationCount = 0;
+        for (int i = 0; i < numProblems; i++) {
+            objective += problemObjectives[i];
+            violatedConstraints += problemViolatedConstraints[i];
+            iterationCount = Math.max(iterationCount, problemIterations[i]);
+        }
+
+        if (deadlineReached) {
+            log.info("Batch optimization stopped at the time limit ({}ms).", timeLimitMS);
+        }
+
+        log.info("Optimized {} problems in at most {} iterations. Objective: {}, Violated Constraints: {}",
+                numProblems, iterationCount, objective, violatedConstraints);
+
+        deadlineNS = 0;
+
+        termStore.updateVariables(consensusValues);
+    }
+
+    /**
+     * Optimize each component on its own.
+     * The large components go first (one at a time, each using every thread),
+     * then all the small ones are optimized in parallel (each on a single thread).
+     * The reported objective is the total over all components and the iteration count is the largest of any component.
+     */
+    private void optimizeComponents(ADMMTermStore termStore, TermComponents components) {
+        int numThreads = Parallel.getNumThreads();
+        int largeComponentSize = termStore.size() / numThreads;
+
+        float totalObjective = 0.0f;
+        int totalViolatedConstraints = 0;
+        int maxIterations = 0;
+
+        // Components are sorted largest first.
+        int numLarge = 0;
+        while (numLarge < components.size() && numThreads > 1 && components.getNumTerms(numLarge) > largeComponentSize) {
+            optimizeRange(termStore,
+                    components.getTermStart(numLarge), components.getTermEnd(numLarge),
+                    components.getVariableStart(numLarge), components.getVariableEnd(numLarge));
+
+            totalObjective += objective;
+            totalViolatedConstraints += violatedConstraints;
+            maxIterations = Math.max(maxIterations, iterationCount);
+            numLarge++;
+        }
+
+        int numSmall = components.size() - numLarge;
+        log.debug("Optimizing {} large and {} small components.", numLarge, numSmall);
+
+        if (numSmall > 0) {
+            // The small components are all optimized with the initial step size.
+            stepSize = initialStepSize;
+
+            int[] componentIterations = new int[numSmall];
+            Parallel.count(numSmall, new ComponentWorker(termStore, components, numLarge, componentIterations));
+
+            reduceObjective();
+            totalObjective += objective;
+            totalViolatedConstraints += violatedConstraints;
+
+            for (int iterations : componentIterations) {
+                maxIterations = Math.max(maxIterations, iterations);
+            }
+        }
+
+        objective = totalObjective;
+        violatedConstraints = totalViolatedConstraints;
+        iterationCount = maxIterations;
+    }
+
+    /**
+     * Optimize the terms in [termStart, termEnd), which must only touch the variables in [variableStart, variableEnd),
+     * using all the threads.
+     */
+    private void optimizeRange(ADMMTermStore termStore, int termStart, int termEnd, int variableStart, int variableEnd) {
+        int numTerms = termEnd - termStart;
+        int numVariables = variableEnd - variableStart;
+
+        stepSize = initialStepSize;
+
+        termBlockSize = numTerms / (Parallel.getNumThreads() * 4) + 1;
+        variableBlockSize = numVariables / (Parallel.getNumThreads() * 4) + 1;
+
+        int numTermBlocks = (int)Math.ceil(numTerms / (float)termBlockSize);
+        int numVariableBlocks = (int)Math.ceil(numVariables / (float)variableBlockSize);
+
+        if (asynchronous) {
+            iterateAsynchronously(termStore, termStart, termEnd, variableStart, variableEnd);
+
+            Parallel.count(numTermBlocks, new ObjectiveWorker(termStore, termStart, termEnd, termBlockSize));
+            reduceObjective();
+            return;
+        }
+
+        SweepThreads sweepThreads = null;
+        if (partition) {
+            sweepThreads = new SweepThreads(termStore, partitionTermOffsets, partitionVariableOffsets);
+        } else if (persistentWorkers) {
+            int numThreads = Parallel.getNumThreads();
+            sweepThreads = new SweepThreads(termStore,
+                    slice(termStart, termEnd, numThreads), slice(variableStart, variableEnd, numThreads));
+        }
+
+        try {
+            iterate(termStore, sweepThreads, termStart, termEnd, variableStart, variableEnd, numTermBlocks, numVariableBlocks);
+        } finally {
+            if (sweepThreads != null) {
+                sweepThreads.close();
+            }
+        }
+    }
+
+    private void iterate(ADMMTermStore termStore, SweepThreads sweepThreads,
+            int termStart, int termEnd, int variableStart, int variableEnd,
+            int numTermBlocks, int numVariableBlocks) {
+        // Time spent combining the per-worker residuals since the last trace.
+        long reductionTimeNS = 0;
+
+        // Performs inference.
+        int[] termOffsets = termStore.getTermOffsets();
+        float epsilonAbsTerm = (float)(Math.sqrt(termOffsets[termEnd] - termOffsets[termStart]) * epsilonAbs);
+
+        objective = 0.0f;
+        violatedConstraints = 0;
+        float oldObjective = 0.0f;
+
+        // If the objective was computed (in the term sweep) on the last iteration.
+        boolean objectiveCurrent = false;
+
+        // With an active set, only stop after a sweep that did not skip anything.
+        boolean fullSweep = true;
+        long skippedTerms = 0;
+
+        trackActiveSet = activeSet;
+        frozenAxNorm = 0.0f;
+        frozenAyNorm = 0.0f;
+        frozenBzNorm = 0.0f;
+        Arrays.fill(residualAccumulators, 0.0f);
+
+        haveBestConsensus = false;
+        bestConsensusObjective = Float.NEGATIVE_INFINITY;
+
+        int iteration = 1;
+        if (resumeIteration > 0) {
+            iteration = resumeIteration + 1;
+            stepSize = resumeStepSize;
+            resumeIteration = 0;
+        }
+        int firstIteration = iteration;
+
+        while (
+                (iteration == firstIteration || primalRes > epsilonPrimal || dualRes > epsilonDual || !fullSweep)
+                && (!objectiveBreak || (MathUtils.isZero(oldObjective) || !MathUtils.equals(objective, oldObjective)))
+                && iteration <= lastIteration
+                && (iteration == firstIteration || !isPastDeadline())) {
+            // The objective is computed alongside the term minimization (right after each term is minimized).
+            objectiveCurrent = objectiveBreak && (iteration % computePeriod == 0);
+            if (objectiveCurrent) {
+                oldObjective = objective;
+            }
+
+            // Revalidate periodically and before stopping (when the last partial sweep looked converged).
+            if (activeSet) {
+                boolean converged = (iteration > firstIteration && primalRes <= epsilonPrimal && dualRes <= epsilonDual);
+                fullSweep = (iteration % activeSetRevalidatePeriod == 0) || converged;
+                skipFrozen = !fullSweep;
+            }
+
+            // Only time the phases of the iterations that get traced.
+            boolean traceIteration = (trace != null && iteration % tracePeriod == 0);
+            long sweepStart = traceIteration ? System.nanoTime() : 0;
+            long termTimeNS = 0;
+            long variableTimeNS = 0;
+
+            if (sweepThreads != null) {
+                sweepThreads.sweep(objectiveCurrent);
+
+                if (traceIteration) {
+                    long phaseTime = sweepThreads.getPhaseTime();
+                    termTimeNS = phaseTime - sweepStart;
+                    variableTimeNS = System.nanoTime() - phaseTime;
+                }
+            } else {
+                // Minimize all the terms.
+                Parallel.count(numTermBlocks, new TermWorker(termStore, termStart, termEnd, termBlockSize, objectiveCurrent));
+
+                if (traceIteration) {
+                    termTimeNS = System.nanoTime() - sweepStart;
+                    sweepStart += termTimeNS;
+                }
+
+                // Compute new consensus values and residuals.
+                Parallel.count(numVariableBlocks, new VariableWorker(termStore, variableStart, variableEnd, variableBlockSize));
+
+                if (traceIteration) {
+                    variableTimeNS = System.nanoTime() - sweepStart;
+                }
+            }
+
+            long reductionStart = System.nanoTime();
+            reduceIterationVariables();
+            if (objectiveCurrent) {
+                reduceObjective();
+            }
+            if (activeSet) {
+                skippedTerms += reduceActiveSet(fullSweep);
+            }
+            long iterationReductionTimeNS = System.nanoTime() - reductionStart;
+            reductionTimeNS += iterationReductionTimeNS;
+
+            primalRes = (float)Math.sqrt(primalRes);
+            dualRes = (float)(stepSize * Math.sqrt(dualRes));
+
+            epsilonPrimal = (float)(epsilonAbsTerm + epsilonRel * Math.max(Math.sqrt(AxNorm), Math.sqrt(BzNorm)));
+            epsilonDual = (float)(epsilonAbsTerm + epsilonRel * Math.sqrt(AyNorm));
+
+            if (traceIteration) {
+                // The step size the residuals were computed with (before adapting).
+                trace.record(iteration, primalRes, dualRes, epsilonPrimal, epsilonDual, stepSize,
+                        objectiveCurrent ? objective : Float.NaN, objectiveCurrent ? violatedConstraints : -1,
+                        termTimeNS, variableTimeNS, iterationReductionTimeNS);
+            }
+
+            if (adaptiveStepSize) {
+                adaptStepSize();
+            }
+
+            if (iteration % computePeriod == 0) {
+                if (deadlineNS != 0) {
+                    recordIterate(termStore, termStart, termEnd, variableStart, variableEnd, numTermBlocks);
+                }
+
+                if (!objectiveBreak) {
+                    log.trace(
+                            "Iteration {} -- Primal: {}, Dual: {}, Epsilon Primal: {}, Epsilon Dual: {}, Reduction Time: {}us.",
+                            iteration, primalRes, dualRes, epsilonPrimal, epsilonDual, reductionTimeNS / 1000);
+                } else {
+                    log.trace(
+                            "Iteration {} -- Objective: {}, Feasible: {}, Primal: {}, Dual: {}, Epsilon Primal: {}, Epsilon Dual: {}, Reduction Time: {}us.",
+                            iteration, objective, (violatedConstraints == 0), primalRes, dualRes, epsilonPrimal, epsilonDual, reductionTimeNS / 1000);
+                }
+
+                reductionTimeNS = 0;
+            }
+
+            if (checkpointer != null && iteration % checkpointPeriod == 0) {
+                boolean replaced = !checkpointer.checkpoint(checkpointOrder, iteration, stepSize,
+                        consensusValues, termStore.getLocalValues(), termStore.getLocalLagranges());
+                if (replaced) {
+                    log.debug("Checkpoint for iteration {} replaced an older one that was not written yet.", iteration);
+                }
+            }
+
+            iteration++;
+        }
+
+        trackActiveSet = false;
+        skipFrozen = false;
+
+        // Fall back to the best feasible iterate if the last one is worse.
+        boolean restored = false;
+        if (deadlineReached && haveBestConsensus
+                && !recordIterate(termStore, termStart, termEnd, variableStart, variableEnd, numTermBlocks)) {
+            log.debug("Using the best feasible iterate (objective: {}) found before the time limit.", bestConsensusObjective);
+            System.arraycopy(bestConsensusValues, variableStart, consensusValues, variableStart, variableEnd - variableStart);
+
+            // The local variables belong to the last iterate, so report on the restored consensus values instead.
+            evaluateConsensus(termStore, termStart, termEnd, numTermBlocks);
+            objective = consensusObjective;
+            violatedConstraints = consensusViolatedConstraints;
+            restored = true;
+        }
+
+        // Only compute the final objective if the last iteration did not already do it.
+        if (!objectiveCurrent && !restored) {
+            Parallel.count(numTermBlocks, new ObjectiveWorker(termStore, termStart, termEnd, termBlockSize));
+            reduceObjective();
+        }
+
+        iterationCount = iteration - 1;
+
+        if (activeSet) {
+            log.debug("Active set skipped {} of {} term minimizations.", skippedTerms, (long)(iteration - 1) * (termEnd - termStart));
+        }
+    }
+
+    /**
+     * Run asynchronous workers over the range until the residuals converge (or every worker hits the max iterations).
+     * The calling thread acts as the monitor: whenever every worker has finished another round since the last check,
+     * it combines the residuals each worker published for its latest round and checks for convergence.
+     */
+    private void iterateAsynchronously(ADMMTermStore termStore, int termStart, int termEnd, int variableStart, int variableEnd) {
+        int[] termOffsets = termStore.getTermOffsets();
+        float epsilonAbsTerm = (float)(Math.sqrt(termOffsets[termEnd] - termOffsets[termStart]) * epsilonAbs);
+
+        // Make sure the global to local index is built before any worker needs it.
+        termStore.getGlobalLocalOffsets();
+
+        AsynchronousThreads workers = new AsynchronousThreads(termStore, Parallel.getNumThreads(),
+                termStart, termEnd, variableStart, variableEnd);
+
+        int lastCheckedRound = 0;
+        boolean finished = false;
+        while (!finished) {
+            finished = workers.awaitFinish(ASYNCHRONOUS_CHECK_PERIOD_US);
+            if (!finished && (workers.hasFailed() || isPastDeadline())) {
+                break;
+            }
+
+            int round = workers.getMinRound();
+            if (round <= lastCheckedRound) {
+                continue;
+            }
+            lastCheckedRound = round;
+
+            long reductionStart = System.nanoTime();
+            workers.reduceIterationVariables();
+
+            primalRes = (float)Math.sqrt(primalRes);
+            dualRes = (float)(stepSize * Math.sqrt(dualRes));
+
+            epsilonPrimal = (float)(epsilonAbsTerm + epsilonRel * Math.max(Math.sqrt(AxNorm), Math.sqrt(BzNorm)));
+            epsilonDual = (float)(epsilonAbsTerm + epsilonRel * Math.sqrt(AyNorm));
+
+            log.trace("Round {} -- Primal: {}, Dual: {}, Epsilon Primal: {}, Epsilon Dual: {}.",
+                    round, primalRes, dualRes, epsilonPrimal, epsilonDual);
+
+            if (trace != null) {
+                // The workers do not wait for each other between phases, so there are no phase times.
+                trace.record(round, primalRes, dualRes, epsilonPrimal, epsilonDual, stepSize, Float.NaN, -1,
+                        -1, -1, System.nanoTime() - reductionStart);
+            }
+
+            if (primalRes <= epsilonPrimal && dualRes <= epsilonDual) {
+                break;
+            }
+        }
+
+        workers.close();
+        iterationCount = workers.getMaxRound();
+    }
+
+    /**
+     * Optimize a single component entirely on the calling worker,
+     * using only the accumulator slice owned by workerId.
+     * Stops on the residuals alone (no objective break) and does not adapt the step size.
+     * The component's final objective is left in the worker's accumulator slice.
+     * @return the number of iterations taken.
+     */
+    private int optimizeComponent(ADMMTermStore termStore, int termStart, int termEnd, int variableStart, int variableEnd, int workerId) {
+        int[] termOffsets = termStore.getTermOffsets();
+        float epsilonAbsTerm = (float)(Math.sqrt(termOffsets[termEnd] - termOffsets[termStart]) * epsilonAbs);
+
+        int offset = workerId * ACCUMULATOR_STRIDE;
+
+        float componentPrimalRes = 0.0f;
+        float componentDualRes = 0.0f;
+        float componentEpsilonPrimal = 0.0f;
+        float componentEpsilonDual = 0.0f;
+
+        int iteration = 1;
+        while ((iteration == 1 || componentPrimalRes > componentEpsilonPrimal || componentDualRes > componentEpsilonDual)
+                && iteration <= maxIter
+                && (iteration == 1 || !isPastDeadline())) {
+            minimizeTerms(termStore, termStart, termEnd, workerId, false);
+            updateConsensus(termStore, variableStart, variableEnd, workerId);
+
+            componentPrimalRes = (float)Math.sqrt(residualAccumulators[offset + ACCUMULATOR_PRIMAL_RES]);
+            componentDualRes = (float)(stepSize * Math.sqrt(residualAccumulators[offset + ACCUMULATOR_DUAL_RES]));
+
+            componentEpsilonPrimal = (float)(epsilonAbsTerm + epsilonRel * Math.max(
+                    Math.sqrt(residualAccumulators[offset + ACCUMULATOR_AX_NORM]),
+                    Math.sqrt(residualAccumulators[offset + ACCUMULATOR_BZ_NORM])));
+            componentEpsilonDual = (float)(epsilonAbsTerm + epsilonRel * Math.sqrt(residualAccumulators[offset + ACCUMULATOR_AY_NORM]));
+
+            Arrays.fill(residualAccumulators, offset, offset + ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY + 1, 0.0f);
+
+            iteration++;
+        }
+
+        evaluateTerms(termStore, termStart, termEnd, workerId);
+
+        return iteration - 1;
+    }
+
+    @Override
+    public void close() {
+        if (checkpointer != null) {
+            checkpointer.awaitWrite();
+        }
+
+        if (trace != null) {
+            trace.close();
+            trace = null;
+        }
+
+        lastTermStore = null;
+        partitionTermStore = null;
+        consensusValues = null;
+    }
+
+    /**
+     * Computes the incompatibility of the local variable copies corresponding to GroundRule groundRule.
+     * The caller should provide a buffer that will be used to keep copies of the consensus values.
+     * It should be sized: termStore().getNumGlobalVariables().
+     * Null may be passed instead, but it will cause an allocation.
+     */
+    public double getDualIncompatibility(GroundRule groundRule, ADMMTermStore termStore, float[] consensusBuffer) {
+        if (consensusBuffer == null) {
+            consensusBuffer = new float[termStore.getNumGlobalVariables()];
+        }
+
+        assert(consensusBuffer.length == consensusValues.length);
+
+        float[] localValues = termStore.getLocalValues();
+        int[] localGlobalIds = termStore.getLocalGlobalIds();
+
+        int[] termOffsets = termStore.getTermOffsets();
+
+        // Set the global variables to the value of the local variables for this rule.
+        for (int termIndex = termStore.getFirstTermIndex(groundRule); termIndex != -1; termIndex = termStore.getNextTermIndex(termIndex)) {
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                consensusBuffer[localGlobalIds[i]] = localValues[i];
+            }
+        }
+
+        // Updates variables
+        termStore.updateVariables(consensusBuffer);
+        double incompatibility = ((WeightedGroundRule)groundRule).getIncompatibility();
+
+        // Reset the variables to the correct values.
+        termStore.updateVariables(consensusValues);
+
+        return incompatibility;
+    }
+
+    /**
+     * Computes the dual incompatibility (see getDualIncompatibility()) of every ground rule of each given rule
+     * and sums them per rule (incompatibilities[i] gets the total for rules.get(i)).
+     * Instead of touching every variable for each ground rule, this makes a single parallel pass over the terms
+     * and evaluates each term's ground rule directly at the term's local variables.
+     * Ground rules that did not make a term do not depend on any random variable
+     * (e.g. tautologies or all observed), so they are just evaluated as-is.
+     * Assumes that each ground rule made at most one term.
+     */
+    public void getDualIncompatibilities(List<? extends Rule> rules, GroundRuleStore groundRuleStore,
+            ADMMTermStore termStore, double[] incompatibilities) {
+        if (incompatibilities.length < rules.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Incompatibilities must have room for every rule (%d), found %d.", rules.size(), incompatibilities.length));
+        }
+
+        Map<Rule, Integer> ruleIndexes = new HashMap<Rule, Integer>();
+        for (int i = 0; i < rules.size(); i++) {
+            ruleIndexes.put(rules.get(i), Integer.valueOf(i));
+        }
+
+        int numThreads = Parallel.getNumThreads();
+        double[][] workerIncompatibilities = new double[numThreads][rules.size()];
+
+        int blockSize = termStore.size() / (numThreads * 4) + 1;
+        int numBlocks = (int)Math.ceil(termStore.size() / (float)blockSize);
+        Parallel.count(numBlocks, new DualIncompatibilityWorker(termStore, ruleIndexes, blockSize, workerIncompatibilities));
+
+        for (int i = 0; i < rules.size(); i++) {
+            incompatibilities[i] = 0.0;
+            for (int worker = 0; worker < numThreads; worker++) {
+                incompatibilities[i] += workerIncompatibilities[worker][i];
+            }
+
+            for (GroundRule groundRule : groundRuleStore.getGroundRules(rules.get(i))) {
+                if (termStore.getFirstTermIndex(groundRule) == -1) {
+                    incompatibilities[i] += ((WeightedGroundRule)groundRule).getIncompatibility();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state left in the term store (and our consensus values) can only be reused
+     * if this is the same term store and it has not been restructured since.
+     */
+    private boolean canWarmStart(ADMMTermStore termStore) {
+        return consensusValues != null
+                && termStore == lastTermStore
+                && termStore.getStructureVersion() == lastStructureVersion
+                && consensusValues.length == termStore.getNumGlobalVariables();
+    }
+
+    private void initConsensusValues(ADMMTermStore termStore, InitialValue initialConsensus) {
+        consensusValues = new float[termStore.getNumGlobalVariables()];
+
+        if (initialConsensus == InitialValue.ZERO) {
+            for (int i = 0; i < consensusValues.length; i++) {
+                consensusValues[i] = 0.0f;
+            }
+        } else if (initialConsensus == InitialValue.RANDOM) {
+            for (int i = 0; i < consensusValues.length; i++) {
+                consensusValues[i] = RandUtils.nextFloat();
+            }
+        } else if (initialConsensus == InitialValue.ATOM) {
+            termStore.getAtomValues(consensusValues);
+        } else {
+            throw new IllegalStateException("Unknown initial consensus value: " + initialConsensus);
+        }
+    }
+
+    /**
+     * Residual balancing: grow the step size when the primal residual dominates
+     * and shrink it when the dual residual dominates.
+     * The lagrange multipliers are kept unscaled (y, not y / stepSize), so they do not need to be rescaled.
+     */
+    private void adaptStepSize() {
+        float newStepSize = stepSize;
+        if (primalRes > stepSizeBalance * dualRes) {
+            newStepSize = stepSize * stepSizeScale;
+        } else if (dualRes > stepSizeBalance * primalRes) {
+            newStepSize = stepSize / stepSizeScale;
+        }
+
+        if (newStepSize == stepSize) {
+            return;
+        }
+
+        log.trace("Adapting step size from {} to {} (Primal: {}, Dual: {}).", stepSize, newStepSize, primalRes, dualRes);
+
+        stepSize = newStepSize;
+
+        // The frozen variables were only stable under the old step size.
+        if (trackActiveSet) {
+            Arrays.fill(variableStableCounts, 0);
+            frozenAxNorm = 0.0f;
+            frozenAyNorm = 0.0f;
+            frozenBzNorm = 0.0f;
+        }
+    }
+
+    /**
+     * Combine the per-worker objective accumulators and zero them out for the next sweep.
+     * Must only be called when no term workers are running.
+     */
+    private void reduceObjective() {
+        float newObjective = 0.0f;
+        float newViolatedConstraints = 0.0f;
+
+        for (int offset = 0; offset < residualAccumulators.length; offset += ACCUMULATOR_STRIDE) {
+            newObjective += residualAccumulators[offset + ACCUMULATOR_OBJECTIVE];
+            newViolatedConstraints += residualAccumulators[offset + ACCUMULATOR_VIOLATED_CONSTRAINTS];
+
+            residualAccumulators[offset + ACCUMULATOR_OBJECTIVE] = 0.0f;
+            residualAccumulators[offset + ACCUMULATOR_VIOLATED_CONSTRAINTS] = 0.0f;
+        }
+
+        objective = newObjective;
+        violatedConstraints = (int)newViolatedConstraints;
+    }
+
+    /**
+     * Combine the per-worker accumulators into the iteration variables and zero them out for the next sweep.
+     * Must only be called when no variable workers are running.
+     */
+    private void reduceIterationVariables() {
+        primalRes = 0.0f;
+        dualRes = 0.0f;
+        AxNorm = 0.0f;
+        AyNorm = 0.0f;
+        BzNorm = 0.0f;
+        lagrangePenalty = 0.0f;
+        augmentedLagrangePenalty = 0.0f;
+
+        for (int offset = 0; offset < residualAccumulators.length; offset += ACCUMULATOR_STRIDE) {
+            primalRes += residualAccumulators[offset + ACCUMULATOR_PRIMAL_RES];
+            dualRes += residualAccumulators[offset + ACCUMULATOR_DUAL_RES];
+            AxNorm += residualAccumulators[offset + ACCUMULATOR_AX_NORM];
+            AyNorm += residualAccumulators[offset + ACCUMULATOR_AY_NORM];
+            BzNorm += residualAccumulators[offset + ACCUMULATOR_BZ_NORM];
+            lagrangePenalty += residualAccumulators[offset + ACCUMULATOR_LAGRANGE_PENALTY];
+            augmentedLagrangePenalty += residualAccumulators[offset + ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY];
+
+            Arrays.fill(residualAccumulators, offset, offset + ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY + 1, 0.0f);
+        }
+    }
+
+    /**
+     * Check (and remember) if the current optimization has run out of time.
+     */
+    private boolean isPastDeadline() {
+        if (deadlineNS == 0) {
+            return false;
+        }
+
+        if (System.nanoTime() - deadlineNS < 0) {
+            return false;
+        }
+
+        deadlineReached = true;
+        return true;
+    }
+
+    /**
+     * Evaluate the terms in [termStart, termEnd) at the current consensus values
+     * and keep the consensus values for [variableStart, variableEnd) if they are feasible
+     * and have a better objective than the best so far.
+     * Must only be called when no workers are running.
+     * @return true if the current iterate is now the best one.
+     */
+    private boolean recordIterate(ADMMTermStore termStore, int termStart, int termEnd, int variableStart, int variableEnd,
+            int numTermBlocks) {
+        evaluateConsensus(termStore, termStart, termEnd, numTermBlocks);
+
+        // The objective adds (1 - loss) per term, so higher is better.
+        if (consensusViolatedConstraints > 0 || consensusObjective <= bestConsensusObjective) {
+            return false;
+        }
+
+        haveBestConsensus = true;
+        bestConsensusObjective = consensusObjective;
+        System.arraycopy(consensusValues, variableStart, bestConsensusValues, variableStart, variableEnd - variableStart);
+
+        return true;
+    }
+
+    /**
+     * Compute the objective and violated constraints (see evaluateTerms()) of the terms in [termStart, termEnd)
+     * at the current consensus values into consensusObjective and consensusViolatedConstraints.
+     * Must only be called when no workers are running.
+     */
+    private void evaluateConsensus(ADMMTermStore termStore, int termStart, int termEnd, int numTermBlocks) {
+        Parallel.count(numTermBlocks, new ConsensusObjectiveWorker(termStore, termStart, termEnd, termBlockSize));
+
+        float newObjective = 0.0f;
+        float newViolatedConstraints = 0.0f;
+        for (int offset = 0; offset < residualAccumulators.length; offset += ACCUMULATOR_STRIDE) {
+            newObjective += residualAccumulators[offset + ACCUMULATOR_CONSENSUS_OBJECTIVE];
+            newViolatedConstraints += residualAccumulators[offset + ACCUMULATOR_CONSENSUS_VIOLATED_CONSTRAINTS];
+
+            residualAccumulators[offset + ACCUMULATOR_CONSENSUS_OBJECTIVE] = 0.0f;
+            residualAccumulators[offset + ACCUMULATOR_CONSENSUS_VIOLATED_CONSTRAINTS] = 0.0f;
+        }
+
+        consensusObjective = newObjective;
+        consensusViolatedConstraints = (int)newViolatedConstraints;
+    }
+
+    /**
+     * Fold the norms of the frozen variables into the iteration variables
+     * (frozen variables are not visited, so they did not add their own),
+     * then pick up the variables that were frozen in this sweep.
+     * Must only be called after reduceIterationVariables() and when no workers are running.
+     * @return the number of terms skipped in this sweep.
+     */
+    private long reduceActiveSet(boolean fullSweep) {
+        if (fullSweep) {
+            // Everyone was visited (and already counted), the frozen set is rebuilt from scratch.
+            frozenAxNorm = 0.0f;
+            frozenAyNorm = 0.0f;
+            frozenBzNorm = 0.0f;
+        } else {
+            AxNorm += frozenAxNorm;
+            AyNorm += frozenAyNorm;
+            BzNorm += frozenBzNorm;
+        }
+
+        long skippedTerms = 0;
+        for (int offset = 0; offset < residualAccumulators.length; offset += ACCUMULATOR_STRIDE) {
+            frozenAxNorm += residualAccumulators[offset + ACCUMULATOR_FROZEN_AX_NORM];
+            frozenAyNorm += residualAccumulators[offset + ACCUMULATOR_FROZEN_AY_NORM];
+            frozenBzNorm += residualAccumulators[offset + ACCUMULATOR_FROZEN_BZ_NORM];
+            skippedTerms += (long)residualAccumulators[offset + ACCUMULATOR_SKIPPED_TERMS];
+
+            Arrays.fill(residualAccumulators, offset + ACCUMULATOR_FROZEN_AX_NORM, offset + ACCUMULATOR_SKIPPED_TERMS + 1, 0.0f);
+        }
+
+        return skippedTerms;
+    }
+
+    /**
+     * A term is frozen when all of its variables are frozen.
+     */
+    private boolean isTermFrozen(ADMMTermStore termStore, int termIndex) {
+        int[] termOffsets = termStore.getTermOffsets();
+        int[] localGlobalIds = termStore.getLocalGlobalIds();
+
+        for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+            if (variableStableCounts[localGlobalIds[i]] < activeSetStableIterations) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Update the lagrange multipliers and minimize the terms in [start, end) (see ADMMTermStore.updateAndMinimize()).
+     * If asked, also evaluate the terms right after they are minimized
+     * and add the objective into the accumulator slice owned by workerId.
+     * When skipping frozen terms (see ACTIVE_SET_KEY), the batch kernels are told which terms to leave alone
+     * and the frozen terms are not evaluated again.
+     */
+    private void minimizeTerms(ADMMTermStore termStore, int start, int end, int workerId, boolean computeObjective) {
+        boolean[] skip = null;
+        if (skipFrozen) {
+            markFrozenTerms(termStore, start, end, workerId);
+            skip = frozenTerms;
+        } else if (trackActiveSet) {
+            // Everything gets minimized, so nothing stays frozen from before.
+            Arrays.fill(frozenTerms, start, end, false);
+        }
+
+        termStore.updateAndMinimize(start, end, stepSize, consensusValues, skip);
+
+        // The block was just swept, so its local variables are still in cache.
+        if (computeObjective) {
+            evaluateTerms(termStore, start, end, workerId, null, skip);
+        }
+    }
+
+    /**
+     * Mark which terms in [start, end) are frozen (see isTermFrozen()) in frozenTerms
+     * and count them as skipped in the accumulator slice owned by workerId.
+     * A term that just froze was minimized in the last sweep and its local variables will not change until it thaws,
+     * so it is evaluated once here and not again while it is frozen.
+     */
+    private void markFrozenTerms(ADMMTermStore termStore, int start, int end, int workerId) {
+        int skippedTermsInc = 0;
+
+        for (int termIndex = start; termIndex < end; termIndex++) {
+            boolean frozen = isTermFrozen(termStore, termIndex);
+            if (frozen) {
+                skippedTermsInc++;
+                if (!frozenTerms[termIndex]) {
+                    frozenTermValues[termIndex] = termStore.evaluate(termIndex);
+                }
+            }
+
+            frozenTerms[termIndex] = frozen;
+        }
+
+        residualAccumulators[workerId * ACCUMULATOR_STRIDE + ACCUMULATOR_SKIPPED_TERMS] += skippedTermsInc;
+    }
+
+    /**
+     * Evaluate the terms in [start, end) (without minimizing them)
+     * and add the objective into the accumulator slice owned by workerId.
+     */
+    private void evaluateTerms(ADMMTermStore termStore, int start, int end, int workerId) {
+        evaluateTerms(termStore, start, end, workerId, null, null);
+    }
+
+    /**
+     * The one definition of the objective: the sum of (1 - loss) over the non-constraint terms,
+     * along with the number of violated constraints.
+     * Terms are evaluated at their local variables,
+     * or at the given consensus values (which go into the consensus accumulators instead).
+     * The terms marked in frozen (may be null, only for the local variables) use their value from frozenTermValues.
+     */
+    private void evaluateTerms(ADMMTermStore termStore, int start, int end, int workerId, float[] consensus, boolean[] frozen) {
+        float objectiveInc = 0.0f;
+        int violatedConstraintsInc = 0;
+
+        for (int termIndex = start; termIndex < end; termIndex++) {
+            float value = 0.0f;
+            if (frozen != null && frozen[termIndex]) {
+                value = frozenTermValues[termIndex];
+            } else if (consensus == null) {
+                value = termStore.evaluate(termIndex);
+            } else {
+                value = termStore.evaluate(termIndex, consensus);
+            }
+
+            if (termStore.isConstraint(termIndex)) {
+                if (value > 0.0f) {
+                    violatedConstraintsInc++;
+                }
+            } else {
+                objectiveInc += (1.0f - value);
+            }
+        }
+
+        int offset = workerId * ACCUMULATOR_STRIDE;
+        if (consensus == null) {
+            residualAccumulators[offset + ACCUMULATOR_OBJECTIVE] += objectiveInc;
+            residualAccumulators[offset + ACCUMULATOR_VIOLATED_CONSTRAINTS] += violatedConstraintsInc;
+        } else {
+            residualAccumulators[offset + ACCUMULATOR_CONSENSUS_OBJECTIVE] += objectiveInc;
+            residualAccumulators[offset + ACCUMULATOR_CONSENSUS_VIOLATED_CONSTRAINTS] += violatedConstraintsInc;
+        }
+    }
+
+    /**
+     * Compute the new consensus values for the variables in [start, end)
+     * and add their residuals into the accumulator slice owned by workerId.
+     */
+    private void updateConsensus(ADMMTermStore termStore, int start, int end, int workerId) {
+        float[] localValues = termStore.getLocalValues();
+        float[] localLagranges = termStore.getLocalLagranges();
+        int[] globalLocalOffsets = termStore.getGlobalLocalOffsets();
+        int[] globalLocalIndexes = termStore.getGlobalLocalIndexes();
+
+        float primalResInc = 0.0f;
+        float dualResInc = 0.0f;
+        float AxNormInc = 0.0f;
+        float BzNormInc = 0.0f;
+        float AyNormInc = 0.0f;
+        float lagrangePenaltyInc = 0.0f;
+        float augmentedLagrangePenaltyInc = 0.0f;
+
+        boolean relaxed = (relaxation != 1.0f);
+
+        float frozenAxNormInc = 0.0f;
+        float frozenAyNormInc = 0.0f;
+        float frozenBzNormInc = 0.0f;
+
+        for (int variableIndex = start; variableIndex < end; variableIndex++) {
+            if (skipFrozen && variableStableCounts[variableIndex] >= activeSetStableIterations) {
+                continue;
+            }
+
+            float total = 0.0f;
+            int localStart = globalLocalOffsets[variableIndex];
+            int localEnd = globalLocalOffsets[variableIndex + 1];
+            int numLocalVariables = localEnd - localStart;
+            float oldConsensusValue = consensusValues[variableIndex];
+
+            float variableAxNorm = 0.0f;
+            float variableAyNorm = 0.0f;
+
+            // First pass computes newConsensusValue and dual residual fom all local copies.
+            for (int i = localStart; i < localEnd; i++) {
+                int localIndex = globalLocalIndexes[i];
+                float value = localValues[localIndex];
+                float lagrange = localLagranges[localIndex];
+
+                if (relaxed) {
+                    total += relaxation * value + (1.0f - relaxation) * oldConsensusValue + lagrange / stepSize;
+                } else {
+                    total += value + lagrange / stepSize;
+                }
+
+                variableAxNorm += value * value;
+                variableAyNorm += lagrange * lagrange;
+            }
+
+            AxNormInc += variableAxNorm;
+            AyNormInc += variableAyNorm;
 
-        public TermWorker(ADMMTermStore termStore, int blockSize) {
+            float newConsensusValue = total / numLocalVariables;
+            newConsensusValue = Math.max(Math.min(newConsensusValue, UPPER_BOUND), LOWER_BOUND);
+
+            float diff = consensusValues[variableIndex] - newConsensusValue;
+            // Residual is diff^2 * number of local variables mapped to consensusValues element.
+            dualResInc += diff * diff * numLocalVariables;
+            BzNormInc += newConsensusValue * newConsensusValue * numLocalVariables;
+
+            consensusValues[variableIndex] = newConsensusValue;
+
+            boolean stable = trackActiveSet && Math.abs(diff) <= activeSetTolerance;
+
+            // Second pass computes primal residuals.
+
+            for (int i = localStart; i < localEnd; i++) {
+                int localIndex = globalLocalIndexes[i];
+                float value = localValues[localIndex];
+
+                diff = value - newConsensusValue;
+                primalResInc += diff * diff;
+
+                if (stable && Math.abs(diff) > activeSetTolerance) {
+                    stable = false;
+                }
+
+                // compute Lagrangian penalties
+                lagrangePenaltyInc += localLagranges[localIndex] * (value - consensusValues[variableIndex]);
+                augmentedLagrangePenaltyInc += 0.5 * stepSize * Math.pow(value - consensusValues[variableIndex], 2);
+
+                // The residuals are always on the raw local values,
+                // but the lagrange update (in the next term sweep) uses the relaxed value.
+                // The local value is overwritten when the term is next minimized.
+                if (relaxed) {
+                    localValues[localIndex] = relaxation * value + (1.0f - relaxation) * oldConsensusValue;
+                }
+            }
+
+            if (trackActiveSet) {
+                int stableCount = stable ? variableStableCounts[variableIndex] + 1 : 0;
+                variableStableCounts[variableIndex] = stableCount;
+
+                // Remember the norms of (newly) frozen variables, since they will not be visited again until revalidation.
+                if (stableCount >= activeSetStableIterations) {
+                    frozenAxNormInc += variableAxNorm;
+                    frozenAyNormInc += variableAyNorm;
+                    frozenBzNormInc += newConsensusValue * newConsensusValue * numLocalVariables;
+                }
+            }
+        }
+
+        // Only this worker writes to its slice, so no synchronization is needed.
+        int offset = workerId * ACCUMULATOR_STRIDE;
+        residualAccumulators[offset + ACCUMULATOR_PRIMAL_RES] += primalResInc;
+        residualAccumulators[offset + ACCUMULATOR_DUAL_RES] += dualResInc;
+        residualAccumulators[offset + ACCUMULATOR_AX_NORM] += AxNormInc;
+        residualAccumulators[offset + ACCUMULATOR_AY_NORM] += AyNormInc;
+        residualAccumulators[offset + ACCUMULATOR_BZ_NORM] += BzNormInc;
+        residualAccumulators[offset + ACCUMULATOR_LAGRANGE_PENALTY] += lagrangePenaltyInc;
+        residualAccumulators[offset + ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY] += augmentedLagrangePenaltyInc;
+
+        if (trackActiveSet) {
+            residualAccumulators[offset + ACCUMULATOR_FROZEN_AX_NORM] += frozenAxNormInc;
+            residualAccumulators[offset + ACCUMULATOR_FROZEN_AY_NORM] += frozenAyNormInc;
+            residualAccumulators[offset + ACCUMULATOR_FROZEN_BZ_NORM] += frozenBzNormInc;
+        }
+    }
+
+    private class TermWorker extends Parallel.Worker<Integer> {
+        private ADMMTermStore termStore;
+        private int termStart;
+        private int termEnd;
+        private int blockSize;
+        private boolean computeObjective;
+
+        public TermWorker(ADMMTermStore termStore, int termStart, int termEnd, int blockSize, boolean computeObjective) {
             super();
             this.termStore = termStore;
+            this.termStart = termStart;
+            this.termEnd = termEnd;
             this.blockSize = blockSize;
+            this.computeObjective = computeObjective;
         }
 
         public Object clone() {
-            return new TermWorker(termStore, blockSize);
+            return new TermWorker(termStore, termStart, termEnd, blockSize, computeObjective);
         }
 
         @Override
         public void work(int blockIndex, Integer ignore) {
-            int numTerms = termStore.size();
+            int start = termStart + blockIndex * blockSize;
 
             // Minimize each local function (wrt the local variable copies).
-            for (int innerBlockIndex = 0; innerBlockIndex < blockSize; innerBlockIndex++) {
-                int termIndex = blockIndex * blockSize + innerBlockIndex;
+            minimizeTerms(termStore, start, Math.min(start + blockSize, termEnd), id, computeObjective);
+        }
+    }
 
-                if (termIndex >= numTerms) {
-                    break;
-                }
+    private class ObjectiveWorker extends Parallel.Worker<Integer> {
+        private ADMMTermStore termStore;
+        private int termStart;
+        private int termEnd;
+        private int blockSize;
 
-                termStore.get(termIndex).updateLagrange(stepSize, consensusValues);
-                termStore.get(termIndex).minimize(stepSize, consensusValues);
-            }
+        public ObjectiveWorker(ADMMTermStore termStore, int termStart, int termEnd, int blockSize) {
+            super();
+            this.termStore = termStore;
+            this.termStart = termStart;
+            this.termEnd = termEnd;
+            this.blockSize = blockSize;
+        }
+
+        public Object clone() {
+            return new ObjectiveWorker(termStore, termStart, termEnd, blockSize);
+        }
+
+        @Override
+        public void work(int blockIndex, Integer ignore) {
+            int start = termStart + blockIndex * blockSize;
+            evaluateTerms(termStore, start, Math.min(start + blockSize, termEnd), id);
         }
     }
 
-    private class VariableWorker extends Parallel.Worker<Integer> {
+    private class ConsensusObjectiveWorker extends Parallel.Worker<Integer> {
         private ADMMTermStore termStore;
+        private int termStart;
+        private int termEnd;
         private int blockSize;
 
-        public VariableWorker(ADMMTermStore termStore, int blockSize) {
+        public ConsensusObjectiveWorker(ADMMTermStore termStore, int termStart, int termEnd, int blockSize) {
             super();
             this.termStore = termStore;
+            this.termStart = termStart;
+            this.termEnd = termEnd;
             this.blockSize = blockSize;
         }
 
         public Object clone() {
-            return new VariableWorker(termStore, blockSize);
+            return new ConsensusObjectiveWorker(termStore, termStart, termEnd, blockSize);
         }
 
         @Override
         public void work(int blockIndex, Integer ignore) {
-            int numVariables = termStore.getNumGlobalVariables();
+            int start = termStart + blockIndex * blockSize;
+            evaluateTerms(termStore, start, Math.min(start + blockSize, termEnd), id, consensusValues, null);
+        }
+    }
+
+    private class VariableWorker extends Parallel.Worker<Integer> {
+        private ADMMTermStore termStore;
+        private int variableStart;
+        private int variableEnd;
+        private int blockSize;
 
-            float primalResInc = 0.0f;
-            float dualResInc = 0.0f;
-            float AxNormInc = 0.0f;
-            float BzNormInc = 0.0f;
-            float AyNormInc = 0.0f;
-            float lagrangePenaltyInc = 0.0f;
-            float augmentedLagrangePenaltyInc = 0.0f;
+        public VariableWorker(ADMMTermStore termStore, int variableStart, int variableEnd, int blockSize) {
+            super();
+            this.termStore = termStore;
+            this.variableStart = variableStart;
+            this.variableEnd = variableEnd;
+            this.blockSize = blockSize;
+        }
 
+        public Object clone() {
+            return new VariableWorker(termStore, variableStart, variableEnd, blockSize);
+        }
+
+        @Override
+        public void work(int blockIndex, Integer ignore) {
             // Instead of dividing up the work ahead of time,
             // get one job at a time so the threads will have more even workloads.
-            for (int innerBlockIndex = 0; innerBlockIndex < blockSize; innerBlockIndex++) {
-                int variableIndex = blockIndex * blockSize + innerBlockIndex;
+            int start = variableStart + blockIndex * blockSize;
+            updateConsensus(termStore, start, Math.min(start + blockSize, variableEnd), id);
+        }
+    }
+
+    private static class DualIncompatibilityWorker extends Parallel.Worker<Integer> {
+        private ADMMTermStore termStore;
+        private Map<Rule, Integer> ruleIndexes;
+        private int blockSize;
+        private double[][] workerIncompatibilities;
+
+        // Scratch space for evaluating functions.
+        private float[] values;
+
+        public DualIncompatibilityWorker(ADMMTermStore termStore, Map<Rule, Integer> ruleIndexes,
+                int blockSize, double[][] workerIncompatibilities) {
+            super();
+            this.termStore = termStore;
+            this.ruleIndexes = ruleIndexes;
+            this.blockSize = blockSize;
+            this.workerIncompatibilities = workerIncompatibilities;
+            this.values = new float[8];
+        }
+
+        public Object clone() {
+            return new DualIncompatibilityWorker(termStore, ruleIndexes, blockSize, workerIncompatibilities);
+        }
+
+        @Override
+        public void work(int blockIndex, Integer ignore) {
+            int start = blockIndex * blockSize;
+            int end = Math.min(start + blockSize, termStore.size());
+
+            double[] incompatibilities = workerIncompatibilities[id];
+
+            for (int termIndex = start; termIndex < end; termIndex++) {
+                GroundRule groundRule = termStore.getGroundRule(termIndex);
+                if (!(groundRule instanceof WeightedGroundRule)) {
+                    continue;
+                }
+
+                Integer ruleIndex = ruleIndexes.get(groundRule.getRule());
+                if (ruleIndex == null) {
+                    continue;
+                }
+
+                incompatibilities[ruleIndex.intValue()] += evaluateAtLocals(termIndex, (WeightedGroundRule)groundRule);
+            }
+        }
+
+        /**
+         * Evaluate a term's ground rule using the term's local variables
+         * in place of the values of the random variable atoms.
+         * The term's hyperplane (coefficients^T * x - constant) is the ground rule's function,
+         * so this is computed straight from the store's packed arrays.
+         * The exception is squared linear losses, which drop their constant when they are made (see ADMMTermGenerator),
+         * so those still go through the ground rule's function.
+         */
+        private float evaluateAtLocals(int termIndex, WeightedGroundRule groundRule) {
+            ADMMObjectiveTerm.TermType type = termStore.getTermType(termIndex);
+            if (type == ADMMObjectiveTerm.TermType.SQUARED_LINEAR_LOSS) {
+                return evaluateFunctionAtLocals(termIndex, groundRule);
+            }
+
+            int[] termOffsets = termStore.getTermOffsets();
+            float[] localValues = termStore.getLocalValues();
+            float[] localCoefficients = termStore.getLocalCoefficients();
+
+            float value = -termStore.getTermConstants()[termIndex];
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                value += localCoefficients[i] * localValues[i];
+            }
+
+            switch (type) {
+                case HINGE_LOSS:
+                    return Math.max(0.0f, value);
+                case SQUARED_HINGE_LOSS:
+                    value = Math.max(0.0f, value);
+                    return value * value;
+                case LINEAR_LOSS:
+                    return value;
+                default:
+                    throw new IllegalStateException("Unexpected term type for a weighted ground rule: " + type);
+            }
+        }
+
+        /**
+         * Evaluate a term's ground rule through its function, with the term's local variables
+         * in place of the values of the random variable atoms.
+         */
+        private float evaluateFunctionAtLocals(int termIndex, WeightedGroundRule groundRule) {
+            GeneralFunction function = groundRule.getFunctionDefinition();
+            if (values.length < function.size()) {
+                values = new float[function.size()];
+            }
+
+            int[] termOffsets = termStore.getTermOffsets();
+            float[] localValues = termStore.getLocalValues();
+            int[] localGlobalIds = termStore.getLocalGlobalIds();
+
+            for (int i = 0; i < function.size(); i++) {
+                FunctionTerm term = function.getTerm(i);
+                values[i] = term.getValue();
+
+                if (!(term instanceof RandomVariableAtom)) {
+                    continue;
+                }
+
+                int globalId = termStore.lookupGlobalId((RandomVariableAtom)term);
+                for (int local = termOffsets[termIndex]; local < termOffsets[termIndex + 1]; local++) {
+                    if (localGlobalIds[local] == globalId) {
+                        values[i] = localValues[local];
+                        break;
+                    }
+                }
+            }
+
+            return function.getValue(values);
+        }
+    }
+
+    /**
+     * Optimizes whole (small) components, one component per job.
+     */
+    private class ComponentWorker extends Parallel.Worker<Integer> {
+        private ADMMTermStore termStore;
+        private TermComponents components;
+        private int firstComponent;
+        private int[] componentIterations;
+
+        // If present, each component's objective is pulled out of the accumulators.
+        // Otherwise, the objectives are left in the accumulators to be combined later.
+        private float[] componentObjectives;
+        private int[] componentViolatedConstraints;
+
+        public ComponentWorker(ADMMTermStore termStore, TermComponents components, int firstComponent, int[] componentIterations) {
+            this(termStore, components, firstComponent, componentIterations, null, null);
+        }
+
+        public ComponentWorker(ADMMTermStore termStore, TermComponents components, int firstComponent, int[] componentIterations,
+                float[] componentObjectives, int[] componentViolatedConstraints) {
+            super();
+            this.termStore = termStore;
+            this.components = components;
+            this.firstComponent = firstComponent;
+            this.componentIterations = componentIterations;
+            this.componentObjectives = componentObjectives;
+            this.componentViolatedConstraints = componentViolatedConstraints;
+        }
+
+        public Object clone() {
+            return new ComponentWorker(termStore, components, firstComponent, componentIterations,
+                    componentObjectives, componentViolatedConstraints);
+        }
+
+        @Override
+        public void work(int index, Integer ignore) {
+            int component = firstComponent + index;
+            componentIterations[index] = optimizeComponent(termStore,
+                    components.getTermStart(component), components.getTermEnd(component),
+                    components.getVariableStart(component), components.getVariableEnd(component),
+                    id);
+
+            if (componentObjectives != null) {
+                int offset = id * ACCUMULATOR_STRIDE;
+
+                componentObjectives[index] = residualAccumulators[offset + ACCUMULATOR_OBJECTIVE];
+                componentViolatedConstraints[index] = (int)residualAccumulators[offset + ACCUMULATOR_VIOLATED_CONSTRAINTS];
+
+                residualAccumulators[offset + ACCUMULATOR_OBJECTIVE] = 0.0f;
+                residualAccumulators[offset + ACCUMULATOR_VIOLATED_CONSTRAINTS] = 0.0f;
+            }
+        }
+    }
+
+    /**
+     * Threads for asynchronous ADMM.
+     * Each thread owns a static slice of the terms and variables and sweeps them over and over
+     * (terms then variables) without waiting on anyone.
+     * After each round, a thread publishes a copy of the residuals it computed in that round.
+     *
+     * The consensus and local values are plain float arrays shared between the threads without locks.
+     * Float reads and writes are atomic, so a thread may read another thread's values from an older round
+     * but never a torn value, and asynchronous ADMM only needs that staleness to be bounded.
+     * The bound comes from the round counters: a thread finishes writing a round before it sets its (volatile) counter,
+     * so a thread that has seen another's counter reach a round also sees all the values that round wrote.
+     * A thread that gets too far ahead blocks on roundLock until the slowest thread catches up (or the threads stop).
+     */
+    private class AsynchronousThreads {
+        private final Thread[] threads;
+        private final CountDownLatch finishLatch;
+
+        // The residuals (laid out like a slice of the accumulators) of each thread's latest round.
+        private final AtomicReferenceArray<float[]> publishedResiduals;
+        private final AtomicIntegerArray rounds;
+
+        // Notified whenever a round counter advances or the threads are told to stop.
+        private final Object roundLock;
+
+        private volatile boolean done;
+        private volatile Throwable exception;
+
+        public AsynchronousThreads(final ADMMTermStore termStore, final int numThreads,
+                final int firstTerm, final int lastTerm, final int firstVariable, final int lastVariable) {
+            threads = new Thread[numThreads];
+            finishLatch = new CountDownLatch(numThreads);
+            publishedResiduals = new AtomicReferenceArray<float[]>(numThreads);
+            rounds = new AtomicIntegerArray(numThreads);
+            roundLock = new Object();
+            done = false;
+            exception = null;
+
+            final int numTerms = lastTerm - firstTerm;
+            final int numVariables = lastVariable - firstVariable;
+
+            for (int i = 0; i < numThreads; i++) {
+                final int id = i;
+                final int termStart = firstTerm + (int)((long)numTerms * id / numThreads);
+                final int termEnd = firstTerm + (int)((long)numTerms * (id + 1) / numThreads);
+                final int variableStart = firstVariable + (int)((long)numVariables * id / numThreads);
+                final int variableEnd = firstVariable + (int)((long)numVariables * (id + 1) / numThreads);
+
+                threads[i] = new Thread("ADMM-async-" + id) {
+                    @Override
+                    public void run() {
+                        int offset = id * ACCUMULATOR_STRIDE;
+
+                        try {
+                            for (int round = 1; round <= maxIter && !done; round++) {
+                                // Do not get too far ahead of the slowest thread (see ASYNCHRONOUS_MAX_DELAY_KEY).
+                                awaitRound(round - 1 - asynchronousMaxDelay);
+
+                                minimizeTerms(termStore, termStart, termEnd, id, false);
+                                updateConsensus(termStore, variableStart, variableEnd, id);
+
+                                publishedResiduals.set(id, Arrays.copyOfRange(residualAccumulators, offset, offset + ACCUMULATOR_STRIDE));
+                                Arrays.fill(residualAccumulators, offset, offset + ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY + 1, 0.0f);
+
+                                rounds.set(id, round);
+                                notifyRound();
+                            }
+                        } catch (Throwable ex) {
+                            exception = ex;
+                            requestStop();
+                        } finally {
+                            finishLatch.countDown();
+                        }
+                    }
+                };
+
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        /**
+         * Block until every thread has completed the given round (or the threads are told to stop).
+         */
+        private void awaitRound(int round) throws InterruptedException {
+            if (done || getMinRound() >= round) {
+                return;
+            }
+
+            synchronized (roundLock) {
+                while (!done && getMinRound() < round) {
+                    roundLock.wait();
+                }
+            }
+        }
+
+        private void notifyRound() {
+            synchronized (roundLock) {
+                roundLock.notifyAll();
+            }
+        }
+
+        private void requestStop() {
+            done = true;
+            notifyRound();
+        }
+
+        /**
+         * If any thread has thrown (close() rethrows it).
+         */
+        public boolean hasFailed() {
+            return exception != null;
+        }
+
+        /**
+         * Wait up to the given time for all the threads to finish.
+         * @return true if all the threads have finished.
+         */
+        public boolean awaitFinish(long microseconds) {
+            try {
+                return finishLatch.await(microseconds, TimeUnit.MICROSECONDS);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("Interrupted waiting on asynchronous ADMM threads.", ex);
+            }
+        }
+
+        /**
+         * The number of rounds that every thread has completed.
+         */
+        public int getMinRound() {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < rounds.length(); i++) {
+                min = Math.min(min, rounds.get(i));
+            }
+            return min;
+        }
+
+        public int getMaxRound() {
+            int max = 0;
+            for (int i = 0; i < rounds.length(); i++) {
+                max = Math.max(max, rounds.get(i));
+            }
+            return max;
+        }
+
+        /**
+         * Combine each thread's latest published residuals into the iteration variables.
+         */
+        public void reduceIterationVariables() {
+            primalRes = 0.0f;
+            dualRes = 0.0f;
+            AxNorm = 0.0f;
+            AyNorm = 0.0f;
+            BzNorm = 0.0f;
+            lagrangePenalty = 0.0f;
+            augmentedLagrangePenalty = 0.0f;
+
+            for (int i = 0; i < publishedResiduals.length(); i++) {
+                float[] residuals = publishedResiduals.get(i);
+                if (residuals == null) {
+                    continue;
+                }
+
+                primalRes += residuals[ACCUMULATOR_PRIMAL_RES];
+                dualRes += residuals[ACCUMULATOR_DUAL_RES];
+                AxNorm += residuals[ACCUMULATOR_AX_NORM];
+                AyNorm += residuals[ACCUMULATOR_AY_NORM];
+                BzNorm += residuals[ACCUMULATOR_BZ_NORM];
+                lagrangePenalty += residuals[ACCUMULATOR_LAGRANGE_PENALTY];
+                augmentedLagrangePenalty += residuals[ACCUMULATOR_AUGMENTED_LAGRANGE_PENALTY];
+            }
+        }
 
-                if (variableIndex >= numVariables) {
-                    break;
+        /**
+         * Stop all the threads and wait for them to finish.
+         */
+        public void close() {
+            requestStop();
+
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException("Interrupted waiting for asynchronous ADMM thread to finish.", ex);
                 }
+            }
 
-                float total = 0.0f;
-                int numLocalVariables = termStore.getLocalVariables(variableIndex).size();
+            if (exception != null) {
+                throw new RuntimeException("Exception on asynchronous ADMM thread.", exception);
+            }
+        }
+    }
 
-                // First pass computes newConsensusValue and dual residual fom all local copies.
-                for (int localVarIndex = 0; localVarIndex < numLocalVariables; localVarIndex++) {
-                    LocalVariable localVariable = termStore.getLocalVariables(variableIndex).get(localVarIndex);
-                    total += localVariable.getValue() + localVariable.getLagrange() / stepSize;
+    /**
+     * A fixed set of threads that each own a static slice of a range of terms and variables.
+     * The calling thread releases all the threads for an iteration with sweep(),
+     * the threads minimize their terms, wait for each other, update their variables,
+     * and then meet the calling thread again.
+     * Threads live until close() is called.
+     */
+    private class SweepThreads {
+        private final Thread[] threads;
+
+        // Shared with the calling thread: marks the start and end of each sweep.
+        private final CyclicBarrier sweepBarrier;
+
+        // Only between the sweep threads: all terms must be minimized before any variable is updated.
+        private final CyclicBarrier phaseBarrier;
+
+        private volatile boolean done;
+        private volatile boolean computeObjective;
+        private volatile Throwable exception;
+
+        // When the last thread finished its terms in the latest sweep (System.nanoTime()).
+        private volatile long phaseTime;
+
+        /**
+         * Thread i minimizes the terms [termSlices[i], termSlices[i + 1])
+         * and updates the variables [variableSlices[i], variableSlices[i + 1]).
+         */
+        public SweepThreads(final ADMMTermStore termStore, int[] termSlices, int[] variableSlices) {
+            int numThreads = termSlices.length - 1;
+            if (variableSlices.length != termSlices.length) {
+                throw new IllegalArgumentException(String.format(
+                        "Need the same number of term (%d) and variable (%d) slices.", numThreads, variableSlices.length - 1));
+            }
 
-                    AxNormInc += localVariable.getValue() * localVariable.getValue();
-                    AyNormInc += localVariable.getLagrange() * localVariable.getLagrange();
+            threads = new Thread[numThreads];
+            sweepBarrier = new CyclicBarrier(numThreads + 1);
+            phaseBarrier = new CyclicBarrier(numThreads, new Runnable() {
+                @Override
+                public void run() {
+                    phaseTime = System.nanoTime();
                 }
+            });
+            done = false;
+            computeObjective = false;
+            exception = null;
+
+            for (int i = 0; i < numThreads; i++) {
+                final int id = i;
+                final int termStart = termSlices[i];
+                final int termEnd = termSlices[i + 1];
+                final int variableStart = variableSlices[i];
+                final int variableEnd = variableSlices[i + 1];
+
+                threads[i] = new Thread("ADMM-sweep-" + id) {
+                    @Override
+                    public void run() {
+                        while (true) {
+                            await(sweepBarrier);
+                            if (done) {
+                                return;
+                            }
+
+                            // Keep meeting the barriers even after a failure so that no one is left waiting.
+                            try {
+                                minimizeTerms(termStore, termStart, termEnd, id, computeObjective);
+                            } catch (Throwable ex) {
+                                exception = ex;
+                            }
+
+                            await(phaseBarrier);
+
+                            try {
+                                updateConsensus(termStore, variableStart, variableEnd, id);
+                            } catch (Throwable ex) {
+                                exception = ex;
+                            }
+
+                            await(sweepBarrier);
+                        }
+                    }
+                };
 
-                float newConsensusValue = total / numLocalVariables;
-                newConsensusValue = Math.max(Math.min(newConsensusValue, UPPER_BOUND), LOWER_BOUND);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
 
-                float diff = consensusValues[variableIndex] - newConsensusValue;
-                // Residual is diff^2 * number of local variables mapped to consensusValues element.
-                dualResInc += diff * diff * numLocalVariables;
-                BzNormInc += newConsensusValue * newConsensusValue * numLocalVariables;
+        /**
+         * Run one full iteration (term sweep then variable sweep) and wait for it to complete.
+         */
+        public void sweep(boolean computeObjective) {
+            this.computeObjective = computeObjective;
 
-                consensusValues[variableIndex] = newConsensusValue;
+            await(sweepBarrier);
+            await(sweepBarrier);
 
-                // Second pass computes primal residuals.
+            if (exception != null) {
+                throw new RuntimeException("Exception on ADMM sweep thread.", exception);
+            }
+        }
 
-                for (int localVarIndex = 0; localVarIndex < numLocalVariables; localVarIndex++) {
-                    LocalVariable localVariable = termStore.getLocalVariables(variableIndex).get(localVarIndex);
+        /**
+         * When the term phase of the last sweep ended (System.nanoTime()).
+         */
+        public long getPhaseTime() {
+            return phaseTime;
+        }
 
-                    diff = localVariable.getValue() - newConsensusValue;
-                    primalResInc += diff * diff;
+        public void close() {
+            // All the threads are waiting for the next sweep, release them to see that we are done.
+            done = true;
+            await(sweepBarrier);
 
-                    // compute Lagrangian penalties
-                    lagrangePenaltyInc += localVariable.getLagrange() * (localVariable.getValue() - consensusValues[variableIndex]);
-                    augmentedLagrangePenaltyInc += 0.5 * stepSize * Math.pow(localVariable.getValue() - consensusValues[variableIndex], 2);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException("Interrupted waiting for ADMM sweep thread to finish.", ex);
                 }
             }
+        }
 
-            updateIterationVariables(primalResInc, dualResInc, AxNormInc, BzNormInc, AyNormInc, lagrangePenaltyInc, augmentedLagrangePenaltyInc);
+        private void await(CyclicBarrier barrier) {
+            try {
+                barrier.await();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("Interrupted waiting on ADMM sweep barrier.", ex);
+            } catch (BrokenBarrierException ex) {
+                throw new RuntimeException("ADMM sweep barrier broken.", ex);
+            }
         }
     }
 }
@@ -0,0 +1,310 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A per-iteration convergence trace of ADMM optimizations.
+ * Each record has the run (the number of optimizations traced before it), the iteration,
+ * the primal and dual residuals and their thresholds, the step size,
+ * the objective and number of violated constraints (NaN and -1 when not computed that iteration),
+ * and the wall time (in nanoseconds) of the term phase, the variable phase, and the residual reduction
+ * (-1 for a phase that was not timed separately).
+ *
+ * Records are kept in primitive arrays. When a buffer fills up, it is handed to a background thread to write out
+ * while recording continues into a second buffer (like ADMMCheckpointer),
+ * so recording an iteration does no I/O. Recording only waits if the last full buffer is still being written
+ * when the next one fills up. flush() and close() wait for everything recorded so far to be written.
+ *
+ * CSV traces have a header row and one row per record.
+ * Binary traces are big-endian: a header (MAGIC and FORMAT_VERSION as ints) followed by fixed size records of
+ * int run, int iteration, float primal, float dual, float epsilon primal, float epsilon dual,
+ * float step size, float objective, int violated constraints, long term ns, long variable ns, long reduction ns.
+ */
+public class ADMMTrace {
+    public static enum Format {
+        CSV,
+        BINARY
+    }
+
+    public static final int MAGIC = 0x50534C54;
+    public static final int FORMAT_VERSION = 1;
+
+    public static final int RECORD_SIZE = 4 + 4 + 6 * 4 + 4 + 3 * 8;
+
+    public static final String CSV_HEADER =
+            "run,iteration,primal,dual,epsilon_primal,epsilon_dual,step_size,objective,violated_constraints,term_ns,variable_ns,reduction_ns";
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final String path;
+    private final Format format;
+
+    // Only used by the writer thread (and close(), once there is no writer).
+    private BufferedWriter csvOut;
+    private DataOutputStream binaryOut;
+
+    private int run;
+
+    // The buffer being recorded into, and the one that is (or was last) being written.
+    private Records filling;
+    private Records writing;
+
+    private Thread writer;
+    private volatile IOException writeFailure;
+
+    public ADMMTrace(String path, Format format) {
+        this(path, format, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize the number of records to hold before writing them out.
+     */
+    public ADMMTrace(String path, Format format, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Trace buffer size must be positive, got " + bufferSize + ".");
+        }
+
+        this.path = path;
+        this.format = format;
+
+        run = -1;
+
+        filling = new Records(bufferSize);
+        writing = new Records(bufferSize);
+        writer = null;
+        writeFailure = null;
+
+        try {
+            if (format == Format.CSV) {
+                csvOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8));
+                csvOut.write(CSV_HEADER);
+                csvOut.newLine();
+            } else {
+                binaryOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+                binaryOut.writeInt(MAGIC);
+                binaryOut.writeInt(FORMAT_VERSION);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to open trace " + path + ".", ex);
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Mark the start of a new optimization, all following records belong to it.
+     */
+    public void startRun() {
+        run++;
+    }
+
+    public void record(int iteration, float primalResidual, float dualResidual, float epsilonPrimal, float epsilonDual,
+            float stepSize, float objective, int violated, long termNS, long variableNS, long reductionNS) {
+        Records records = filling;
+        int size = records.size;
+
+        records.runs[size] = run;
+        records.iterations[size] = iteration;
+        records.primalResiduals[size] = primalResidual;
+        records.dualResiduals[size] = dualResidual;
+        records.epsilonPrimals[size] = epsilonPrimal;
+        records.epsilonDuals[size] = epsilonDual;
+        records.stepSizes[size] = stepSize;
+        records.objectives[size] = objective;
+        records.violatedConstraints[size] = violated;
+        records.termTimes[size] = termNS;
+        records.variableTimes[size] = variableNS;
+        records.reductionTimes[size] = reductionNS;
+        records.size++;
+
+        if (records.size == records.runs.length) {
+            startWrite();
+        }
+    }
+
+    /**
+     * Write out all the buffered records (and wait for them to be written).
+     */
+    public void flush() {
+        if (filling.size > 0) {
+            startWrite();
+        }
+
+        awaitWrite();
+    }
+
+    public void close() {
+        flush();
+
+        try {
+            if (csvOut != null) {
+                csvOut.close();
+                csvOut = null;
+            }
+
+            if (binaryOut != null) {
+                binaryOut.close();
+                binaryOut = null;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to close trace " + path + ".", ex);
+        }
+    }
+
+    /**
+     * Hand the filling buffer to a new writer thread and start filling the other one.
+     */
+    private void startWrite() {
+        // The other buffer has to be written out before it can be filled again.
+        awaitWrite();
+
+        final Records toWrite = filling;
+        filling = writing;
+        writing = toWrite;
+
+        writer = new Thread("ADMM-trace") {
+            @Override
+            public void run() {
+                try {
+                    if (format == Format.CSV) {
+                        writeCSV(toWrite);
+                        csvOut.flush();
+                    } else {
+                        writeBinary(toWrite);
+                        binaryOut.flush();
+                    }
+                } catch (IOException ex) {
+                    writeFailure = ex;
+                }
+
+                toWrite.size = 0;
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Wait for the writer (if there is one) to finish.
+     */
+    private void awaitWrite() {
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("Interrupted waiting for trace " + path + " to be written.", ex);
+            }
+
+            writer = null;
+        }
+
+        if (writeFailure != null) {
+            IOException ex = writeFailure;
+            writeFailure = null;
+            throw new RuntimeException("Failed to write trace " + path + ".", ex);
+        }
+    }
+
+    private void writeCSV(Records records) throws IOException {
+        StringBuilder row = new StringBuilder();
+        for (int i = 0; i < records.size; i++) {
+            row.setLength(0);
+            row.append(records.runs[i]).append(',')
+                    .append(records.iterations[i]).append(',')
+                    .append(records.primalResiduals[i]).append(',')
+                    .append(records.dualResiduals[i]).append(',')
+                    .append(records.epsilonPrimals[i]).append(',')
+                    .append(records.epsilonDuals[i]).append(',')
+                    .append(records.stepSizes[i]).append(',')
+                    .append(records.objectives[i]).append(',')
+                    .append(records.violatedConstraints[i]).append(',')
+                    .append(records.termTimes[i]).append(',')
+                    .append(records.variableTimes[i]).append(',')
+                    .append(records.reductionTimes[i]);
+
+            csvOut.write(row.toString());
+            csvOut.newLine();
+        }
+    }
+
+    private void writeBinary(Records records) throws IOException {
+        for (int i = 0; i < records.size; i++) {
+            binaryOut.writeInt(records.runs[i]);
+            binaryOut.writeInt(records.iterations[i]);
+            binaryOut.writeFloat(records.primalResiduals[i]);
+            binaryOut.writeFloat(records.dualResiduals[i]);
+            binaryOut.writeFloat(records.epsilonPrimals[i]);
+            binaryOut.writeFloat(records.epsilonDuals[i]);
+            binaryOut.writeFloat(records.stepSizes[i]);
+            binaryOut.writeFloat(records.objectives[i]);
+            binaryOut.writeInt(records.violatedConstraints[i]);
+            binaryOut.writeLong(records.termTimes[i]);
+            binaryOut.writeLong(records.variableTimes[i]);
+            binaryOut.writeLong(records.reductionTimes[i]);
+        }
+    }
+
+    /**
+     * One buffer of records.
+     */
+    private static class Records {
+        public int size;
+        public final int[] runs;
+        public final int[] iterations;
+        public final float[] primalResiduals;
+        public final float[] dualResiduals;
+        public final float[] epsilonPrimals;
+        public final float[] epsilonDuals;
+        public final float[] stepSizes;
+        public final float[] objectives;
+        public final int[] violatedConstraints;
+        public final long[] termTimes;
+        public final long[] variableTimes;
+        public final long[] reductionTimes;
+
+        public Records(int capacity) {
+            size = 0;
+            runs = new int[capacity];
+            iterations = new int[capacity];
+            primalResiduals = new float[capacity];
+            dualResiduals = new float[capacity];
+            epsilonPrimals = new float[capacity];
+            epsilonDuals = new float[capacity];
+            stepSizes = new float[capacity];
+            objectives = new float[capacity];
+            violatedConstraints = new int[capacity];
+            termTimes = new long[capacity];
+            variableTimes = new long[capacity];
+            reductionTimes = new long[capacity];
+        }
+    }
+}
@@ -22,28 +22,45 @@ import org.linqs.psl.reasoner.term.Term;
 
 /**
  * A term in the objective to be optimized by an ADMMReasoner.
+ *
+ * Terms are not stored as objects, all their data is packed into an ADMMTermStore.
+ * Instances of this class are lightweight views of a single term in a store
+ * and are created on demand by the store.
+ * The math for each type of term lives in the class for that type (e.g. HingeLossTerm).
  */
-public abstract class ADMMObjectiveTerm implements Term {
-    protected final GroundRule groundRule;
-    protected final LocalVariable[] variables;
-    protected final int size;
-
+public class ADMMObjectiveTerm implements Term {
     /**
-     * Caller releases control of |variables|.
+     * The different types of terms.
+     * The ordinal of the type is what gets packed into the term store.
      */
-    public ADMMObjectiveTerm(Hyperplane hyperplane, GroundRule groundRule) {
-        this.variables = hyperplane.getVariables();
-        this.size = hyperplane.size();
-        this.groundRule = groundRule;
+    public static enum TermType {
+        HINGE_LOSS,
+        LINEAR_LOSS,
+        SQUARED_HINGE_LOSS,
+        SQUARED_LINEAR_LOSS,
+        EQUALITY_CONSTRAINT,
+        SMALLER_THAN_CONSTRAINT,
+        LARGER_THAN_CONSTRAINT;
+
+        public boolean isConstraint() {
+            return this == EQUALITY_CONSTRAINT || this == SMALLER_THAN_CONSTRAINT || this == LARGER_THAN_CONSTRAINT;
+        }
+
+        public boolean isSquared() {
+            return this == SQUARED_HINGE_LOSS || this == SQUARED_LINEAR_LOSS;
+        }
+    }
+
+    private final ADMMTermStore termStore;
+    private final int index;
+
+    ADMMObjectiveTerm(ADMMTermStore termStore, int index) {
+        this.termStore = termStore;
+        this.index = index;
     }
 
     public void updateLagrange(float stepSize, float[] consensusValues) {
-        // Use index instead of iterator here so we can see clear results in the profiler.
-        // http://psy-lob-saw.blogspot.co.uk/2014/12/the-escape-of-arraylistiterator.html
-        for (int i = 0; i < size; i++) {
-            LocalVariable variable = variables[i];
-            variable.setLagrange(variable.getLagrange() + stepSize * (variable.getValue() - consensusValues[variable.getGlobalId()]));
-        }
+        termStore.updateLagrange(index, stepSize, consensusValues);
     }
 
     /**
@@ -51,31 +68,55 @@ public abstract class ADMMObjectiveTerm implements Term {
      * argmin f(x) + stepSize / 2 * \|x - z + y / stepSize \|_2^2 <br />
      * for the objective term f(x)
      */
-    public abstract void minimize(float stepSize, float[] consensusValues);
+    public void minimize(float stepSize, float[] consensusValues) {
+        termStore.minimize(index, stepSize, consensusValues);
+    }
+
+    public float evaluate() {
+        return termStore.evaluate(index);
+    }
+
+    ADMMTermStore getTermStore() {
+        return termStore;
+    }
+
+    /**
+     * Get the index of this term in its store.
+     */
+    public int getIndex() {
+        return index;
+    }
 
-    public abstract float evaluate();
+    public TermType getType() {
+        return termStore.getTermType(index);
+    }
+
+    public boolean isConstraint() {
+        return termStore.isConstraint(index);
+    }
 
     /**
-     * Get the variables used in this term.
-     * The caller should not modify the returned array, and should check size() for a reliable length.
+     * Get the index (in the term store) of the first local variable used in this term.
+     * The local variables for this term are [getLocalOffset(), getLocalOffset() + size()).
      */
-    public LocalVariable[] getVariables() {
-        return variables;
+    public int getLocalOffset() {
+        return termStore.getTermOffsets()[index];
     }
 
     /**
      * Get the number of variables in this term.
      */
     public int size() {
-        return size;
+        return termStore.getTermOffsets()[index + 1] - termStore.getTermOffsets()[index];
     }
 
     @Override
     public GroundRule getGroundRule() {
-        return groundRule;
+        return termStore.getGroundRule(index);
     }
 
     @Override
     public void weightChanged() {
+        termStore.updateWeight(index);
     }
 }
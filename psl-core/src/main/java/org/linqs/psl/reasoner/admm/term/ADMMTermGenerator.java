@@ -53,10 +53,30 @@ public class ADMMTermGenerator implements TermGenerator<ADMMObjectiveTerm> {
     public static final String INVERT_NEGATIVE_WEIGHTS_KEY = CONFIG_PREFIX + ".invertnegativeweights";
     public static final boolean INVERT_NEGATIVE_WEIGHTS_DEFAULT = false;
 
+    /**
+     * If true, then reorder the terms and variables for cache locality after generating terms
+     * (see ADMMTermStore.reorderForLocality()).
+     * Otherwise, terms and variables are in whatever order the ground rules were processed in.
+     */
+    public static final String REORDER_KEY = CONFIG_PREFIX + ".reorder";
+    public static final boolean REORDER_DEFAULT = false;
+
+    /**
+     * If true, then group the newly generated terms by type and size (see ADMMTermStore.groupTermTypes())
+     * so that the term sweep runs long batches of a single type.
+     * This is done after any reordering (see REORDER_KEY), and only moves the terms from this generation.
+     */
+    public static final String GROUP_TYPES_KEY = CONFIG_PREFIX + ".grouptypes";
+    public static final boolean GROUP_TYPES_DEFAULT = false;
+
     private boolean invertNegativeWeight;
+    private boolean reorder;
+    private boolean groupTypes;
 
     public ADMMTermGenerator() {
         invertNegativeWeight = Config.getBoolean(INVERT_NEGATIVE_WEIGHTS_KEY, INVERT_NEGATIVE_WEIGHTS_DEFAULT);
+        reorder = Config.getBoolean(REORDER_KEY, REORDER_DEFAULT);
+        groupTypes = Config.getBoolean(GROUP_TYPES_KEY, GROUP_TYPES_DEFAULT);
     }
 
     @Override
@@ -86,9 +106,19 @@ public class ADMMTermGenerator implements TermGenerator<ADMMObjectiveTerm> {
             }
         }
 
+        long startTime = System.currentTimeMillis();
+
+        // Each worker fills its own buffer, so no locks are taken while terms are built.
+        final TermBuffer[] buffers = new TermBuffer[Parallel.getNumThreads()];
+
         Parallel.foreach(ruleStore.getGroundRules(), new Parallel.Worker<GroundRule>() {
             @Override
             public void work(int index, GroundRule rule) {
+                if (buffers[id] == null) {
+                    buffers[id] = new TermBuffer();
+                }
+                TermBuffer buffer = buffers[id];
+
                 boolean negativeWeight =
                         rule instanceof WeightedGroundRule
                         && ((WeightedGroundRule)rule).getWeight() < 0.0;
@@ -101,20 +131,35 @@ public class ADMMTermGenerator implements TermGenerator<ADMMObjectiveTerm> {
 
                     // Negate (weight and expression) rules that have a negative weight.
                     for (GroundRule negatedRule : rule.negate()) {
-                        ADMMObjectiveTerm term = createTerm(negatedRule, (ADMMTermStore)termStore);
-                        if (term != null && term.size() > 0) {
-                            termStore.add(rule, term);
-                        }
+                        createTerm(negatedRule, buffer);
                     }
                 } else {
-                    ADMMObjectiveTerm term = createTerm(rule, (ADMMTermStore)termStore);
-                    if (term != null && term.size() > 0) {
-                        termStore.add(rule, term);
-                    }
+                    createTerm(rule, buffer);
                 }
             }
         });
 
+        long mergeStartTime = System.currentTimeMillis();
+
+        // Merge all the buffers in a single pass.
+        for (TermBuffer buffer : buffers) {
+            if (buffer != null) {
+                ((ADMMTermStore)termStore).addTerms(buffer);
+            }
+        }
+
+        log.debug("Generated {} terms on {} threads in {}ms ({}ms merging).",
+                termStore.size() - initialSize, buffers.length,
+                System.currentTimeMillis() - startTime, System.currentTimeMillis() - mergeStartTime);
+
+        if (reorder) {
+            ((ADMMTermStore)termStore).reorderForLocality();
+        }
+
+        if (groupTypes) {
+            ((ADMMTermStore)termStore).groupTermTypes(initialSize, termStore.size());
+        }
+
         return termStore.size() - initialSize;
     }
 
@@ -125,67 +170,72 @@ public class ADMMTermGenerator implements TermGenerator<ADMMObjectiveTerm> {
     }
 
     /**
-     * Processes a {@link GroundRule} to create a corresponding {@link ADMMObjectiveTerm}.
+     * Processes a {@link GroundRule} and puts a corresponding term into the buffer.
      *
      * @param groundRule  the GroundRule to be added to the ADMM objective
-     * @return the created ADMMObjectiveTerm or null if the term is trivial.
+     * @return true if a term was made, false if the term is trivial.
      */
-    private ADMMObjectiveTerm createTerm(GroundRule groundRule, ADMMTermStore termStore) {
-        ADMMObjectiveTerm term;
+    private boolean createTerm(GroundRule groundRule, TermBuffer buffer) {
+        ADMMObjectiveTerm.TermType type;
 
         if (groundRule instanceof WeightedGroundRule) {
             GeneralFunction function = ((WeightedGroundRule)groundRule).getFunctionDefinition();
-            Hyperplane hyperplane = processHyperplane(function, termStore);
-            if (hyperplane == null) {
-                return null;
+            if (!processHyperplane(function, buffer)) {
+                return false;
             }
 
             // Non-negative functions have a hinge.
             if (function.isNonNegative() && function.isSquared()) {
-                term = new SquaredHingeLossTerm(groundRule, hyperplane);
+                type = ADMMObjectiveTerm.TermType.SQUARED_HINGE_LOSS;
             } else if (function.isNonNegative() && !function.isSquared()) {
-                term = new HingeLossTerm(groundRule, hyperplane);
+                type = ADMMObjectiveTerm.TermType.HINGE_LOSS;
             } else if (!function.isNonNegative() && function.isSquared()) {
-                hyperplane.setConstant(0.0f);
-                term = new SquaredLinearLossTerm(groundRule, hyperplane);
+                buffer.setConstant(0.0f);
+                type = ADMMObjectiveTerm.TermType.SQUARED_LINEAR_LOSS;
             } else {
-                term = new LinearLossTerm(groundRule, hyperplane);
+                type = ADMMObjectiveTerm.TermType.LINEAR_LOSS;
             }
         } else if (groundRule instanceof UnweightedGroundRule) {
             ConstraintTerm constraint = ((UnweightedGroundRule)groundRule).getConstraintDefinition();
             GeneralFunction function = constraint.getFunction();
-            Hyperplane hyperplane = processHyperplane(function, termStore);
-            if (hyperplane == null) {
-                return null;
+            if (!processHyperplane(function, buffer)) {
+                return false;
             }
 
-            hyperplane.setConstant((float)(constraint.getValue() + hyperplane.getConstant()));
-            term = new LinearConstraintTerm(groundRule, hyperplane, constraint.getComparator());
+            buffer.setConstant((float)(constraint.getValue() + buffer.getConstant()));
+            type = LinearConstraintTerm.getType(constraint.getComparator());
         } else {
             throw new IllegalArgumentException("Unsupported ground rule: " + groundRule);
         }
 
-        return term;
+        if (buffer.pendingSize() == 0) {
+            buffer.abortTerm();
+            return false;
+        }
+
+        buffer.finishTerm(groundRule, type);
+        return true;
     }
 
     /**
-     * Construct a hyperplane from a general function.
-     * Will return null if the term is trivial and should be abandoned.
+     * Build the hyperplane for a general function as the buffer's pending term.
+     * Will return false (and abort the pending term) if the term is trivial and should be abandoned.
+     * The hyperplane references atoms, global and local variables are only allocated once the buffer is merged into a store.
      */
-    private Hyperplane processHyperplane(GeneralFunction sum, ADMMTermStore termStore) {
-        Hyperplane hyperplane = new Hyperplane(sum.size(), -1.0f * (float)sum.getConstant());
+    private boolean processHyperplane(GeneralFunction sum, TermBuffer buffer) {
+        buffer.startTerm(-1.0f * (float)sum.getConstant());
 
         for (int i = 0; i < sum.size(); i++) {
             float coefficient = (float)sum.getCoefficient(i);
             FunctionTerm term = sum.getTerm(i);
 
             if (term instanceof RandomVariableAtom) {
-                LocalVariable variable = termStore.createLocalVariable((RandomVariableAtom)term);
+                RandomVariableAtom variable = (RandomVariableAtom)term;
 
                 // Check to see if we have seen this variable before in this hyperplane.
                 // Note that we are checking for existence in a List (O(n)), but there are usually a small number of
                 // variables per hyperplane.
-                int localIndex = hyperplane.indexOfVariable(variable);
+                int localIndex = buffer.indexOfVariable(variable);
                 if (localIndex != -1) {
                     // If this function came from a logical rule
                     // and the sign of the current coefficient and the coefficient of this variable do not match,
@@ -193,23 +243,25 @@ public class ADMMTermGenerator implements TermGenerator<ADMMObjectiveTerm> {
                     // Recall that all logical rules are disjunctions with only +1 and -1 as coefficients.
                     // A mismatch in signs for the same variable means that a ground atom appeared twice,
                     // once as a positive atom and once as a negative atom: Foo('a') || !Foo('a').
-                    if (sum.isNonNegative() && !MathUtils.signsMatch(hyperplane.getCoefficient(localIndex), coefficient)) {
-                        return null;
+                    if (sum.isNonNegative() && !MathUtils.signsMatch(buffer.getCoefficient(localIndex), coefficient)) {
+                        buffer.abortTerm();
+                        return false;
                     }
 
                     // If the local variable already exists, just add to its coefficient.
-                    hyperplane.appendCoefficient(localIndex, coefficient);
+                    buffer.appendCoefficient(localIndex, coefficient);
                 } else {
-                    hyperplane.addTerm(variable, coefficient);
+                    buffer.addVariable(variable, coefficient);
                 }
             } else if (term.isConstant()) {
                 // Subtracts because hyperplane is stored as coeffs^T * x = constant.
-                hyperplane.setConstant(hyperplane.getConstant() - (float)(coefficient * term.getValue()));
+                buffer.setConstant(buffer.getConstant() - (float)(coefficient * term.getValue()));
             } else {
+                buffer.abortTerm();
                 throw new IllegalArgumentException("Unexpected summand: " + sum + "[" + i + "] (" + term + ").");
             }
         }
 
-        return hyperplane;
+        return true;
     }
 }
@@ -22,54 +22,134 @@ import org.linqs.psl.model.atom.RandomVariableAtom;
 import org.linqs.psl.model.rule.GroundRule;
 import org.linqs.psl.model.rule.WeightedGroundRule;
 import org.linqs.psl.reasoner.admm.ADMMReasoner;
-import org.linqs.psl.reasoner.term.MemoryTermStore;
 import org.linqs.psl.reasoner.term.TermStore;
 import org.linqs.psl.util.RandUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.List;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * A TermStore specifically for ADMM terms.
- * The actually terms will just be held in a standard TermStore (a MemoryTermStore if not specified).
- * This class will focus on keeping track of the variables in the terms.
+ *
+ * Neither terms nor local variables are held as objects.
+ * Instead, everything is packed into flat arrays (compressed sparse row style):
+ *  - Each term has a type, constant, weight, and a contiguous range of local variables.
+ *    The local variables for term i are [termOffsets[i], termOffsets[i + 1]).
+ *  - Each local variable has a value, lagrange multiplier, coefficient (in its term), and global variable.
+ * The ADMMObjectiveTerms handed out by this store are just views into these arrays.
+ * After terms are added, a compressed index from global variables to their local variables is built on demand.
  */
 public class ADMMTermStore implements TermStore<ADMMObjectiveTerm> {
     public static final String CONFIG_PREFIX = "admmmemorytermstore";
 
     /**
-     * Initial size for the memory store.
+     * The initial number of terms to allocate space for.
      */
-    public static final String INTERNAL_STORE_KEY = CONFIG_PREFIX + ".internalstore";
-    public static final String INTERNAL_STORE_DEFAULT = "org.linqs.psl.reasoner.term.MemoryTermStore";
+    public static final String INITIAL_TERM_CAPACITY_KEY = CONFIG_PREFIX + ".initialtermcapacity";
+    public static final int INITIAL_TERM_CAPACITY_DEFAULT = 5000;
+
+    /**
+     * The initial number of local variables to allocate space for.
+     */
+    public static final String INITIAL_LOCAL_CAPACITY_KEY = CONFIG_PREFIX + ".initiallocalcapacity";
+    public static final int INITIAL_LOCAL_CAPACITY_DEFAULT = 10000;
+
+    private static final ADMMObjectiveTerm.TermType[] TERM_TYPES = ADMMObjectiveTerm.TermType.values();
 
-    // Keep an internal store to hold the terms while this class focus on variables.
-    private TermStore<ADMMObjectiveTerm> store;
+    private static final long FINGERPRINT_OFFSET = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
 
-    private Map<RandomVariableAtom, Integer> variableIndexes;
+    // Atom index (see RandomVariableAtom.getIndex()) to global variable index, -1 if not registered.
+    private int[] atomGlobalIds;
 
-    // Global variable index to local variables.
-    private List<List<LocalVariable>> localVariables;
+    // Atoms that cannot use atomGlobalIds: they have no index,
+    // or their index is already taken by an atom from another database.
+    // Keyed by identity: atoms from different databases can be equal (same predicate and arguments)
+    // and still be different variables.
+    private Map<RandomVariableAtom, Integer> unindexedVariables;
+
+    // Global variable index to the atom that backs it.
+    private List<RandomVariableAtom> variables;
+
+    // Term index to its packed data.
+    // termOffsets has one more entry than the number of terms.
+    private int[] termOffsets;
+    private float[] termConstants;
+    private float[] termWeights;
+    private byte[] termTypes;
+    private GroundRule[] termRules;
+    private int numTerms;
+
+    // Local variable index to its value, lagrange multiplier, coefficient, and global variable.
+    private float[] localValues;
+    private float[] localLagranges;
+    private float[] localCoefficients;
+    private int[] localGlobalIds;
 
     /**
-     * The total number of all local variables (the sum of the sizes of each listin |localVariables|.
+     * The total number of all local variables (the used portion of the local arrays).
      */
     private int numLocalVariables;
 
-    @SuppressWarnings("unchecked")
+    // The local variables for global variable i are:
+    // globalLocalIndexes[globalLocalOffsets[i]] ... globalLocalIndexes[globalLocalOffsets[i + 1] - 1].
+    // Rebuilt whenever local variables have been added since the last build.
+    private int[] globalLocalOffsets;
+    private int[] globalLocalIndexes;
+    private boolean localIndexDirty;
+
+    // Bumped whenever the set of terms changes (or they are reordered).
+    private int structureVersion;
+
+    // The components from the last grouping, only valid while the structure version has not changed since.
+    private TermComponents components;
+    private int componentsVersion;
+
+    // Ground rule to the first of its terms, and each term to the next term from the same ground rule (-1 at the end).
+    // Built on demand and only valid while the structure version has not changed since.
+    private Map<GroundRule, Integer> ruleFirstTerms;
+    private int[] ruleNextTerms;
+    private int ruleIndexVersion;
+
     public ADMMTermStore() {
-        this((TermStore<ADMMObjectiveTerm>)Config.getNewObject(INTERNAL_STORE_KEY, INTERNAL_STORE_DEFAULT));
-    }
+        atomGlobalIds = new int[0];
+        unindexedVariables = new IdentityHashMap<RandomVariableAtom, Integer>();
+        variables = new ArrayList<RandomVariableAtom>();
+
+        int termCapacity = Config.getInt(INITIAL_TERM_CAPACITY_KEY, INITIAL_TERM_CAPACITY_DEFAULT);
+        termOffsets = new int[termCapacity + 1];
+        termConstants = new float[termCapacity];
+        termWeights = new float[termCapacity];
+        termTypes = new byte[termCapacity];
+        termRules = new GroundRule[termCapacity];
+        numTerms = 0;
 
-    public ADMMTermStore(TermStore<ADMMObjectiveTerm> store) {
-        this.store = store;
-        variableIndexes = new HashMap<RandomVariableAtom, Integer>();
-        localVariables = new ArrayList<List<LocalVariable>>();
+        int localCapacity = Config.getInt(INITIAL_LOCAL_CAPACITY_KEY, INITIAL_LOCAL_CAPACITY_DEFAULT);
+        localValues = new float[localCapacity];
+        localLagranges = new float[localCapacity];
+        localCoefficients = new float[localCapacity];
+        localGlobalIds = new int[localCapacity];
         numLocalVariables = 0;
+
+        globalLocalOffsets = new int[1];
+        globalLocalIndexes = new int[0];
+        localIndexDirty = false;
+        structureVersion = 0;
+
+        components = null;
+        componentsVersion = -1;
+
+        ruleFirstTerms = null;
+        ruleNextTerms = null;
+        ruleIndexVersion = -1;
     }
 
     /**
@@ -80,54 +160,515 @@ public class ADMMTermStore implements TermStore<ADMMObjectiveTerm> {
             return;
         }
 
-        ((ArrayList)localVariables).ensureCapacity(capacity);
+        ((ArrayList)variables).ensureCapacity(capacity);
+        ensureAtomIndexCapacity(capacity);
+    }
 
-        if (variableIndexes.size() == 0) {
-            // The default load factor for Java HashMaps is 0.75.
-            variableIndexes = new HashMap<RandomVariableAtom, Integer>((int)Math.ceil(capacity / 0.75));
+    private void ensureAtomIndexCapacity(int capacity) {
+        if (capacity <= atomGlobalIds.length) {
+            return;
         }
+
+        int oldLength = atomGlobalIds.length;
+        atomGlobalIds = Arrays.copyOf(atomGlobalIds, capacity);
+        Arrays.fill(atomGlobalIds, oldLength, capacity, -1);
     }
 
     /**
-     * Create a local variable and ensure that a global copy is registered.
+     * Make sure we allocate the right amount of memory for local variables.
      */
-    public synchronized LocalVariable createLocalVariable(RandomVariableAtom atom) {
-        numLocalVariables++;
+    public synchronized void ensureLocalVariableCapacity(int capacity) {
+        if (capacity <= localValues.length) {
+            return;
+        }
 
-        int globalId;
+        localValues = Arrays.copyOf(localValues, capacity);
+        localLagranges = Arrays.copyOf(localLagranges, capacity);
+        localCoefficients = Arrays.copyOf(localCoefficients, capacity);
+        localGlobalIds = Arrays.copyOf(localGlobalIds, capacity);
+    }
+
+    /**
+     * Get the global id for an atom.
+     * If the atom has not been seen before, then it will be registered as a new global variable.
+     */
+    public synchronized int getGlobalId(RandomVariableAtom atom) {
         // Check if the global copy has already been registered.
-        if (variableIndexes.containsKey(atom)) {
-            globalId = variableIndexes.get(atom).intValue();
-        } else {
-            // If the global copy has not been registered, register it and prep its local copies.
-            globalId = variableIndexes.size();
-            variableIndexes.put(atom, globalId);
-            localVariables.add(new ArrayList<LocalVariable>());
+        int globalId = lookupGlobalId(atom);
+        if (globalId != -1) {
+            return globalId;
+        }
+
+        // If the global copy has not been registered, register it.
+        int newId = variables.size();
+        variables.add(atom);
+
+        int index = atom.getIndex();
+        if (index >= 0) {
+            if (index >= atomGlobalIds.length) {
+                ensureAtomIndexCapacity(Math.max(atomGlobalIds.length * 2, index + 1));
+            }
+
+            if (atomGlobalIds[index] == -1) {
+                atomGlobalIds[index] = newId;
+                return newId;
+            }
+        }
+
+        unindexedVariables.put(atom, newId);
+        return newId;
+    }
+
+    /**
+     * Get the global id for an atom without registering it.
+     * @return the global id, or -1 if the atom has not been registered.
+     */
+    public int lookupGlobalId(RandomVariableAtom atom) {
+        int index = atom.getIndex();
+        if (index >= 0 && index < atomGlobalIds.length) {
+            int globalId = atomGlobalIds[index];
+            if (globalId != -1 && variables.get(globalId) == atom) {
+                return globalId;
+            }
+        }
+
+        if (unindexedVariables.isEmpty()) {
+            return -1;
+        }
+
+        Integer globalId = unindexedVariables.get(atom);
+        if (globalId == null) {
+            return -1;
+        }
+
+        return globalId.intValue();
+    }
+
+    /**
+     * Add all the terms from a buffer (in order), registering their atoms as global variables as needed.
+     * Meant to be called once per buffer after all the buffers have been filled,
+     * so the only synchronized work is this single pass.
+     */
+    public synchronized void addTerms(TermBuffer buffer) {
+        int numNewTerms = buffer.size();
+        int numNewLocals = buffer.getNumLocalVariables();
+
+        ensureCapacity(Math.max(termTypes.length, numTerms + numNewTerms));
+        if (numLocalVariables + numNewLocals > localValues.length) {
+            ensureLocalVariableCapacity(Math.max(localValues.length * 2, numLocalVariables + numNewLocals));
+        }
+
+        int[] bufferOffsets = buffer.getTermOffsets();
+        RandomVariableAtom[] bufferAtoms = buffer.getLocalAtoms();
+        float[] bufferCoefficients = buffer.getLocalCoefficients();
+
+        for (int i = 0; i < numNewTerms; i++) {
+            int termIndex = numTerms + i;
+            GroundRule groundRule = buffer.getGroundRule(i);
+
+            termConstants[termIndex] = buffer.getTermConstant(i);
+            termTypes[termIndex] = buffer.getTermType(i);
+            termRules[termIndex] = groundRule;
+            termWeights[termIndex] = 0.0f;
+            if (groundRule instanceof WeightedGroundRule) {
+                termWeights[termIndex] = (float)((WeightedGroundRule)groundRule).getWeight();
+            }
+
+            termOffsets[termIndex + 1] = termOffsets[termIndex] + (bufferOffsets[i + 1] - bufferOffsets[i]);
+        }
+
+        int localOffset = numLocalVariables;
+        for (int i = 0; i < numNewLocals; i++) {
+            localValues[localOffset + i] = 0.0f;
+            localLagranges[localOffset + i] = 0.0f;
+            localCoefficients[localOffset + i] = bufferCoefficients[i];
+            localGlobalIds[localOffset + i] = getGlobalId(bufferAtoms[i]);
+        }
+
+        numTerms += numNewTerms;
+        numLocalVariables += numNewLocals;
+        localIndexDirty = true;
+        structureVersion++;
+    }
+
+    /**
+     * Update the lagrange multipliers for a term's local variables.
+     */
+    public void updateLagrange(int termIndex, float stepSize, float[] consensusValues) {
+        for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+            localLagranges[i] += stepSize * (localValues[i] - consensusValues[localGlobalIds[i]]);
+        }
+    }
+
+    /**
+     * Minimize a single term (wrt its local variables).
+     * See ADMMObjectiveTerm.minimize().
+     */
+    public void minimize(int termIndex, float stepSize, float[] consensusValues) {
+        switch (TERM_TYPES[termTypes[termIndex]]) {
+            case HINGE_LOSS:
+                HingeLossTerm.minimize(this, termIndex, stepSize, consensusValues);
+                break;
+            case LINEAR_LOSS:
+                LinearLossTerm.minimize(this, termIndex, stepSize, consensusValues);
+                break;
+            case SQUARED_HINGE_LOSS:
+                SquaredHingeLossTerm.minimize(this, termIndex, stepSize, consensusValues);
+                break;
+            case SQUARED_LINEAR_LOSS:
+                SquaredLinearLossTerm.minimize(this, termIndex, stepSize, consensusValues);
+                break;
+            case EQUALITY_CONSTRAINT:
+            case SMALLER_THAN_CONSTRAINT:
+            case LARGER_THAN_CONSTRAINT:
+                LinearConstraintTerm.minimize(this, termIndex, stepSize, consensusValues);
+                break;
+            default:
+                throw new IllegalStateException("Unknown term type: " + TERM_TYPES[termTypes[termIndex]]);
+        }
+    }
+
+    /**
+     * Update the lagrange multipliers of (see updateLagrange()) and then minimize (see minimize())
+     * every term in [start, end).
+     * Each run of consecutive terms with the same type is handed to that type's batch loop,
+     * so the type is only dispatched once per run (see groupTermTypes() to make the runs as long as possible).
+     */
+    public void updateAndMinimize(int start, int end, float stepSize, float[] consensusValues) {
+        updateAndMinimize(start, end, stepSize, consensusValues, null);
+    }
+
+    /**
+     * The same as updateAndMinimize(int, int, float, float[]),
+     * but the terms marked in skip (indexed by term, may be null) are left alone.
+     */
+    public void updateAndMinimize(int start, int end, float stepSize, float[] consensusValues, boolean[] skip) {
+        int runStart = start;
+        while (runStart < end) {
+            byte type = termTypes[runStart];
+
+            int runEnd = runStart + 1;
+            while (runEnd < end && termTypes[runEnd] == type) {
+                runEnd++;
+            }
+
+            switch (TERM_TYPES[type]) {
+                case HINGE_LOSS:
+                    HingeLossTerm.minimize(this, runStart, runEnd, stepSize, consensusValues, skip);
+                    break;
+                case LINEAR_LOSS:
+                    LinearLossTerm.minimize(this, runStart, runEnd, stepSize, consensusValues, skip);
+                    break;
+                case SQUARED_HINGE_LOSS:
+                    SquaredHingeLossTerm.minimize(this, runStart, runEnd, stepSize, consensusValues, skip);
+                    break;
+                case SQUARED_LINEAR_LOSS:
+                    SquaredLinearLossTerm.minimize(this, runStart, runEnd, stepSize, consensusValues, skip);
+                    break;
+                case EQUALITY_CONSTRAINT:
+                case SMALLER_THAN_CONSTRAINT:
+                case LARGER_THAN_CONSTRAINT:
+                    LinearConstraintTerm.minimize(this, runStart, runEnd, stepSize, consensusValues, skip);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown term type: " + TERM_TYPES[type]);
+            }
+
+            runStart = runEnd;
+        }
+    }
+
+    /**
+     * Evaluate a single term at its local variables.
+     * See ADMMObjectiveTerm.evaluate().
+     */
+    public float evaluate(int termIndex) {
+        switch (TERM_TYPES[termTypes[termIndex]]) {
+            case HINGE_LOSS:
+                return HingeLossTerm.evaluate(this, termIndex);
+            case LINEAR_LOSS:
+                return LinearLossTerm.evaluate(this, termIndex);
+            case SQUARED_HINGE_LOSS:
+                return SquaredHingeLossTerm.evaluate(this, termIndex);
+            case SQUARED_LINEAR_LOSS:
+                return SquaredLinearLossTerm.evaluate(this, termIndex);
+            case EQUALITY_CONSTRAINT:
+            case SMALLER_THAN_CONSTRAINT:
+            case LARGER_THAN_CONSTRAINT:
+                return LinearConstraintTerm.evaluate(this, termIndex);
+            default:
+                throw new IllegalStateException("Unknown term type: " + TERM_TYPES[termTypes[termIndex]]);
+        }
+    }
+
+    /**
+     * Evaluate a single term at the consensus values (instead of its local variables).
+     * Constraints are evaluated with some tolerance, see LinearConstraintTerm.
+     */
+    public float evaluate(int termIndex, float[] consensusValues) {
+        switch (TERM_TYPES[termTypes[termIndex]]) {
+            case HINGE_LOSS:
+                return HingeLossTerm.evaluate(this, termIndex, consensusValues);
+            case LINEAR_LOSS:
+                return LinearLossTerm.evaluate(this, termIndex, consensusValues);
+            case SQUARED_HINGE_LOSS:
+                return SquaredHingeLossTerm.evaluate(this, termIndex, consensusValues);
+            case SQUARED_LINEAR_LOSS:
+                return SquaredLinearLossTerm.evaluate(this, termIndex, consensusValues);
+            case EQUALITY_CONSTRAINT:
+            case SMALLER_THAN_CONSTRAINT:
+            case LARGER_THAN_CONSTRAINT:
+                return LinearConstraintTerm.evaluate(this, termIndex, consensusValues);
+            default:
+                throw new IllegalStateException("Unknown term type: " + TERM_TYPES[termTypes[termIndex]]);
+        }
+    }
+
+    public ADMMObjectiveTerm.TermType getTermType(int termIndex) {
+        return TERM_TYPES[termTypes[termIndex]];
+    }
+
+    public boolean isConstraint(int termIndex) {
+        return TERM_TYPES[termTypes[termIndex]].isConstraint();
+    }
+
+    /**
+     * Get a number that changes whenever terms are added, reordered, or the store is cleared.
+     * The local variables (and any consensus values built on them) are only comparable
+     * between two points that saw the same version.
+     */
+    public int getStructureVersion() {
+        return structureVersion;
+    }
+
+    /**
+     * Get a hash of the whole packed problem: the global variables (by name), the terms, and their weights.
+     * Unlike getStructureVersion(), this is stable between runs (and JVMs), and does not depend on the order of the terms,
+     * so it can be used to check that saved local variables (e.g. an ADMMCheckpointer) still line up.
+     * Same as getCanonicalOrder().getFingerprint().
+     */
+    public long getFingerprint() {
+        return getCanonicalOrder().getFingerprint();
+    }
+
+    /**
+     * Get an order of the global and local variables that does not depend on the order the terms were added in
+     * (see CanonicalOrder).
+     * Assumes that the global variables have distinct names (as they do when the terms all come from one database).
+     */
+    public synchronized CanonicalOrder getCanonicalOrder() {
+        int numGlobals = variables.size();
+
+        final String[] names = new String[numGlobals];
+        Integer[] sortedVariables = new Integer[numGlobals];
+        for (int i = 0; i < numGlobals; i++) {
+            names[i] = variables.get(i).toString();
+            sortedVariables[i] = Integer.valueOf(i);
+        }
+
+        Arrays.sort(sortedVariables, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return names[a.intValue()].compareTo(names[b.intValue()]);
+            }
+        });
+
+        int[] variableOrder = new int[numGlobals];
+        final int[] variablePositions = new int[numGlobals];
+        for (int position = 0; position < numGlobals; position++) {
+            variableOrder[position] = sortedVariables[position].intValue();
+            variablePositions[variableOrder[position]] = position;
+        }
+
+        Integer[] sortedTerms = new Integer[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            sortedTerms[i] = Integer.valueOf(i);
         }
 
-        LocalVariable localVariable = new LocalVariable(globalId, (float)atom.getValue());
-        localVariables.get(globalId).add(localVariable);
+        Arrays.sort(sortedTerms, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return compareTerms(a.intValue(), b.intValue(), variablePositions);
+            }
+        });
+
+        int[] localOrder = new int[numLocalVariables];
+        int localPosition = 0;
+
+        long hash = FINGERPRINT_OFFSET;
+
+        hash = fingerprint(hash, numGlobals);
+        for (int position = 0; position < numGlobals; position++) {
+            hash = fingerprint(hash, names[variableOrder[position]].hashCode());
+        }
+
+        hash = fingerprint(hash, numTerms);
+        for (int position = 0; position < numTerms; position++) {
+            int termIndex = sortedTerms[position].intValue();
+
+            hash = fingerprint(hash, termTypes[termIndex]);
+            hash = fingerprint(hash, termOffsets[termIndex + 1] - termOffsets[termIndex]);
+            hash = fingerprint(hash, Float.floatToIntBits(termConstants[termIndex]));
+            hash = fingerprint(hash, Float.floatToIntBits(termWeights[termIndex]));
+
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                hash = fingerprint(hash, variablePositions[localGlobalIds[i]]);
+                hash = fingerprint(hash, Float.floatToIntBits(localCoefficients[i]));
+
+                localOrder[localPosition] = i;
+                localPosition++;
+            }
+        }
+
+        return new CanonicalOrder(variableOrder, localOrder, hash);
+    }
 
-        return localVariable;
+    /**
+     * Order two terms by their contents, with their global variables at the given positions.
+     */
+    private int compareTerms(int a, int b, int[] variablePositions) {
+        int comparison = Integer.compare(termTypes[a], termTypes[b]);
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        comparison = Integer.compare(Float.floatToIntBits(termWeights[a]), Float.floatToIntBits(termWeights[b]));
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        comparison = Integer.compare(Float.floatToIntBits(termConstants[a]), Float.floatToIntBits(termConstants[b]));
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        int sizeA = termOffsets[a + 1] - termOffsets[a];
+        int sizeB = termOffsets[b + 1] - termOffsets[b];
+        comparison = Integer.compare(sizeA, sizeB);
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        for (int i = 0; i < sizeA; i++) {
+            int localA = termOffsets[a] + i;
+            int localB = termOffsets[b] + i;
+
+            comparison = Integer.compare(variablePositions[localGlobalIds[localA]], variablePositions[localGlobalIds[localB]]);
+            if (comparison != 0) {
+                return comparison;
+            }
+
+            comparison = Integer.compare(Float.floatToIntBits(localCoefficients[localA]), Float.floatToIntBits(localCoefficients[localB]));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * One step of a 64 bit FNV-1a hash, over a whole int at a time.
+     */
+    private static long fingerprint(long hash, int value) {
+        return (hash ^ value) * FINGERPRINT_PRIME;
+    }
+
+    public GroundRule getGroundRule(int termIndex) {
+        return termRules[termIndex];
+    }
+
+    /**
+     * Get the offsets of each term's local variables.
+     * The local variables for term i are [offsets[i], offsets[i + 1]).
+     * Like all the packed arrays, this may be larger than needed
+     * and may be replaced when more terms are added.
+     */
+    public int[] getTermOffsets() {
+        return termOffsets;
     }
 
+    public float[] getTermConstants() {
+        return termConstants;
+    }
+
+    public float[] getTermWeights() {
+        return termWeights;
+    }
+
+
     public int getNumLocalVariables() {
         return numLocalVariables;
     }
 
     public int getNumGlobalVariables() {
-        return variableIndexes.size();
+        return variables.size();
+    }
+
+    /**
+     * Get the values of all local variables, indexed by local variable index.
+     * The returned array may be larger than getNumLocalVariables()
+     * and may be replaced when more local variables are created.
+     */
+    public float[] getLocalValues() {
+        return localValues;
+    }
+
+    /**
+     * Get the lagrange multipliers of all local variables, indexed by local variable index.
+     * Same semantics as getLocalValues().
+     */
+    public float[] getLocalLagranges() {
+        return localLagranges;
+    }
+
+    /**
+     * Get the coefficient (in its term) of all local variables, indexed by local variable index.
+     * Same semantics as getLocalValues().
+     */
+    public float[] getLocalCoefficients() {
+        return localCoefficients;
+    }
+
+    /**
+     * Get the global variable for all local variables, indexed by local variable index.
+     * Same semantics as getLocalValues().
+     */
+    public int[] getLocalGlobalIds() {
+        return localGlobalIds;
+    }
+
+    /**
+     * Get the offsets into getGlobalLocalIndexes() for each global variable.
+     * The local variables for global variable i are in the range [offsets[i], offsets[i + 1]).
+     * The returned array has getNumGlobalVariables() + 1 entries.
+     */
+    public int[] getGlobalLocalOffsets() {
+        ensureLocalIndex();
+        return globalLocalOffsets;
+    }
+
+    /**
+     * Get the local variable indexes grouped by global variable.
+     * See getGlobalLocalOffsets().
+     */
+    public int[] getGlobalLocalIndexes() {
+        ensureLocalIndex();
+        return globalLocalIndexes;
     }
 
-    public List<LocalVariable> getLocalVariables(int globalId) {
-        return localVariables.get(globalId);
+    /**
+     * Get the RVA that backs a global variable.
+     */
+    public RandomVariableAtom getGlobalVariable(int globalId) {
+        return variables.get(globalId);
     }
 
     /**
-     * Get the RVAs managed by this term store.
+     * Get the RVAs managed by this term store, indexed by global id.
      */
-    public Map<RandomVariableAtom, Integer> getGlobalVariables() {
-        return Collections.unmodifiableMap(variableIndexes);
+    public List<RandomVariableAtom> getGlobalVariables() {
+        return Collections.unmodifiableList(variables);
     }
 
     /**
@@ -135,8 +676,8 @@ public class ADMMTermStore implements TermStore<ADMMObjectiveTerm> {
      * The passed in values in indexed according to global id.
      */
     public void updateVariables(float[] values) {
-        for (Map.Entry<RandomVariableAtom, Integer> entry : variableIndexes.entrySet()) {
-            entry.getKey().setValue(values[entry.getValue().intValue()]);
+        for (int i = 0; i < variables.size(); i++) {
+            variables.get(i).setValue(values[i]);
         }
     }
 
@@ -145,8 +686,8 @@ public class ADMMTermStore implements TermStore<ADMMObjectiveTerm> {
      * variables and put them in the output array.
      */
     public void getAtomValues(float[] values) {
-        for (Map.Entry<RandomVariableAtom, Integer> entry : variableIndexes.entrySet()) {
-            values[entry.getValue().intValue()] = (float)entry.getKey().getValue();
+        for (int i = 0; i < variables.size(); i++) {
+            values[i] = (float)variables.get(i).getValue();
         }
     }
 
@@ -155,85 +696,728 @@ public class ADMMTermStore implements TermStore<ADMMObjectiveTerm> {
     }
 
     public void resetLocalVairables(ADMMReasoner.InitialValue initialValue) {
-        for (Map.Entry<RandomVariableAtom, Integer> entry : variableIndexes.entrySet()) {
-            for (LocalVariable local : localVariables.get(entry.getValue().intValue())) {
-                if (initialValue == ADMMReasoner.InitialValue.ZERO) {
-                    local.setValue(0.0f);
-                } else if (initialValue == ADMMReasoner.InitialValue.RANDOM) {
-                    local.setValue(RandUtils.nextFloat());
-                } else if (initialValue == ADMMReasoner.InitialValue.ATOM) {
-                    local.setValue((float)(entry.getKey().getValue()));
-                } else {
-                    throw new IllegalStateException("Unknown initial consensus value: " + initialValue);
+        for (int i = 0; i < numLocalVariables; i++) {
+            if (initialValue == ADMMReasoner.InitialValue.ZERO) {
+                localValues[i] = 0.0f;
+            } else if (initialValue == ADMMReasoner.InitialValue.RANDOM) {
+                localValues[i] = RandUtils.nextFloat();
+            } else if (initialValue == ADMMReasoner.InitialValue.ATOM) {
+                localValues[i] = (float)(variables.get(localGlobalIds[i]).getValue());
+            } else {
+                throw new IllegalStateException("Unknown initial consensus value: " + initialValue);
+            }
+
+            localLagranges[i] = 0.0f;
+        }
+    }
+
+    /**
+     * Build the global to local index if local variables have been added since it was last built.
+     */
+    private synchronized void ensureLocalIndex() {
+        if (!localIndexDirty && globalLocalOffsets.length == variables.size() + 1) {
+            return;
+        }
+
+        int numGlobalVariables = variables.size();
+
+        // Count the locals for each global, then turn the counts into offsets.
+        int[] offsets = new int[numGlobalVariables + 1];
+        for (int i = 0; i < numLocalVariables; i++) {
+            offsets[localGlobalIds[i] + 1]++;
+        }
+
+        for (int i = 0; i < numGlobalVariables; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        int[] indexes = new int[numLocalVariables];
+        int[] nextSlot = Arrays.copyOf(offsets, numGlobalVariables);
+        for (int i = 0; i < numLocalVariables; i++) {
+            indexes[nextSlot[localGlobalIds[i]]++] = i;
+        }
+
+        globalLocalOffsets = offsets;
+        globalLocalIndexes = indexes;
+        localIndexDirty = false;
+    }
+
+    /**
+     * Find the connected components of the terms and reorder the store so that
+     * each component is a contiguous range of terms and global variables (see TermComponents).
+     * The grouping is kept until the store is next restructured, so repeated calls are cheap.
+     * Reordering changes term indexes, global ids, and the structure version.
+     */
+    public synchronized TermComponents groupComponents() {
+        if (components != null && componentsVersion == structureVersion) {
+            return components;
+        }
+
+        int numGlobalVariables = variables.size();
+
+        // Union-find over the global variables, joining all the variables that share a term.
+        int[] parents = new int[numGlobalVariables];
+        for (int i = 0; i < numGlobalVariables; i++) {
+            parents[i] = i;
+        }
+
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            int start = termOffsets[termIndex];
+            for (int i = start + 1; i < termOffsets[termIndex + 1]; i++) {
+                int root = findRoot(parents, localGlobalIds[start]);
+                int otherRoot = findRoot(parents, localGlobalIds[i]);
+                if (root != otherRoot) {
+                    parents[otherRoot] = root;
                 }
+            }
+        }
+
+        // Number the components in the order they are first seen in the terms.
+        // Terms without any variables (which should not be made) are each their own component.
+        int[] rootComponents = new int[numGlobalVariables];
+        Arrays.fill(rootComponents, -1);
+
+        int[] termComponents = new int[numTerms];
+        int numComponents = 0;
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            if (termOffsets[termIndex] == termOffsets[termIndex + 1]) {
+                termComponents[termIndex] = numComponents++;
+                continue;
+            }
+
+            int root = findRoot(parents, localGlobalIds[termOffsets[termIndex]]);
+            if (rootComponents[root] == -1) {
+                rootComponents[root] = numComponents++;
+            }
+            termComponents[termIndex] = rootComponents[root];
+        }
+
+        final int[] componentTermCounts = new int[numComponents];
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            componentTermCounts[termComponents[termIndex]]++;
+        }
+
+        int[] variableComponents = new int[numGlobalVariables];
+        int[] componentVariableCounts = new int[numComponents];
+        for (int i = 0; i < numGlobalVariables; i++) {
+            variableComponents[i] = rootComponents[findRoot(parents, i)];
+            if (variableComponents[i] != -1) {
+                componentVariableCounts[variableComponents[i]]++;
+            }
+        }
+
+        // Largest components first.
+        Integer[] sortedComponents = new Integer[numComponents];
+        for (int i = 0; i < numComponents; i++) {
+            sortedComponents[i] = Integer.valueOf(i);
+        }
+
+        Arrays.sort(sortedComponents, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(componentTermCounts[b.intValue()], componentTermCounts[a.intValue()]);
+            }
+        });
+
+        int[] componentTermOffsets = new int[numComponents + 1];
+        int[] componentVariableOffsets = new int[numComponents + 1];
+        int[] componentRanks = new int[numComponents];
+        for (int rank = 0; rank < numComponents; rank++) {
+            int component = sortedComponents[rank].intValue();
+            componentRanks[component] = rank;
+            componentTermOffsets[rank + 1] = componentTermOffsets[rank] + componentTermCounts[component];
+            componentVariableOffsets[rank + 1] = componentVariableOffsets[rank] + componentVariableCounts[component];
+        }
+
+        // Place the terms and variables (keeping their relative order within a component).
+        int[] termOrder = new int[numTerms];
+        int[] nextTermSlot = Arrays.copyOf(componentTermOffsets, numComponents);
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            termOrder[nextTermSlot[componentRanks[termComponents[termIndex]]]++] = termIndex;
+        }
+
+        int[] variableOrder = new int[numGlobalVariables];
+        int[] nextVariableSlot = Arrays.copyOf(componentVariableOffsets, numComponents);
+        int nextUnusedSlot = componentVariableOffsets[numComponents];
+        for (int i = 0; i < numGlobalVariables; i++) {
+            if (variableComponents[i] == -1) {
+                variableOrder[nextUnusedSlot++] = i;
+            } else {
+                variableOrder[nextVariableSlot[componentRanks[variableComponents[i]]]++] = i;
+            }
+        }
+
+        reorder(termOrder, variableOrder);
+
+        components = new TermComponents(componentTermOffsets, componentVariableOffsets);
+        componentsVersion = structureVersion;
+        return components;
+    }
+
+    /**
+     * Reorder the terms in [start, end) so that terms of the same type (and then the same size) are next to each other,
+     * giving updateAndMinimize() long runs of a single type.
+     * Otherwise, the terms keep their relative order (so any locality ordering is kept within each type).
+     * Terms outside the range and the global variables do not move.
+     * Reordering changes term indexes and the structure version.
+     */
+    public synchronized void groupTermTypes(int start, int end) {
+        if (start < 0 || end > numTerms || start > end) {
+            throw new IllegalArgumentException(String.format(
+                    "Bad term range [%d, %d) for %d terms.", start, end, numTerms));
+        }
+
+        Integer[] sortedTerms = new Integer[end - start];
+        for (int i = 0; i < sortedTerms.length; i++) {
+            sortedTerms[i] = Integer.valueOf(start + i);
+        }
+
+        // Arrays.sort() is stable for objects.
+        Arrays.sort(sortedTerms, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = Byte.compare(termTypes[a.intValue()], termTypes[b.intValue()]);
+                if (result != 0) {
+                    return result;
+                }
+
+                return Integer.compare(
+                        termOffsets[a.intValue() + 1] - termOffsets[a.intValue()],
+                        termOffsets[b.intValue() + 1] - termOffsets[b.intValue()]);
+            }
+        });
+
+        int[] termOrder = new int[numTerms];
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            termOrder[termIndex] = termIndex;
+        }
+
+        for (int i = 0; i < sortedTerms.length; i++) {
+            termOrder[start + i] = sortedTerms[i].intValue();
+        }
+
+        int[] variableOrder = new int[variables.size()];
+        for (int i = 0; i < variableOrder.length; i++) {
+            variableOrder[i] = i;
+        }
+
+        reorder(termOrder, variableOrder);
+    }
+
+    /**
+     * Renumber the global variables and reorder the terms so that terms that share variables
+     * sit next to each other and use nearby global ids (reverse Cuthill-McKee over the term/variable graph).
+     * A breadth-first search from a low degree variable numbers variables (lowest degree neighbors first)
+     * and places each term when it is first reached, then both orders are reversed.
+     * Connected components come out contiguous, and grouping components later keeps this order within each one.
+     */
+    public synchronized void reorderForLocality() {
+        int numGlobalVariables = variables.size();
+        int[] globalOffsets = getGlobalLocalOffsets();
+        int[] globalIndexes = getGlobalLocalIndexes();
+
+        // Local variable to the term it belongs to.
+        int[] localTerms = new int[numLocalVariables];
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            Arrays.fill(localTerms, termOffsets[termIndex], termOffsets[termIndex + 1], termIndex);
+        }
+
+        // Start each search from the lowest degree variable that has not been reached yet.
+        long[] startKeys = new long[numGlobalVariables];
+        for (int i = 0; i < numGlobalVariables; i++) {
+            startKeys[i] = degreeKey(globalOffsets, i);
+        }
+        Arrays.sort(startKeys);
+
+        boolean[] variableVisited = new boolean[numGlobalVariables];
+        boolean[] termVisited = new boolean[numTerms];
+
+        // The variable order doubles as the search queue.
+        int[] variableOrder = new int[numGlobalVariables];
+        int[] termOrder = new int[numTerms];
+        int numPlacedVariables = 0;
+        int numPlacedTerms = 0;
+
+        long[] neighborKeys = new long[16];
+
+        for (long startKey : startKeys) {
+            int start = (int)startKey;
+            if (variableVisited[start]) {
+                continue;
+            }
+
+            variableVisited[start] = true;
+            int queueHead = numPlacedVariables;
+            variableOrder[numPlacedVariables++] = start;
+
+            while (queueHead < numPlacedVariables) {
+                int variable = variableOrder[queueHead++];
+
+                int numNeighbors = 0;
+                for (int i = globalOffsets[variable]; i < globalOffsets[variable + 1]; i++) {
+                    int termIndex = localTerms[globalIndexes[i]];
+                    if (termVisited[termIndex]) {
+                        continue;
+                    }
+
+                    termVisited[termIndex] = true;
+                    termOrder[numPlacedTerms++] = termIndex;
+
+                    for (int local = termOffsets[termIndex]; local < termOffsets[termIndex + 1]; local++) {
+                        int neighbor = localGlobalIds[local];
+                        if (variableVisited[neighbor]) {
+                            continue;
+                        }
+
+                        variableVisited[neighbor] = true;
+                        if (numNeighbors == neighborKeys.length) {
+                            neighborKeys = Arrays.copyOf(neighborKeys, neighborKeys.length * 2);
+                        }
+                        neighborKeys[numNeighbors++] = degreeKey(globalOffsets, neighbor);
+                    }
+                }
+
+                Arrays.sort(neighborKeys, 0, numNeighbors);
+                for (int i = 0; i < numNeighbors; i++) {
+                    variableOrder[numPlacedVariables++] = (int)neighborKeys[i];
+                }
+            }
+        }
+
+        // Terms without any variables are never reached.
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            if (!termVisited[termIndex]) {
+                termOrder[numPlacedTerms++] = termIndex;
+            }
+        }
+
+        reverse(variableOrder);
+        reverse(termOrder);
+
+        reorder(termOrder, variableOrder);
+    }
+
+    /**
+     * Statically assign the terms to partitions of the global variables.
+     * Partition p owns the global variables [variableOffsets[p], variableOffsets[p + 1]),
+     * and each term goes to the partition that owns the most of its variables (ties go to the lower partition).
+     * The terms are reordered (see reorder()) so that each partition's terms are contiguous
+     * and keep their relative order. The global variables are not moved.
+     * @return the term offsets: partition p gets the terms [offsets[p], offsets[p + 1]).
+     */
+    public synchronized int[] partitionTerms(int[] variableOffsets) {
+        int numPartitions = variableOffsets.length - 1;
+        if (numPartitions < 1 || variableOffsets[0] != 0 || variableOffsets[numPartitions] != variables.size()) {
+            throw new IllegalArgumentException("Variable offsets must cover all " + variables.size() + " global variables.");
+        }
+
+        int[] termPartitions = new int[numTerms];
+        int[] partitionSizes = new int[numPartitions];
+
+        // How many of the current term's variables each partition owns.
+        int[] ownedCounts = new int[numPartitions];
+
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            int owner = 0;
+            int ownerCount = 0;
+
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                int partition = findPartition(variableOffsets, localGlobalIds[i]);
+                int count = ++ownedCounts[partition];
+                if (count > ownerCount || (count == ownerCount && partition < owner)) {
+                    owner = partition;
+                    ownerCount = count;
+                }
+            }
+
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                ownedCounts[findPartition(variableOffsets, localGlobalIds[i])] = 0;
+            }
+
+            termPartitions[termIndex] = owner;
+            partitionSizes[owner]++;
+        }
+
+        int[] partitionOffsets = new int[numPartitions + 1];
+        for (int i = 0; i < numPartitions; i++) {
+            partitionOffsets[i + 1] = partitionOffsets[i] + partitionSizes[i];
+        }
+
+        int[] nextSlot = Arrays.copyOf(partitionOffsets, numPartitions);
+        int[] termOrder = new int[numTerms];
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            termOrder[nextSlot[termPartitions[termIndex]]++] = termIndex;
+        }
+
+        int[] variableOrder = new int[variables.size()];
+        for (int i = 0; i < variableOrder.length; i++) {
+            variableOrder[i] = i;
+        }
+
+        reorder(termOrder, variableOrder);
+
+        return partitionOffsets;
+    }
+
+    /**
+     * Find the partition that owns a global variable, see partitionTerms().
+     */
+    private static int findPartition(int[] variableOffsets, int globalId) {
+        int low = 0;
+        int high = variableOffsets.length - 2;
 
-                local.setLagrange(0.0f);
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (variableOffsets[middle] <= globalId) {
+                low = middle;
+            } else {
+                high = middle - 1;
             }
         }
+
+        return low;
+    }
+
+    /**
+     * A sort key that orders global variables by their number of local variables, then by id.
+     */
+    private static long degreeKey(int[] globalOffsets, int globalId) {
+        return ((long)(globalOffsets[globalId + 1] - globalOffsets[globalId]) << 32) | globalId;
+    }
+
+    private static void reverse(int[] values) {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+            int temp = values[i];
+            values[i] = values[j];
+            values[j] = temp;
+        }
     }
 
+    /**
+     * Permute the terms and global variables.
+     * The new term i is the old term termOrder[i] and the new global variable i is the old global variable variableOrder[i].
+     * Local variables move with their terms and keep their values and lagrange multipliers.
+     */
+    public synchronized void reorder(int[] termOrder, int[] variableOrder) {
+        int numGlobalVariables = variables.size();
+
+        if (termOrder.length != numTerms) {
+            throw new IllegalArgumentException(String.format(
+                    "Term order has %d entries, but there are %d terms.", termOrder.length, numTerms));
+        }
+
+        if (variableOrder.length != numGlobalVariables) {
+            throw new IllegalArgumentException(String.format(
+                    "Variable order has %d entries, but there are %d global variables.", variableOrder.length, numGlobalVariables));
+        }
+
+        int[] newGlobalIds = new int[numGlobalVariables];
+        Arrays.fill(newGlobalIds, -1);
+        List<RandomVariableAtom> newVariables = new ArrayList<RandomVariableAtom>(numGlobalVariables);
+        for (int i = 0; i < numGlobalVariables; i++) {
+            if (variableOrder[i] < 0 || variableOrder[i] >= numGlobalVariables || newGlobalIds[variableOrder[i]] != -1) {
+                throw new IllegalArgumentException("Variable order is not a permutation, bad entry: " + variableOrder[i]);
+            }
+
+            newGlobalIds[variableOrder[i]] = i;
+        }
+
+        boolean[] placed = new boolean[numTerms];
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            int oldIndex = termOrder[termIndex];
+            if (oldIndex < 0 || oldIndex >= numTerms || placed[oldIndex]) {
+                throw new IllegalArgumentException("Term order is not a permutation, bad entry: " + oldIndex);
+            }
+            placed[oldIndex] = true;
+        }
+
+        // Find which atoms are in the atom index before it starts changing.
+        boolean[] atomIndexed = new boolean[numGlobalVariables];
+        for (int i = 0; i < numGlobalVariables; i++) {
+            int index = variables.get(i).getIndex();
+            atomIndexed[i] = (index >= 0 && index < atomGlobalIds.length && atomGlobalIds[index] == i);
+        }
+
+        for (int i = 0; i < numGlobalVariables; i++) {
+            RandomVariableAtom atom = variables.get(variableOrder[i]);
+            newVariables.add(atom);
+
+            if (atomIndexed[variableOrder[i]]) {
+                atomGlobalIds[atom.getIndex()] = i;
+            } else {
+                unindexedVariables.put(atom, Integer.valueOf(i));
+            }
+        }
+        variables = newVariables;
+
+        int[] newTermOffsets = new int[termOffsets.length];
+        float[] newTermConstants = new float[termConstants.length];
+        float[] newTermWeights = new float[termWeights.length];
+        byte[] newTermTypes = new byte[termTypes.length];
+        GroundRule[] newTermRules = new GroundRule[termRules.length];
+
+        float[] newLocalValues = new float[localValues.length];
+        float[] newLocalLagranges = new float[localLagranges.length];
+        float[] newLocalCoefficients = new float[localCoefficients.length];
+        int[] newLocalGlobalIds = new int[localGlobalIds.length];
+
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            int oldIndex = termOrder[termIndex];
+
+            newTermConstants[termIndex] = termConstants[oldIndex];
+            newTermWeights[termIndex] = termWeights[oldIndex];
+            newTermTypes[termIndex] = termTypes[oldIndex];
+            newTermRules[termIndex] = termRules[oldIndex];
+
+            int offset = newTermOffsets[termIndex];
+            int oldStart = termOffsets[oldIndex];
+            int size = termOffsets[oldIndex + 1] - oldStart;
+
+            System.arraycopy(localValues, oldStart, newLocalValues, offset, size);
+            System.arraycopy(localLagranges, oldStart, newLocalLagranges, offset, size);
+            System.arraycopy(localCoefficients, oldStart, newLocalCoefficients, offset, size);
+            for (int i = 0; i < size; i++) {
+                newLocalGlobalIds[offset + i] = newGlobalIds[localGlobalIds[oldStart + i]];
+            }
+
+            newTermOffsets[termIndex + 1] = offset + size;
+        }
+
+        termOffsets = newTermOffsets;
+        termConstants = newTermConstants;
+        termWeights = newTermWeights;
+        termTypes = newTermTypes;
+        termRules = newTermRules;
+
+        localValues = newLocalValues;
+        localLagranges = newLocalLagranges;
+        localCoefficients = newLocalCoefficients;
+        localGlobalIds = newLocalGlobalIds;
+
+        localIndexDirty = true;
+        structureVersion++;
+    }
+
+    private static int findRoot(int[] parents, int node) {
+        while (parents[node] != node) {
+            // Path halving.
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+
+        return node;
+    }
+
+    /**
+     * Refresh the weight of a single term from its ground rule.
+     */
+    public void updateWeight(int termIndex) {
+        if (termRules[termIndex] instanceof WeightedGroundRule) {
+            termWeights[termIndex] = (float)((WeightedGroundRule)termRules[termIndex]).getWeight();
+        }
+    }
+
+    /**
+     * Add a copy of a term (a view into this or another store) that belongs to the given ground rule.
+     * The copy goes through a TermBuffer and addTerms() like all other terms,
+     * so its atoms are registered as needed and its local variables start at zero.
+     */
     @Override
     public void add(GroundRule rule, ADMMObjectiveTerm term) {
-        store.add(rule, term);
+        TermBuffer buffer = new TermBuffer();
+        term.getTermStore().bufferTerm(term.getIndex(), rule, buffer);
+        addTerms(buffer);
+    }
+
+    /**
+     * Copy a term into a buffer (with its variables as atoms), giving it the given ground rule.
+     */
+    void bufferTerm(int termIndex, GroundRule groundRule, TermBuffer buffer) {
+        buffer.startTerm(termConstants[termIndex]);
+        for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+            buffer.addVariable(variables.get(localGlobalIds[i]), localCoefficients[i]);
+        }
+        buffer.finishTerm(groundRule, TERM_TYPES[termTypes[termIndex]]);
     }
 
     @Override
     public void clear() {
-        if (store != null) {
-            store.clear();
+        if (variables != null) {
+            for (RandomVariableAtom atom : variables) {
+                int index = atom.getIndex();
+                if (index >= 0 && index < atomGlobalIds.length) {
+                    atomGlobalIds[index] = -1;
+                }
+            }
+
+            variables.clear();
         }
 
-        if (variableIndexes != null) {
-            variableIndexes.clear();
+        if (unindexedVariables != null) {
+            unindexedVariables.clear();
         }
 
-        if (localVariables != null) {
-            localVariables.clear();
+        if (termRules != null) {
+            Arrays.fill(termRules, 0, numTerms, null);
         }
 
+        numTerms = 0;
         numLocalVariables = 0;
+        structureVersion++;
+        components = null;
+        ruleFirstTerms = null;
+        ruleNextTerms = null;
+
+        globalLocalOffsets = new int[1];
+        globalLocalIndexes = new int[0];
+        localIndexDirty = false;
     }
 
     @Override
     public void close() {
         clear();
 
-        if (store != null) {
-            store.close();
-            store = null;
-        }
+        atomGlobalIds = null;
+        unindexedVariables = null;
+        variables = null;
+
+        termOffsets = null;
+        termConstants = null;
+        termWeights = null;
+        termTypes = null;
+        termRules = null;
 
-        variableIndexes = null;
-        localVariables = null;
+        localValues = null;
+        localLagranges = null;
+        localCoefficients = null;
+        localGlobalIds = null;
+        globalLocalOffsets = null;
+        globalLocalIndexes = null;
     }
 
     @Override
     public ADMMObjectiveTerm get(int index) {
-        return store.get(index);
+        if (index < 0 || index >= numTerms) {
+            throw new IndexOutOfBoundsException("Tried to access term at index " + index + ", but only " + numTerms + " exist.");
+        }
+
+        return new ADMMObjectiveTerm(this, index);
     }
 
     @Override
     public int size() {
-        return store.size();
+        return numTerms;
     }
 
     @Override
-    public void ensureCapacity(int capacity) {
-        store.ensureCapacity(capacity);
+    public synchronized void ensureCapacity(int capacity) {
+        assert(capacity >= 0);
+
+        if (capacity <= termTypes.length) {
+            return;
+        }
+
+        termOffsets = Arrays.copyOf(termOffsets, capacity + 1);
+        termConstants = Arrays.copyOf(termConstants, capacity);
+        termWeights = Arrays.copyOf(termWeights, capacity);
+        termTypes = Arrays.copyOf(termTypes, capacity);
+        termRules = Arrays.copyOf(termRules, capacity);
     }
 
     @Override
     public Iterator<ADMMObjectiveTerm> iterator() {
-        return store.iterator();
+        return new Iterator<ADMMObjectiveTerm>() {
+            private int nextIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return nextIndex < numTerms;
+            }
+
+            @Override
+            public ADMMObjectiveTerm next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return new ADMMObjectiveTerm(ADMMTermStore.this, nextIndex++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
+    /**
+     * O(n)
+     */
     @Override
     public void updateWeights() {
-        store.updateWeights();
+        for (int i = 0; i < numTerms; i++) {
+            updateWeight(i);
+        }
     }
 
+    /**
+     * O(1) (after an O(n) index build the first time the terms are looked up by ground rule).
+     */
     @Override
     public Iterable<ADMMObjectiveTerm> getTerms(GroundRule groundRule) {
-        return store.getTerms(groundRule);
+        List<ADMMObjectiveTerm> terms = new ArrayList<ADMMObjectiveTerm>(1);
+        for (int i = getFirstTermIndex(groundRule); i != -1; i = getNextTermIndex(i)) {
+            terms.add(new ADMMObjectiveTerm(this, i));
+        }
+
+        return terms;
+    }
+
+    /**
+     * Get the index of the first term made from a ground rule.
+     * The rest of the rule's terms can be found with getNextTermIndex().
+     * @return the term index, or -1 if the rule has no terms.
+     */
+    public int getFirstTermIndex(GroundRule groundRule) {
+        ensureRuleIndex();
+
+        Integer termIndex = ruleFirstTerms.get(groundRule);
+        if (termIndex == null) {
+            return -1;
+        }
+
+        return termIndex.intValue();
+    }
+
+    /**
+     * Get the index of the next term that was made from the same ground rule as the given term.
+     * @return the term index, or -1 if there are no more terms for the rule.
+     */
+    public int getNextTermIndex(int termIndex) {
+        ensureRuleIndex();
+        return ruleNextTerms[termIndex];
+    }
+
+    /**
+     * Build the ground rule to term index if the terms have changed since it was last built.
+     * Built back to front so that each chain is in term order.
+     */
+    private synchronized void ensureRuleIndex() {
+        if (ruleFirstTerms != null && ruleIndexVersion == structureVersion) {
+            return;
+        }
+
+        // The default load factor for Java HashMaps is 0.75.
+        Map<GroundRule, Integer> firstTerms = new HashMap<GroundRule, Integer>((int)Math.ceil(numTerms / 0.75) + 1);
+        int[] nextTerms = new int[numTerms];
+
+        for (int i = numTerms - 1; i >= 0; i--) {
+            Integer next = firstTerms.put(termRules[i], Integer.valueOf(i));
+            nextTerms[i] = (next == null) ? -1 : next.intValue();
+        }
+
+        ruleNextTerms = nextTerms;
+        ruleFirstTerms = firstTerms;
+        ruleIndexVersion = structureVersion;
     }
 }
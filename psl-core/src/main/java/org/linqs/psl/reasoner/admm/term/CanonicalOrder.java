@@ -0,0 +1,71 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm.term;
+
+/**
+ * An order of the global and local variables of an ADMMTermStore (see ADMMTermStore.getCanonicalOrder())
+ * that does not depend on the order the terms were added in,
+ * which changes between runs when grounding is done in parallel.
+ *
+ * The global variables are ordered by name.
+ * The terms are ordered by their contents (type, weight, constant,
+ * and the position and coefficient of each of their local variables),
+ * and the local variables are ordered by term (keeping each term's own order).
+ * Position i in this order is global variable getVariable(i) (or local variable getLocalVariable(i)) in the store.
+ * Terms with the same contents are interchangeable, so it does not matter how they are ordered among themselves.
+ *
+ * The fingerprint hashes the problem in this order,
+ * so the same problem has the same fingerprint in every run (and JVM).
+ */
+public class CanonicalOrder {
+    private final int[] variables;
+    private final int[] localVariables;
+    private final long fingerprint;
+
+    public CanonicalOrder(int[] variables, int[] localVariables, long fingerprint) {
+        this.variables = variables;
+        this.localVariables = localVariables;
+        this.fingerprint = fingerprint;
+    }
+
+    public int getNumVariables() {
+        return variables.length;
+    }
+
+    /**
+     * The index in the store of the global variable at this position.
+     */
+    public int getVariable(int position) {
+        return variables[position];
+    }
+
+    public int getNumLocalVariables() {
+        return localVariables.length;
+    }
+
+    /**
+     * The index in the store of the local variable at this position.
+     */
+    public int getLocalVariable(int position) {
+        return localVariables[position];
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+}
@@ -17,67 +17,138 @@
  */
 package org.linqs.psl.reasoner.admm.term;
 
-import org.linqs.psl.reasoner.term.WeightedTerm;
-import org.linqs.psl.model.rule.GroundRule;
-import org.linqs.psl.model.rule.WeightedGroundRule;
-
 /**
  * ADMMReasoner objective term of the form <br />
  * weight * max(coefficients^T * x - constant, 0)
  *
  * All coefficients must be non-zero.
  */
-public class HingeLossTerm extends HyperplaneTerm implements WeightedTerm {
-    public HingeLossTerm(GroundRule groundRule, Hyperplane hyperplane) {
-        super(groundRule, hyperplane);
+public final class HingeLossTerm {
+    // Static only.
+    private HingeLossTerm() {}
+
+    /**
+     * Minimize a single term (without updating its lagrange multipliers), see ADMMTermStore.minimize().
+     */
+    static void minimize(ADMMTermStore termStore, int termIndex, float stepSize, float[] consensusValues) {
+        minimize(termStore, termIndex, termIndex + 1, stepSize, consensusValues, null, false);
     }
 
-    @Override
-    public void minimize(float stepSize, float[] consensusValues) {
-        float weight = (float)((WeightedGroundRule)groundRule).getWeight();
-        float total = 0.0f;
-
-        // Minimizes without the linear loss, i.e., solves
-        // argmin stepSize/2 * \|x - z + y / stepSize \|_2^2
-        for (int i = 0; i < size; i++) {
-            LocalVariable variable = variables[i];
-            variable.setValue(consensusValues[variable.getGlobalId()] - variable.getLagrange() / stepSize);
-            total += (coefficients[i] * variable.getValue());
-        }
+    /**
+     * Update the lagrange multipliers of and then minimize every term in [termStart, termEnd), which must all be hinge-losses.
+     * The same as ADMMTermStore.updateLagrange() and then minimize() on each term,
+     * but with the arrays loaded once and the lagrange update fused into the minimization.
+     * Two variable terms (most logical rules) take an unrolled path.
+     * Terms marked in skip (indexed by term, may be null) are left alone.
+     */
+    static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip) {
+        minimize(termStore, termStart, termEnd, stepSize, consensusValues, skip, true);
+    }
 
-        // If the linear loss is NOT active at the computed point, it is the solution...
-        if (total <= constant) {
-            return;
-        }
+    /**
+     * The hinge-loss minimization for every term in [termStart, termEnd),
+     * with or without updating the lagrange multipliers first.
+     * Minimizes without the linear loss (argmin stepSize/2 * \|x - z + y / stepSize \|_2^2) and keeps that if the loss is not active,
+     * else minimizes with the linear loss (argmin weight * coefficients^T * x + stepSize/2 * \|x - z + y / stepSize \|_2^2)
+     * and keeps that if the loss is active, else the solution is on the hinge.
+     */
+    private static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip, boolean updateLagranges) {
+        float[] values = termStore.getLocalValues();
+        float[] lagranges = termStore.getLocalLagranges();
+        float[] coefficients = termStore.getLocalCoefficients();
+        int[] globalIds = termStore.getLocalGlobalIds();
+        int[] offsets = termStore.getTermOffsets();
+        float[] constants = termStore.getTermConstants();
+        float[] weights = termStore.getTermWeights();
 
-        // Else, minimizes with the linear loss, i.e., solves
-        // argmin weight * coefficients^T * x + stepSize/2 * \|x - z + y / stepSize \|_2^2
-        total = 0.0f;
-        for (int i = 0; i < size; i++) {
-            LocalVariable variable = variables[i];
+        for (int termIndex = termStart; termIndex < termEnd; termIndex++) {
+            if (skip != null && skip[termIndex]) {
+                continue;
+            }
 
-            // TODO(eriq): We just took this step above. Is ADMM accidentally taking two steps?
-            variable.setValue(consensusValues[variable.getGlobalId()] - variable.getLagrange() / stepSize);
-            variable.setValue(variable.getValue() - weight * coefficients[i] / stepSize);
+            int start = offsets[termIndex];
+            int end = offsets[termIndex + 1];
+            float constant = constants[termIndex];
+            float weight = weights[termIndex];
 
-            total += coefficients[i] * variable.getValue();
-        }
+            if (end - start == 2) {
+                float z0 = consensusValues[globalIds[start]];
+                float z1 = consensusValues[globalIds[start + 1]];
+                float coefficient0 = coefficients[start];
+                float coefficient1 = coefficients[start + 1];
 
-        // If the linear loss IS active at the computed point, it is the solution...
-        if (total >= constant) {
-            return;
-        }
+                float lagrange0 = lagranges[start];
+                float lagrange1 = lagranges[start + 1];
+                if (updateLagranges) {
+                    lagrange0 += stepSize * (values[start] - z0);
+                    lagrange1 += stepSize * (values[start + 1] - z1);
+                    lagranges[start] = lagrange0;
+                    lagranges[start + 1] = lagrange1;
+                }
 
-        // Else, the solution is on the hinge.
-        project(stepSize, consensusValues);
+                float x0 = z0 - lagrange0 / stepSize;
+                float x1 = z1 - lagrange1 / stepSize;
+
+                if (coefficient0 * x0 + coefficient1 * x1 <= constant) {
+                    values[start] = x0;
+                    values[start + 1] = x1;
+                    continue;
+                }
+
+                x0 = x0 - weight * coefficient0 / stepSize;
+                x1 = x1 - weight * coefficient1 / stepSize;
+
+                if (coefficient0 * x0 + coefficient1 * x1 >= constant) {
+                    values[start] = x0;
+                    values[start + 1] = x1;
+                    continue;
+                }
+
+                HyperplaneTerm.project(termStore, termIndex, stepSize, consensusValues);
+                continue;
+            }
+
+            float total = 0.0f;
+            for (int i = start; i < end; i++) {
+                float consensus = consensusValues[globalIds[i]];
+                if (updateLagranges) {
+                    lagranges[i] += stepSize * (values[i] - consensus);
+                }
+
+                values[i] = consensus - lagranges[i] / stepSize;
+                total += coefficients[i] * values[i];
+            }
+
+            if (total <= constant) {
+                continue;
+            }
+
+            total = 0.0f;
+            for (int i = start; i < end; i++) {
+                values[i] = values[i] - weight * coefficients[i] / stepSize;
+                total += coefficients[i] * values[i];
+            }
+
+            if (total >= constant) {
+                continue;
+            }
+
+            HyperplaneTerm.project(termStore, termIndex, stepSize, consensusValues);
+        }
     }
 
     /**
      * weight * max(coefficients^T * x - constant, 0)
      */
-    @Override
-    public float evaluate() {
-        float weight = (float)((WeightedGroundRule)groundRule).getWeight();
-        return weight * Math.max(super.evaluate(), 0.0f);
+    static float evaluate(ADMMTermStore termStore, int termIndex) {
+        float weight = termStore.getTermWeights()[termIndex];
+        return weight * Math.max(HyperplaneTerm.evaluate(termStore, termIndex), 0.0f);
+    }
+
+    static float evaluate(ADMMTermStore termStore, int termIndex, float[] consensusValues) {
+        float weight = termStore.getTermWeights()[termIndex];
+        return weight * Math.max(HyperplaneTerm.evaluate(termStore, termIndex, consensusValues), 0.0f);
     }
 }
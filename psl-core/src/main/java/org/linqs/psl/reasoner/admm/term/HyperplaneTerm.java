@@ -17,46 +17,17 @@
  */
 package org.linqs.psl.reasoner.admm.term;
 
-import org.linqs.psl.model.rule.GroundRule;
-
 /**
- * Objective term for an ADMMReasoner that is based on a hyperplane in some way.
+ * Math for ADMMReasoner objective terms that are based on a hyperplane in some way.
  *
- * Stores the characterization of the hyperplane as coefficients^T * x = constant
- * and projects onto the hyperplane.
+ * The hyperplane is characterized as coefficients^T * x = constant,
+ * where the coefficients and constant are packed in the ADMMTermStore.
  *
  * All coefficients must be non-zero.
  */
-public abstract class HyperplaneTerm extends ADMMObjectiveTerm {
-    protected final float[] coefficients;
-    protected final float[] unitNormal;
-    protected final float constant;
-    // Only allocate once.
-    protected final float[] point;
-
-    public HyperplaneTerm(GroundRule groundRule, Hyperplane hyperplane) {
-        super(hyperplane, groundRule);
-
-        this.coefficients = hyperplane.getCoefficients();
-        this.constant = hyperplane.getConstant();
-        this.point = new float[size];
-
-        if (size >= 3) {
-            // Finds a unit vector normal to the hyperplane and a point in the hyperplane for future projections.
-            float length = 0.0f;
-            for (int i = 0; i < size; i++) {
-                length += coefficients[i] * coefficients[i];
-            }
-            length = (float)Math.sqrt(length);
-
-            unitNormal = new float[size];
-            for (int i = 0; i < size; i++) {
-                unitNormal[i] = coefficients[i] / length;
-            }
-        } else {
-            unitNormal = null;
-        }
-    }
+public final class HyperplaneTerm {
+    // Static only.
+    private HyperplaneTerm() {}
 
     /**
      * Finds the orthogonal projection onto the hyperplane <br />
@@ -65,10 +36,19 @@ public abstract class HyperplaneTerm extends ADMMObjectiveTerm {
      * <p>
      * Stores the result in x.
      */
-    protected void project(float stepSize, float[] consensusValues) {
+    static void project(ADMMTermStore termStore, int termIndex, float stepSize, float[] consensusValues) {
+        float[] values = termStore.getLocalValues();
+        float[] lagranges = termStore.getLocalLagranges();
+        float[] coefficients = termStore.getLocalCoefficients();
+        int[] globalIds = termStore.getLocalGlobalIds();
+
+        int offset = termStore.getTermOffsets()[termIndex];
+        int size = termStore.getTermOffsets()[termIndex + 1] - offset;
+        float constant = termStore.getTermConstants()[termIndex];
+
         // Deal with short hyperplanes specially.
         if (size == 1) {
-            variables[0].setValue(constant / coefficients[0]);
+            values[offset] = constant / coefficients[offset];
             return;
         }
 
@@ -76,46 +56,75 @@ public abstract class HyperplaneTerm extends ADMMObjectiveTerm {
         if (size == 2) {
             float x0;
             float x1;
-            float coeff0 = coefficients[0];
-            float coeff1 = coefficients[1];
+            float coeff0 = coefficients[offset];
+            float coeff1 = coefficients[offset + 1];
 
-            x0 = stepSize * consensusValues[variables[0].getGlobalId()] - variables[0].getLagrange();
-            x0 -= stepSize * coeff0 / coeff1 * (-1.0 * constant / coeff1 + consensusValues[variables[1].getGlobalId()] - variables[1].getLagrange() / stepSize);
+            x0 = stepSize * consensusValues[globalIds[offset]] - lagranges[offset];
+            x0 -= stepSize * coeff0 / coeff1 * (-1.0 * constant / coeff1 + consensusValues[globalIds[offset + 1]] - lagranges[offset + 1] / stepSize);
             x0 /= stepSize * (1.0 + coeff0 * coeff0 / coeff1 / coeff1);
 
             x1 = (constant - coeff0 * x0) / coeff1;
 
-            variables[0].setValue(x0);
-            variables[1].setValue(x1);
+            values[offset] = x0;
+            values[offset + 1] = x1;
 
             return;
         }
 
-        for (int i = 0; i < size; i++) {
-            point[i] = consensusValues[variables[i].getGlobalId()] - variables[i].getLagrange() / stepSize;
+        // Finds the length of the normal to the hyperplane
+        // (the unit normal is computed as we go instead of being stored).
+        float length = 0.0f;
+        for (int i = offset; i < offset + size; i++) {
+            length += coefficients[i] * coefficients[i];
         }
+        length = (float)Math.sqrt(length);
 
         // For point (constant / coefficients[0], 0,...) in hyperplane dotted with unitNormal,
-        float multiplier = -1.0f * constant / coefficients[0] * unitNormal[0];
+        float multiplier = -1.0f * constant / coefficients[offset] * (coefficients[offset] / length);
 
-        for (int i = 0; i < size; i++) {
-            multiplier += point[i] * unitNormal[i];
+        for (int i = offset; i < offset + size; i++) {
+            float point = consensusValues[globalIds[i]] - lagranges[i] / stepSize;
+            multiplier += point * (coefficients[i] / length);
         }
 
-        for (int i = 0; i < size; i++) {
-            variables[i].setValue(point[i] - multiplier * unitNormal[i]);
+        for (int i = offset; i < offset + size; i++) {
+            float point = consensusValues[globalIds[i]] - lagranges[i] / stepSize;
+            values[i] = point - multiplier * (coefficients[i] / length);
         }
     }
 
     /**
      * coefficients^T * x - constant
      */
-    @Override
-    public float evaluate() {
+    static float evaluate(ADMMTermStore termStore, int termIndex) {
+        float[] values = termStore.getLocalValues();
+        float[] coefficients = termStore.getLocalCoefficients();
+
+        int start = termStore.getTermOffsets()[termIndex];
+        int end = termStore.getTermOffsets()[termIndex + 1];
+
+        float value = 0.0f;
+        for (int i = start; i < end; i++) {
+            value += coefficients[i] * values[i];
+        }
+        return value - termStore.getTermConstants()[termIndex];
+    }
+
+    /**
+     * coefficients^T * z - constant
+     * Evaluated at the consensus values instead of the term's local variables.
+     */
+    static float evaluate(ADMMTermStore termStore, int termIndex, float[] consensusValues) {
+        float[] coefficients = termStore.getLocalCoefficients();
+        int[] globalIds = termStore.getLocalGlobalIds();
+
+        int start = termStore.getTermOffsets()[termIndex];
+        int end = termStore.getTermOffsets()[termIndex + 1];
+
         float value = 0.0f;
-        for (int i = 0; i < size; i++) {
-            value += coefficients[i] * variables[i].getValue();
+        for (int i = start; i < end; i++) {
+            value += coefficients[i] * consensusValues[globalIds[i]];
         }
-        return value - constant;
+        return value - termStore.getTermConstants()[termIndex];
     }
 }
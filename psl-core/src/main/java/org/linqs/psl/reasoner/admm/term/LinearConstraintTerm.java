@@ -17,7 +17,6 @@
  */
 package org.linqs.psl.reasoner.admm.term;
 
-import org.linqs.psl.model.rule.GroundRule;
 import org.linqs.psl.reasoner.function.FunctionComparator;
 import org.linqs.psl.util.MathUtils;
 
@@ -27,34 +26,60 @@ import org.linqs.psl.util.MathUtils;
  * infinity otherwise <br />
  * where [?] is ==, >=, or <= <br />
  *
+ * The comparator is encoded in the term's type.
+ *
  * All coefficients must be non-zero.
  */
-public class LinearConstraintTerm extends HyperplaneTerm {
-    private final FunctionComparator comparator;
+public final class LinearConstraintTerm {
+    // Static only.
+    private LinearConstraintTerm() {}
 
-    protected LinearConstraintTerm(GroundRule groundRule, Hyperplane hyperplane, FunctionComparator comparator) {
-        super(groundRule, hyperplane);
-        this.comparator = comparator;
+    /**
+     * Get the term type used for a constraint with the given comparator.
+     */
+    public static ADMMObjectiveTerm.TermType getType(FunctionComparator comparator) {
+        if (comparator.equals(FunctionComparator.Equality)) {
+            return ADMMObjectiveTerm.TermType.EQUALITY_CONSTRAINT;
+        } else if (comparator.equals(FunctionComparator.SmallerThan)) {
+            return ADMMObjectiveTerm.TermType.SMALLER_THAN_CONSTRAINT;
+        } else if (comparator.equals(FunctionComparator.LargerThan)) {
+            return ADMMObjectiveTerm.TermType.LARGER_THAN_CONSTRAINT;
+        } else {
+            throw new IllegalStateException("Unknown comparison function.");
+        }
     }
 
     /**
      * if (coefficients^T * x [comparator] constant) { 0.0 }
      * else { infinity }
      */
-    @Override
-    public float evaluate() {
-        if (comparator.equals(FunctionComparator.Equality)) {
-            if (MathUtils.isZero(super.evaluate(), MathUtils.RELAXED_EPSILON)) {
+    static float evaluate(ADMMTermStore termStore, int termIndex) {
+        return evaluate(termStore.getTermType(termIndex), HyperplaneTerm.evaluate(termStore, termIndex), 0.0f);
+    }
+
+    /**
+     * Evaluate at the consensus values instead of the term's local variables.
+     * Consensus values are averages of the local variables, so they are only
+     * expected to satisfy inequalities to within MathUtils.RELAXED_EPSILON (just like equalities).
+     */
+    static float evaluate(ADMMTermStore termStore, int termIndex, float[] consensusValues) {
+        return evaluate(termStore.getTermType(termIndex), HyperplaneTerm.evaluate(termStore, termIndex, consensusValues),
+                (float)MathUtils.RELAXED_EPSILON);
+    }
+
+    private static float evaluate(ADMMObjectiveTerm.TermType type, float value, float inequalityTolerance) {
+        if (type == ADMMObjectiveTerm.TermType.EQUALITY_CONSTRAINT) {
+            if (MathUtils.isZero(value, MathUtils.RELAXED_EPSILON)) {
                 return 0.0f;
             }
             return Float.POSITIVE_INFINITY;
-        } else if (comparator.equals(FunctionComparator.SmallerThan)) {
-            if (super.evaluate() <= 0.0f) {
+        } else if (type == ADMMObjectiveTerm.TermType.SMALLER_THAN_CONSTRAINT) {
+            if (value <= inequalityTolerance) {
                 return 0.0f;
             }
             return Float.POSITIVE_INFINITY;
-        } else if (comparator.equals(FunctionComparator.LargerThan)) {
-            if (super.evaluate() >= 0.0f) {
+        } else if (type == ADMMObjectiveTerm.TermType.LARGER_THAN_CONSTRAINT) {
+            if (value >= -inequalityTolerance) {
                 return 0.0f;
             }
             return Float.POSITIVE_INFINITY;
@@ -63,28 +88,52 @@ public class LinearConstraintTerm extends HyperplaneTerm {
         }
     }
 
-    @Override
-    public void minimize(float stepSize, float[] consensusValues) {
+    /**
+     * Update the lagrange multipliers of and then minimize every term in [termStart, termEnd), which must all be linear constraints.
+     * Terms marked in skip (indexed by term, may be null) are left alone.
+     */
+    static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip) {
+        for (int termIndex = termStart; termIndex < termEnd; termIndex++) {
+            if (skip != null && skip[termIndex]) {
+                continue;
+            }
+
+            termStore.updateLagrange(termIndex, stepSize, consensusValues);
+            minimize(termStore, termIndex, stepSize, consensusValues);
+        }
+    }
+
+    static void minimize(ADMMTermStore termStore, int termIndex, float stepSize, float[] consensusValues) {
+        ADMMObjectiveTerm.TermType type = termStore.getTermType(termIndex);
+
         // If it's not an equality constraint, first tries to minimize without the constraint.
-        if (!comparator.equals(FunctionComparator.Equality)) {
+        if (type != ADMMObjectiveTerm.TermType.EQUALITY_CONSTRAINT) {
+            float[] values = termStore.getLocalValues();
+            float[] lagranges = termStore.getLocalLagranges();
+            float[] coefficients = termStore.getLocalCoefficients();
+            int[] globalIds = termStore.getLocalGlobalIds();
+
+            int start = termStore.getTermOffsets()[termIndex];
+            int end = termStore.getTermOffsets()[termIndex + 1];
+            float constant = termStore.getTermConstants()[termIndex];
 
             // Initializes scratch data.
             float total = 0.0f;
 
             // Minimizes without regard for the constraint, i.e., solves
             // argmin stepSize/2 * \|x - z + y / stepSize \|_2^2
-            for (int i = 0; i < size; i++) {
-                LocalVariable variable = variables[i];
-                variable.setValue(consensusValues[variable.getGlobalId()] - variable.getLagrange() / stepSize);
+            for (int i = start; i < end; i++) {
+                values[i] = consensusValues[globalIds[i]] - lagranges[i] / stepSize;
 
-                total += coefficients[i] * variable.getValue();
+                total += coefficients[i] * values[i];
             }
 
             // Checks if the solution satisfies the constraint. If so, updates
             // the local primal variables and returns.
-            if ( (comparator.equals(FunctionComparator.SmallerThan) && total <= constant)
+            if ( (type == ADMMObjectiveTerm.TermType.SMALLER_THAN_CONSTRAINT && total <= constant)
                     ||
-                 (comparator.equals(FunctionComparator.LargerThan) && total >= constant)
+                 (type == ADMMObjectiveTerm.TermType.LARGER_THAN_CONSTRAINT && total >= constant)
                 ) {
                 return;
             }
@@ -92,6 +141,6 @@ public class LinearConstraintTerm extends HyperplaneTerm {
 
         // If the naive minimization didn't work, or if it's an equality constraint,
         // projects onto the hyperplane
-        project(stepSize, consensusValues);
+        HyperplaneTerm.project(termStore, termIndex, stepSize, consensusValues);
     }
 }
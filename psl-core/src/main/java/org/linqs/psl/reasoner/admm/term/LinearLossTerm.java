@@ -17,48 +17,94 @@
  */
 package org.linqs.psl.reasoner.admm.term;
 
-import org.linqs.psl.reasoner.term.WeightedTerm;
-import org.linqs.psl.model.rule.GroundRule;
-import org.linqs.psl.model.rule.WeightedGroundRule;
-
 /**
  * ADMMReasoner objective term of the form <br />
  * weight * coefficients^T * x
  */
-public class LinearLossTerm extends ADMMObjectiveTerm implements WeightedTerm {
-    private final float[] coefficients;
+public final class LinearLossTerm {
+    // Static only.
+    private LinearLossTerm() {}
 
     /**
-     * Caller releases control of |variables| and |coefficients|.
+     * Minimize a single term (without updating its lagrange multipliers), see ADMMTermStore.minimize().
      */
-    LinearLossTerm(GroundRule groundRule, Hyperplane hyperplane) {
-        super(hyperplane, groundRule);
+    static void minimize(ADMMTermStore termStore, int termIndex, float stepSize, float[] consensusValues) {
+        minimize(termStore, termIndex, termIndex + 1, stepSize, consensusValues, null, false);
+    }
 
-        this.coefficients = hyperplane.getCoefficients();
+    /**
+     * Update the lagrange multipliers of and then minimize every term in [termStart, termEnd), which must all be linear losses.
+     * The same as ADMMTermStore.updateLagrange() and then minimize() on each term, in a single pass over the local variables.
+     * Terms marked in skip (indexed by term, may be null) are left alone.
+     */
+    static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip) {
+        minimize(termStore, termStart, termEnd, stepSize, consensusValues, skip, true);
     }
 
-    @Override
-    public void minimize(float stepSize, float[] consensusValues) {
-        float weight = (float)((WeightedGroundRule)groundRule).getWeight();
-        for (int i = 0; i < size; i++) {
-            LocalVariable variable = variables[i];
+    /**
+     * The linear loss minimization for every term in [termStart, termEnd),
+     * with or without updating the lagrange multipliers first.
+     */
+    private static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip, boolean updateLagranges) {
+        float[] values = termStore.getLocalValues();
+        float[] lagranges = termStore.getLocalLagranges();
+        float[] coefficients = termStore.getLocalCoefficients();
+        int[] globalIds = termStore.getLocalGlobalIds();
+        int[] offsets = termStore.getTermOffsets();
+        float[] weights = termStore.getTermWeights();
+
+        for (int termIndex = termStart; termIndex < termEnd; termIndex++) {
+            if (skip != null && skip[termIndex]) {
+                continue;
+            }
+
+            float weight = weights[termIndex];
+
+            for (int i = offsets[termIndex]; i < offsets[termIndex + 1]; i++) {
+                float consensus = consensusValues[globalIds[i]];
+                if (updateLagranges) {
+                    lagranges[i] += stepSize * (values[i] - consensus);
+                }
 
-            float value = consensusValues[variable.getGlobalId()] - variable.getLagrange() / stepSize;
-            value -= (weight * coefficients[i] / stepSize);
+                float value = consensus - lagranges[i] / stepSize;
+                value -= (weight * coefficients[i] / stepSize);
 
-            variable.setValue(value);
+                values[i] = value;
+            }
         }
     }
 
     /**
      * weight * coefficients^T * x
      */
-    @Override
-    public float evaluate() {
-        float weight = (float)((WeightedGroundRule)groundRule).getWeight();
+    static float evaluate(ADMMTermStore termStore, int termIndex) {
+        float[] values = termStore.getLocalValues();
+        float[] coefficients = termStore.getLocalCoefficients();
+
+        int start = termStore.getTermOffsets()[termIndex];
+        int end = termStore.getTermOffsets()[termIndex + 1];
+        float weight = termStore.getTermWeights()[termIndex];
+
+        float value = 0.0f;
+        for (int i = start; i < end; i++) {
+            value += coefficients[i] * values[i];
+        }
+        return weight * value;
+    }
+
+    static float evaluate(ADMMTermStore termStore, int termIndex, float[] consensusValues) {
+        float[] coefficients = termStore.getLocalCoefficients();
+        int[] globalIds = termStore.getLocalGlobalIds();
+
+        int start = termStore.getTermOffsets()[termIndex];
+        int end = termStore.getTermOffsets()[termIndex + 1];
+        float weight = termStore.getTermWeights()[termIndex];
+
         float value = 0.0f;
-        for (int i = 0; i < size; i++) {
-            value += coefficients[i] * variables[i].getValue();
+        for (int i = start; i < end; i++) {
+            value += coefficients[i] * consensusValues[globalIds[i]];
         }
         return weight * value;
     }
@@ -17,38 +17,61 @@
  */
 package org.linqs.psl.reasoner.admm.term;
 
-import org.linqs.psl.model.rule.GroundRule;
-import org.linqs.psl.model.rule.WeightedGroundRule;
-
 /**
  * ADMMReasoner objective term of the form <br />
  * weight * [max(coefficients^T * x - constant, 0)]^2
  */
-public class SquaredHingeLossTerm extends SquaredHyperplaneTerm {
-    public SquaredHingeLossTerm(GroundRule groundRule, Hyperplane hyperplane) {
-        super(groundRule, hyperplane);
-    }
+public final class SquaredHingeLossTerm {
+    // Static only.
+    private SquaredHingeLossTerm() {}
 
     /**
      * weight * [max(coefficients^T * x - constant, 0.0)]^2
      */
-    @Override
-    public float evaluate() {
-        float weight = (float)((WeightedGroundRule)groundRule).getWeight();
-        return weight * (float)Math.pow(Math.max(0.0f, super.evaluate()), 2);
+    static float evaluate(ADMMTermStore termStore, int termIndex) {
+        float weight = termStore.getTermWeights()[termIndex];
+        return weight * (float)Math.pow(Math.max(0.0f, HyperplaneTerm.evaluate(termStore, termIndex)), 2);
+    }
+
+    static float evaluate(ADMMTermStore termStore, int termIndex, float[] consensusValues) {
+        float weight = termStore.getTermWeights()[termIndex];
+        return weight * (float)Math.pow(Math.max(0.0f, HyperplaneTerm.evaluate(termStore, termIndex, consensusValues)), 2);
+    }
+
+    /**
+     * Update the lagrange multipliers of and then minimize every term in [termStart, termEnd), which must all be squared hinge-losses.
+     * Terms marked in skip (indexed by term, may be null) are left alone.
+     */
+    static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip) {
+        for (int termIndex = termStart; termIndex < termEnd; termIndex++) {
+            if (skip != null && skip[termIndex]) {
+                continue;
+            }
+
+            termStore.updateLagrange(termIndex, stepSize, consensusValues);
+            minimize(termStore, termIndex, stepSize, consensusValues);
+        }
     }
 
-    @Override
-    public void minimize(float stepSize, float[] consensusValues) {
+    static void minimize(ADMMTermStore termStore, int termIndex, float stepSize, float[] consensusValues) {
+        float[] values = termStore.getLocalValues();
+        float[] lagranges = termStore.getLocalLagranges();
+        float[] coefficients = termStore.getLocalCoefficients();
+        int[] globalIds = termStore.getLocalGlobalIds();
+
+        int start = termStore.getTermOffsets()[termIndex];
+        int end = termStore.getTermOffsets()[termIndex + 1];
+        float constant = termStore.getTermConstants()[termIndex];
+
         // Initializes scratch data.
         float total = 0.0f;
 
         // Minimizes without the quadratic loss, i.e., solves
         // argmin stepSize/2 * \|x - z + y / stepSize \|_2^2
-        for (int i = 0; i < size; i++) {
-            LocalVariable variable = variables[i];
-            variable.setValue(consensusValues[variable.getGlobalId()] - variable.getLagrange() / stepSize);
-            total += coefficients[i] * variable.getValue();
+        for (int i = start; i < end; i++) {
+            values[i] = consensusValues[globalIds[i]] - lagranges[i] / stepSize;
+            total += coefficients[i] * values[i];
         }
 
         // If the quadratic loss is NOT active at the computed point, it is the solution...
@@ -58,6 +81,6 @@ public class SquaredHingeLossTerm extends SquaredHyperplaneTerm {
 
         // Else, minimizes with the quadratic loss, i.e., solves
         // argmin weight * (coefficients^T * x - constant)^2 + stepSize/2 * \|x - z + y / stepSize \|_2^2
-        minWeightedSquaredHyperplane(stepSize, consensusValues);
+        SquaredHyperplaneTerm.minWeightedSquaredHyperplane(termStore, termIndex, stepSize, consensusValues);
     }
 }
@@ -17,29 +17,44 @@
  */
 package org.linqs.psl.reasoner.admm.term;
 
-import org.linqs.psl.model.rule.GroundRule;
-import org.linqs.psl.model.rule.WeightedGroundRule;
-
 /**
  * ADMMReasoner objective term of the form <br />
  * weight * (coeffs^T * x - constant)^2
  */
-public class SquaredLinearLossTerm extends SquaredHyperplaneTerm {
-    public SquaredLinearLossTerm(GroundRule groundRule, Hyperplane hyperplane) {
-        super(groundRule, hyperplane);
+public final class SquaredLinearLossTerm {
+    // Static only.
+    private SquaredLinearLossTerm() {}
+
+    /**
+     * Update the lagrange multipliers of and then minimize every term in [termStart, termEnd), which must all be squared linear losses.
+     * Terms marked in skip (indexed by term, may be null) are left alone.
+     */
+    static void minimize(ADMMTermStore termStore, int termStart, int termEnd, float stepSize, float[] consensusValues,
+            boolean[] skip) {
+        for (int termIndex = termStart; termIndex < termEnd; termIndex++) {
+            if (skip != null && skip[termIndex]) {
+                continue;
+            }
+
+            termStore.updateLagrange(termIndex, stepSize, consensusValues);
+            minimize(termStore, termIndex, stepSize, consensusValues);
+        }
     }
 
-    @Override
-    public void minimize(float stepSize, float[] consensusValues) {
-        minWeightedSquaredHyperplane(stepSize, consensusValues);
+    static void minimize(ADMMTermStore termStore, int termIndex, float stepSize, float[] consensusValues) {
+        SquaredHyperplaneTerm.minWeightedSquaredHyperplane(termStore, termIndex, stepSize, consensusValues);
     }
 
     /**
      * weight * (coeffs^T * x - constant)^2
      */
-    @Override
-    public float evaluate() {
-        float weight = (float)((WeightedGroundRule)groundRule).getWeight();
-        return weight * (float)Math.pow(super.evaluate(), 2);
+    static float evaluate(ADMMTermStore termStore, int termIndex) {
+        float weight = termStore.getTermWeights()[termIndex];
+        return weight * (float)Math.pow(HyperplaneTerm.evaluate(termStore, termIndex), 2);
+    }
+
+    static float evaluate(ADMMTermStore termStore, int termIndex, float[] consensusValues) {
+        float weight = termStore.getTermWeights()[termIndex];
+        return weight * (float)Math.pow(HyperplaneTerm.evaluate(termStore, termIndex, consensusValues), 2);
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm.term;
+
+import org.linqs.psl.model.atom.RandomVariableAtom;
+import org.linqs.psl.model.rule.GroundRule;
+
+import java.util.Arrays;
+
+/**
+ * A staging area for ADMM terms that is owned by a single thread.
+ * Terms are packed the same way ADMMTermStore packs them, but variables are held as atoms
+ * (global ids are only assigned when the buffer is merged into a store with ADMMTermStore.addTerms()),
+ * so filling a buffer never needs a lock.
+ *
+ * A term is built in place: startTerm(), then any number of addVariable()/appendCoefficient(),
+ * then either finishTerm() or abortTerm().
+ */
+public class TermBuffer {
+    private static final int INITIAL_TERM_CAPACITY = 64;
+    private static final int INITIAL_LOCAL_CAPACITY = 256;
+
+    private GroundRule[] termRules;
+    private byte[] termTypes;
+    private float[] termConstants;
+    private int[] termOffsets;
+    private int numTerms;
+
+    private RandomVariableAtom[] localAtoms;
+    private float[] localCoefficients;
+
+    // The term currently being built starts at termOffsets[numTerms].
+    private int pendingSize;
+    private float pendingConstant;
+
+    public TermBuffer() {
+        termRules = new GroundRule[INITIAL_TERM_CAPACITY];
+        termTypes = new byte[INITIAL_TERM_CAPACITY];
+        termConstants = new float[INITIAL_TERM_CAPACITY];
+        termOffsets = new int[INITIAL_TERM_CAPACITY + 1];
+        numTerms = 0;
+
+        localAtoms = new RandomVariableAtom[INITIAL_LOCAL_CAPACITY];
+        localCoefficients = new float[INITIAL_LOCAL_CAPACITY];
+
+        pendingSize = -1;
+        pendingConstant = 0.0f;
+    }
+
+    public void startTerm(float constant) {
+        if (pendingSize != -1) {
+            throw new IllegalStateException("Cannot start a term while another is being built.");
+        }
+
+        pendingSize = 0;
+        pendingConstant = constant;
+    }
+
+    public void addVariable(RandomVariableAtom atom, float coefficient) {
+        int offset = termOffsets[numTerms] + pendingSize;
+        if (offset == localAtoms.length) {
+            localAtoms = Arrays.copyOf(localAtoms, localAtoms.length * 2);
+            localCoefficients = Arrays.copyOf(localCoefficients, localCoefficients.length * 2);
+        }
+
+        localAtoms[offset] = atom;
+        localCoefficients[offset] = coefficient;
+        pendingSize++;
+    }
+
+    /**
+     * Find a variable in the term being built.
+     * Atoms are canonical within a database, so identity is enough.
+     * @return the index of the variable within the term, or -1.
+     */
+    public int indexOfVariable(RandomVariableAtom atom) {
+        int offset = termOffsets[numTerms];
+        for (int i = 0; i < pendingSize; i++) {
+            if (localAtoms[offset + i] == atom) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public float getCoefficient(int index) {
+        return localCoefficients[termOffsets[numTerms] + index];
+    }
+
+    public void appendCoefficient(int index, float value) {
+        localCoefficients[termOffsets[numTerms] + index] += value;
+    }
+
+    public float getConstant() {
+        return pendingConstant;
+    }
+
+    public void setConstant(float constant) {
+        pendingConstant = constant;
+    }
+
+    /**
+     * The number of variables in the term being built.
+     */
+    public int pendingSize() {
+        return pendingSize;
+    }
+
+    public void finishTerm(GroundRule groundRule, ADMMObjectiveTerm.TermType type) {
+        if (numTerms == termRules.length) {
+            int capacity = termRules.length * 2;
+            termRules = Arrays.copyOf(termRules, capacity);
+            termTypes = Arrays.copyOf(termTypes, capacity);
+            termConstants = Arrays.copyOf(termConstants, capacity);
+            termOffsets = Arrays.copyOf(termOffsets, capacity + 1);
+        }
+
+        termRules[numTerms] = groundRule;
+        termTypes[numTerms] = (byte)type.ordinal();
+        termConstants[numTerms] = pendingConstant;
+        termOffsets[numTerms + 1] = termOffsets[numTerms] + pendingSize;
+        numTerms++;
+
+        pendingSize = -1;
+    }
+
+    /**
+     * Throw away the term being built.
+     */
+    public void abortTerm() {
+        Arrays.fill(localAtoms, termOffsets[numTerms], termOffsets[numTerms] + pendingSize, null);
+        pendingSize = -1;
+    }
+
+    public int size() {
+        return numTerms;
+    }
+
+    int getNumLocalVariables() {
+        return termOffsets[numTerms];
+    }
+
+    GroundRule getGroundRule(int termIndex) {
+        return termRules[termIndex];
+    }
+
+    byte getTermType(int termIndex) {
+        return termTypes[termIndex];
+    }
+
+    float getTermConstant(int termIndex) {
+        return termConstants[termIndex];
+    }
+
+    /**
+     * The variables for term i are [offsets[i], offsets[i + 1]).
+     */
+    int[] getTermOffsets() {
+        return termOffsets;
+    }
+
+    RandomVariableAtom[] getLocalAtoms() {
+        return localAtoms;
+    }
+
+    float[] getLocalCoefficients() {
+        return localCoefficients;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm.term;
+
+/**
+ * The connected components of an ADMMTermStore.
+ * Two terms are in the same component if they (transitively) share a global variable.
+ * Components do not share any variables, so each one is an independent optimization problem.
+ *
+ * The store is grouped (see ADMMTermStore.groupComponents()) so that every component
+ * is a contiguous range of terms and a contiguous range of global variables.
+ * Component i has the terms [getTermStart(i), getTermEnd(i))
+ * and the global variables [getVariableStart(i), getVariableEnd(i)).
+ * Components are ordered by decreasing number of terms.
+ * Global variables that do not appear in any term are not in any component.
+ *
+ * The same layout also describes batches of independent problems that were generated one after another
+ * into the same store (see BatchMPEInference), where each "component" is a whole problem
+ * (which may itself be several connected components) and they keep the order they were added in.
+ */
+public class TermComponents {
+    private final int[] termOffsets;
+    private final int[] variableOffsets;
+
+    public TermComponents(int[] termOffsets, int[] variableOffsets) {
+        if (termOffsets.length != variableOffsets.length || termOffsets.length == 0) {
+            throw new IllegalArgumentException("Term and variable offsets must both have one more entry than the number of components.");
+        }
+
+        this.termOffsets = termOffsets;
+        this.variableOffsets = variableOffsets;
+    }
+
+    public int size() {
+        return termOffsets.length - 1;
+    }
+
+    public int getTermStart(int component) {
+        return termOffsets[component];
+    }
+
+    public int getTermEnd(int component) {
+        return termOffsets[component + 1];
+    }
+
+    public int getNumTerms(int component) {
+        return termOffsets[component + 1] - termOffsets[component];
+    }
+
+    public int getVariableStart(int component) {
+        return variableOffsets[component];
+    }
+
+    public int getVariableEnd(int component) {
+        return variableOffsets[component + 1];
+    }
+}
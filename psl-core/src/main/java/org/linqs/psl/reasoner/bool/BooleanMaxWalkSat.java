@@ -28,14 +28,17 @@ import org.linqs.psl.reasoner.Reasoner;
 import org.linqs.psl.reasoner.term.TermStore;
 import org.linqs.psl.reasoner.term.blocker.ConstraintBlockerTerm;
 import org.linqs.psl.reasoner.term.blocker.ConstraintBlockerTermStore;
+import org.linqs.psl.util.IndexedIntSet;
 import org.linqs.psl.util.MathUtils;
 import org.linqs.psl.util.RandUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -116,13 +119,27 @@ public class BooleanMaxWalkSat implements Reasoner {
         // Randomly initializes the RVs to a feasible state.
         blocker.randomlyInitialize();
 
-        Set<GroundRule> unsatGKs = new HashSet<GroundRule>();
-        Set<RandomVariableAtom> rvasToInclude = new HashSet<RandomVariableAtom>();
-        Set<ConstraintBlockerTerm> blocksToInclude = new HashSet<ConstraintBlockerTerm>();
+        // Give each weighted ground rule a dense id, so the flip loop can track them in flat arrays.
+        List<WeightedGroundRule> rules = new ArrayList<WeightedGroundRule>();
+        Map<GroundRule, Integer> ruleIds = new HashMap<GroundRule, Integer>();
+        for (GroundRule groundRule : blocker.getGroundRuleStore().getGroundRules()) {
+            if (groundRule instanceof WeightedGroundRule) {
+                ruleIds.put(groundRule, Integer.valueOf(rules.size()));
+                rules.add((WeightedGroundRule)groundRule);
+            }
+        }
 
-        RandomVariableAtom[][] candidateRVBlocks;
-        WeightedGroundRule[][] candidateIncidentGKs;
-        boolean[] candidateExactlyOne;
+        // The blocks each rule touches and the rules incident on each block (as rule ids).
+        // Both are filled in the first time they are needed.
+        int[][] ruleBlocks = new int[rules.size()][];
+        int[][] blockIncidentRules = new int[blocker.size()][];
+
+        // Scratch space for saving the state of a block.
+        int maxBlockSize = 0;
+        for (int blockIndex = 0; blockIndex < blocker.size(); blockIndex++) {
+            maxBlockSize = Math.max(maxBlockSize, blocker.get(blockIndex).size());
+        }
+        float[] savedState = new float[maxBlockSize];
 
         // The block that will will randomly flip a variable in.
         int blockToChange;
@@ -132,9 +149,10 @@ public class BooleanMaxWalkSat implements Reasoner {
         int positiveRVAIndex;
 
         // Finds initially unsatisfied GroundRules.
-        for (GroundRule groundRule : blocker.getGroundRuleStore().getGroundRules()) {
-            if (groundRule instanceof WeightedGroundRule && ((WeightedGroundRule) groundRule).getIncompatibility() > 0.0) {
-                unsatGKs.add(groundRule);
+        IndexedIntSet unsatGKs = new IndexedIntSet(rules.size());
+        for (int ruleId = 0; ruleId < rules.size(); ruleId++) {
+            if (rules.get(ruleId).getIncompatibility() > 0.0) {
+                unsatGKs.add(ruleId);
             }
         }
 
@@ -145,59 +163,35 @@ public class BooleanMaxWalkSat implements Reasoner {
                 return;
             }
 
-            GroundRule groundRule = (GroundRule)selectAtRandom(unsatGKs);
+            int ruleId = unsatGKs.selectAtRandom();
 
-            // Collect all the RV blocks that have some RVA in common with the randomly selected groundRule.
-            rvasToInclude.clear();
-            blocksToInclude.clear();
-
-            for (GroundAtom atom : groundRule.getAtoms()) {
-                if (!(atom instanceof RandomVariableAtom)) {
-                    continue;
-                }
-
-                int blockIndex = blocker.getBlockIndex((RandomVariableAtom)atom);
-
-                // RVAs with no block are constrained and cannot be changed without breaking a hard constraint.
-                if (blockIndex != -1) {
-                    rvasToInclude.add((RandomVariableAtom)atom);
-                    blocksToInclude.add(blocker.get(blockIndex));
-                }
+            // All the RV blocks that have some RVA in common with the randomly selected ground rule.
+            if (ruleBlocks[ruleId] == null) {
+                ruleBlocks[ruleId] = collectBlocks(blocker, rules.get(ruleId));
             }
+            int[] candidateBlocks = ruleBlocks[ruleId];
 
             // Restart this flip if we choose a ground rule that has no unconstrained RVAs.
-            if (blocksToInclude.size() == 0) {
+            if (candidateBlocks.length == 0) {
                 flip--;
                 continue;
             }
 
-            // TODO(eriq): Don't allocate. Make a single ArrayList outside of loop. clear() here.
-            candidateRVBlocks = new RandomVariableAtom[blocksToInclude.size()][];
-            candidateIncidentGKs = new WeightedGroundRule[blocksToInclude.size()][];
-            candidateExactlyOne = new boolean[blocksToInclude.size()];
-
-            int candidateBlockIndex = 0;
-            for (ConstraintBlockerTerm block : blocksToInclude) {
-                candidateRVBlocks[candidateBlockIndex] = block.getAtoms();
-                candidateExactlyOne[candidateBlockIndex] = block.getExactlyOne();
-                candidateIncidentGKs[candidateBlockIndex] = block.getIncidentGRs();
-                candidateBlockIndex++;
-            }
-
             // With probability noise, change an RV block in groundRule at random.
             if (RandUtils.nextDouble() <= noise) {
-                blockToChange = RandUtils.nextInt(candidateRVBlocks.length);
-                int blockSize = candidateRVBlocks[blockToChange].length;
+                blockToChange = candidateBlocks[RandUtils.nextInt(candidateBlocks.length)];
+                ConstraintBlockerTerm block = blocker.get(blockToChange);
+                RandomVariableAtom[] atoms = block.getAtoms();
 
                 // Choose a random RVA in this block to flip on.
                 // If one value in this block must be one, then keep going until we pick an atom that is
                 // currently not active.
                 do {
-                    positiveRVAIndex = RandUtils.nextInt(blockSize);
-                } while (candidateExactlyOne[blockToChange] && candidateRVBlocks[blockToChange][positiveRVAIndex].getValue() == 1.0);
+                    positiveRVAIndex = RandUtils.nextInt(atoms.length);
+                } while (block.getExactlyOne() && atoms[positiveRVAIndex].getValue() == 1.0);
 
                 // If we want to flip an active RVA (value == 1.0), then set the target index to -1.
-                if (candidateRVBlocks[blockToChange][positiveRVAIndex].getValue() == 1.0) {
+                if (atoms[positiveRVAIndex].getValue() == 1.0) {
                     positiveRVAIndex = -1;
                 }
             } else {
@@ -206,25 +200,23 @@ public class BooleanMaxWalkSat implements Reasoner {
                 blockToChange = -1;
                 positiveRVAIndex = -1;
                 double bestIncompatibility = Double.POSITIVE_INFINITY;
-                float[] savedState;
-                float savedStateTotal;
 
                 // Consider each block.
-                for (int blockIndex = 0; blockIndex < candidateRVBlocks.length; blockIndex++) {
+                for (int candidateBlock : candidateBlocks) {
+                    ConstraintBlockerTerm block = blocker.get(candidateBlock);
+                    RandomVariableAtom[] atoms = block.getAtoms();
+
                     // Save the current state of the block.
-                    savedState = new float[candidateRVBlocks[blockIndex].length];
-                    savedStateTotal = 0.0f;
-                    for (int i = 0; i < candidateRVBlocks[blockIndex].length; i++) {
-                        savedState[i] = candidateRVBlocks[blockIndex][i].getValue();
-                        savedStateTotal += savedState[i];
+                    for (int i = 0; i < atoms.length; i++) {
+                        savedState[i] = atoms[i].getValue();
                     }
 
                     // Consider each setting to the block.
-                    int lastRVIndex = candidateRVBlocks[blockIndex].length;
+                    int lastRVIndex = atoms.length;
 
                     // If all 0.0 is a valid assignment (and the block is not currently all zeroes),
                     // then try that setting as well by moving the last index past the end of the block.
-                    if (!candidateExactlyOne[blockIndex]) {
+                    if (!block.getExactlyOne()) {
                         lastRVIndex++;
                     }
 
@@ -233,23 +225,17 @@ public class BooleanMaxWalkSat implements Reasoner {
                         // We will check the current (saved) configuration as well.
 
                         // Change to the current setting to consider.
-                        for (int i = 0; i < candidateRVBlocks[blockIndex].length; i++) {
-                            if (i == currentPositiveRVA) {
-                                candidateRVBlocks[blockIndex][i].setValue(1.0f);
-                            } else {
-                                candidateRVBlocks[blockIndex][i].setValue(0.0f);
-                            }
-                        }
+                        setBlock(atoms, currentPositiveRVA);
 
                         // Computes weighted incompatibility.
                         double currentIncompatibility = 0.0;
-                        for (WeightedGroundRule incidentGK : candidateIncidentGKs[blockIndex]) {
+                        for (WeightedGroundRule incidentGK : block.getIncidentGRs()) {
                             currentIncompatibility += incidentGK.getWeight() * incidentGK.getIncompatibility();
                         }
 
                         if (currentIncompatibility < bestIncompatibility) {
                             bestIncompatibility = currentIncompatibility;
-                            blockToChange = blockIndex;
+                            blockToChange = candidateBlock;
                             positiveRVAIndex = currentPositiveRVA;
 
                             // Break out early if we can't do better.
@@ -260,8 +246,8 @@ public class BooleanMaxWalkSat implements Reasoner {
                     }
 
                     // Restore the saved state.
-                    for (int i = 0 ; i < candidateRVBlocks[blockIndex].length; i++) {
-                        candidateRVBlocks[blockIndex][i].setValue(savedState[i]);
+                    for (int i = 0 ; i < atoms.length; i++) {
+                        atoms[i].setValue(savedState[i]);
                     }
 
                     // Break out early if we can't do better.
@@ -272,20 +258,19 @@ public class BooleanMaxWalkSat implements Reasoner {
             }
 
             // Update with block with the decided change.
-            for (int i = 0; i < candidateRVBlocks[blockToChange].length; i++) {
-                if (i == positiveRVAIndex) {
-                    candidateRVBlocks[blockToChange][i].setValue(1.0f);
-                } else {
-                    candidateRVBlocks[blockToChange][i].setValue(0.0f);
-                }
-            }
+            ConstraintBlockerTerm changedBlock = blocker.get(blockToChange);
+            setBlock(changedBlock.getAtoms(), positiveRVAIndex);
 
             // Add/Remove unsatisfied/satisfied weighted ground rules.
-            for (WeightedGroundRule incidentGK : candidateIncidentGKs[blockToChange]) {
-                if (incidentGK.getIncompatibility() > 0.0) {
-                    unsatGKs.add(incidentGK);
+            if (blockIncidentRules[blockToChange] == null) {
+                blockIncidentRules[blockToChange] = collectRuleIds(ruleIds, changedBlock);
+            }
+
+            for (int incidentRuleId : blockIncidentRules[blockToChange]) {
+                if (rules.get(incidentRuleId).getIncompatibility() > 0.0) {
+                    unsatGKs.add(incidentRuleId);
                 } else {
-                    unsatGKs.remove(incidentGK);
+                    unsatGKs.remove(incidentRuleId);
                 }
             }
 
@@ -297,17 +282,59 @@ public class BooleanMaxWalkSat implements Reasoner {
         }
     }
 
-    private Object selectAtRandom(Collection<? extends Object> collection) {
+    /**
+     * Set the atom at positiveRVAIndex to one and the rest of the block to zero (all zero for -1).
+     */
+    private void setBlock(RandomVariableAtom[] atoms, int positiveRVAIndex) {
+        for (int i = 0; i < atoms.length; i++) {
+            if (i == positiveRVAIndex) {
+                atoms[i].setValue(1.0f);
+            } else {
+                atoms[i].setValue(0.0f);
+            }
+        }
+    }
+
+    /**
+     * Get the (distinct) indexes of the blocks of a ground rule's RVAs.
+     * RVAs with no block are constrained and cannot be changed without breaking a hard constraint.
+     */
+    private int[] collectBlocks(ConstraintBlockerTermStore blocker, GroundRule groundRule) {
+        Set<Integer> blocks = new LinkedHashSet<Integer>();
+        for (GroundAtom atom : groundRule.getAtoms()) {
+            if (!(atom instanceof RandomVariableAtom)) {
+                continue;
+            }
+
+            int blockIndex = blocker.getBlockIndex((RandomVariableAtom)atom);
+            if (blockIndex != -1) {
+                blocks.add(Integer.valueOf(blockIndex));
+            }
+        }
+
+        int[] result = new int[blocks.size()];
         int i = 0;
-        int selection = RandUtils.nextInt(collection.size());
+        for (Integer blockIndex : blocks) {
+            result[i++] = blockIndex.intValue();
+        }
+
+        return result;
+    }
 
-        for (Object o : collection) {
-            if (i++ == selection) {
-                return o;
+    private int[] collectRuleIds(Map<GroundRule, Integer> ruleIds, ConstraintBlockerTerm block) {
+        WeightedGroundRule[] incidentRules = block.getIncidentGRs();
+
+        int[] result = new int[incidentRules.length];
+        for (int i = 0; i < incidentRules.length; i++) {
+            Integer ruleId = ruleIds.get(incidentRules[i]);
+            if (ruleId == null) {
+                throw new IllegalStateException("Block has an incident ground rule that is not in the ground rule store: " + incidentRules[i]);
             }
+
+            result[i] = ruleId.intValue();
         }
 
-        return null;
+        return result;
     }
 
     @Override
@@ -20,9 +20,9 @@ package org.linqs.psl.reasoner.term;
 import org.linqs.psl.config.Config;
 import org.linqs.psl.model.rule.GroundRule;
 import org.linqs.psl.model.rule.WeightedGroundRule;
-import org.linqs.psl.util.IteratorUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -43,17 +43,22 @@ public class MemoryTermStore<E extends Term> implements TermStore<E> {
 
     private ArrayList<E> store;
 
+    // Ground rule to its terms, built on the first lookup after the terms change.
+    private Map<GroundRule, List<E>> ruleTerms;
+
     public MemoryTermStore() {
         this(Config.getInt(INITIAL_SIZE_KEY, INITIAL_SIZE_DEFAULT));
     }
 
     public MemoryTermStore(int initialSize) {
         store = new ArrayList<E>(initialSize);
+        ruleTerms = null;
     }
 
     @Override
     public synchronized void add(GroundRule rule, E term) {
         store.add(term);
+        ruleTerms = null;
     }
 
     @Override
@@ -61,6 +66,8 @@ public class MemoryTermStore<E extends Term> implements TermStore<E> {
         if (store != null) {
             store.clear();
         }
+
+        ruleTerms = null;
     }
 
     @Override
@@ -106,14 +113,35 @@ public class MemoryTermStore<E extends Term> implements TermStore<E> {
         }
     }
 
+    /**
+     * O(1) (after an O(n) index build the first time the terms are looked up by ground rule).
+     */
     @Override
     public Iterable<E> getTerms(GroundRule groundRule) {
-        final GroundRule finalGroundRule = groundRule;
+        List<E> terms = getRuleTerms().get(groundRule);
+        if (terms == null) {
+            return Collections.<E>emptyList();
+        }
 
-        return IteratorUtils.filter(store, new IteratorUtils.FilterFunction<E>() {
-            public boolean keep(E term) {
-                return finalGroundRule.equals(term.getGroundRule());
+        return Collections.unmodifiableList(terms);
+    }
+
+    private synchronized Map<GroundRule, List<E>> getRuleTerms() {
+        if (ruleTerms != null) {
+            return ruleTerms;
+        }
+
+        Map<GroundRule, List<E>> index = new HashMap<GroundRule, List<E>>();
+        for (E term : store) {
+            List<E> terms = index.get(term.getGroundRule());
+            if (terms == null) {
+                terms = new ArrayList<E>(1);
+                index.put(term.getGroundRule(), terms);
             }
-        });
+            terms.add(term);
+        }
+
+        ruleTerms = index;
+        return ruleTerms;
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints in [0, capacity) with constant time add, remove, contains, and uniform random selection.
+ * The members are kept densely packed in an array (in no particular order),
+ * along with each possible member's position in that array (or -1 if it is not a member).
+ * Removing a member moves the last member into its place.
+ * Nothing is allocated after construction.
+ */
+public class IndexedIntSet {
+    private final int[] members;
+    private final int[] positions;
+    private int size;
+
+    public IndexedIntSet(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be non-negative, got " + capacity + ".");
+        }
+
+        members = new int[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, -1);
+        size = 0;
+    }
+
+    /**
+     * @return true if the value was not already in the set.
+     */
+    public boolean add(int value) {
+        if (positions[value] != -1) {
+            return false;
+        }
+
+        members[size] = value;
+        positions[value] = size;
+        size++;
+
+        return true;
+    }
+
+    /**
+     * @return true if the value was in the set.
+     */
+    public boolean remove(int value) {
+        int position = positions[value];
+        if (position == -1) {
+            return false;
+        }
+
+        size--;
+        int last = members[size];
+        members[position] = last;
+        positions[last] = position;
+        positions[value] = -1;
+
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return positions[value] != -1;
+    }
+
+    /**
+     * Get the member at some position in [0, size()).
+     * Positions change as members are removed.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for a set of size " + size + ".");
+        }
+
+        return members[index];
+    }
+
+    /**
+     * Get a member chosen uniformly at random (using RandUtils).
+     */
+    public int selectAtRandom() {
+        if (size == 0) {
+            throw new IllegalStateException("Cannot select from an empty set.");
+        }
+
+        return members[RandUtils.nextInt(size)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return positions.length;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            positions[members[i]] = -1;
+        }
+
+        size = 0;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.application.inference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.linqs.psl.TestModel;
+import org.linqs.psl.config.Config;
+import org.linqs.psl.database.Database;
+import org.linqs.psl.database.Partition;
+import org.linqs.psl.database.loading.Inserter;
+import org.linqs.psl.model.atom.RandomVariableAtom;
+import org.linqs.psl.model.predicate.StandardPredicate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class BatchMPEInferenceTest {
+    @Before
+    public void setup() {
+        Config.init();
+    }
+
+    /**
+     * Solving problems together must give each problem the same answer as solving it alone.
+     * The problems share atom strings (the same people), but not atoms.
+     */
+    @Test
+    public void testMatchesSeparateInference() {
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        List<Database> dbs = new ArrayList<Database>();
+        dbs.add(info.dataStore.getDatabase(info.targetPartition, new HashSet<StandardPredicate>(), info.observationPartition));
+
+        // More, smaller, problems with different data in their own partitions of the same data store.
+        String[] people = new String[]{"Alice", "Bob", "Charlie"};
+        double[][] niceness = new double[][]{
+            {0.2, 1.0, 0.5},
+            {0.9, 0.1, 0.3},
+            {0.0, 0.6, 1.0},
+        };
+
+        for (int problem = 0; problem < niceness.length; problem++) {
+            Partition observations = info.dataStore.getPartition("BatchMPEInferenceTest_observations" + problem);
+            Partition targets = info.dataStore.getPartition("BatchMPEInferenceTest_targets" + problem);
+
+            Inserter personInserter = info.dataStore.getInserter(info.predicates.get("Person"), observations);
+            Inserter niceInserter = info.dataStore.getInserter(info.predicates.get("Nice"), observations);
+            Inserter friendsInserter = info.dataStore.getInserter(info.predicates.get("Friends"), targets);
+            for (int i = 0; i < people.length; i++) {
+                personInserter.insert(people[i]);
+                niceInserter.insertValue(niceness[problem][i], people[i]);
+
+                for (int j = 0; j < people.length; j++) {
+                    if (i != j) {
+                        friendsInserter.insert(people[i], people[j]);
+                    }
+                }
+            }
+
+            dbs.add(info.dataStore.getDatabase(targets, new HashSet<StandardPredicate>(), observations));
+        }
+
+        BatchMPEInference batch = new BatchMPEInference(info.model, dbs);
+        assertEquals(dbs.size(), batch.getNumProblems());
+
+        batch.inference();
+
+        for (int i = 0; i < batch.getNumProblems(); i++) {
+            assertTrue(batch.getIterationCount(i) > 0);
+            assertTrue(batch.isFeasible(i));
+        }
+
+        batch.close();
+
+        List<Map<String, Float>> batchValues = new ArrayList<Map<String, Float>>();
+        for (Database db : dbs) {
+            batchValues.add(getValues(info, db));
+        }
+
+        // The problems with the same atoms must not have been merged into one.
+        assertEquals(batchValues.get(1).keySet(), batchValues.get(2).keySet());
+        assertFalse(batchValues.get(1).equals(batchValues.get(2)));
+
+        for (int i = 0; i < dbs.size(); i++) {
+            MPEInference mpe = new MPEInference(info.model, dbs.get(i));
+            mpe.inference();
+            mpe.close();
+
+            Map<String, Float> separateValues = getValues(info, dbs.get(i));
+            assertTrue(separateValues.size() > 0);
+            assertEquals(separateValues.keySet(), batchValues.get(i).keySet());
+
+            for (Map.Entry<String, Float> entry : separateValues.entrySet()) {
+                assertEquals(entry.getKey(), entry.getValue().floatValue(), batchValues.get(i).get(entry.getKey()).floatValue(), 1e-3f);
+            }
+        }
+
+        for (Database db : dbs) {
+            db.close();
+        }
+    }
+
+    private Map<String, Float> getValues(TestModel.ModelInformation info, Database db) {
+        Map<String, Float> values = new HashMap<String, Float>();
+        for (StandardPredicate predicate : info.predicates.values()) {
+            for (RandomVariableAtom atom : db.getAllGroundRandomVariableAtoms(predicate)) {
+                values.put(atom.toString(), Float.valueOf((float)atom.getValue()));
+            }
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.linqs.psl.TestModel;
+import org.linqs.psl.application.inference.MPEInference;
+import org.linqs.psl.config.Config;
+import org.linqs.psl.database.Database;
+import org.linqs.psl.model.atom.RandomVariableAtom;
+import org.linqs.psl.model.predicate.StandardPredicate;
+import org.linqs.psl.model.rule.GroundRule;
+import org.linqs.psl.model.rule.Rule;
+import org.linqs.psl.reasoner.admm.term.ADMMTermGenerator;
+import org.linqs.psl.reasoner.admm.term.ADMMTermStore;
+import org.linqs.psl.reasoner.admm.term.TermComponents;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ADMMReasonerTest {
+    // The number of iterations taken by the last call to infer().
+    private int iterationCount;
+
+    @Before
+    public void setup() {
+        Config.init();
+
+        // Start from the same place every time so different execution modes can be compared.
+        Config.setProperty(ADMMReasoner.INITIAL_CONSENSUS_VALUE_KEY, "ZERO");
+        Config.setProperty(ADMMReasoner.INITIAL_LOCAL_VALUE_KEY, "ZERO");
+
+        // Converge tightly on the residuals so that the solutions are comparable.
+        Config.setProperty(ADMMReasoner.OBJECTIVE_BREAK_KEY, false);
+        Config.setProperty(ADMMReasoner.EPSILON_ABS_KEY, 1e-6f);
+        Config.setProperty(ADMMReasoner.EPSILON_REL_KEY, 1e-5f);
+    }
+
+    @After
+    public void clear() {
+        Config.init();
+    }
+
+    /**
+     * Make sure that the persistent sweep threads land on the same solution as the shared pool.
+     */
+    @Test
+    public void testPersistentWorkers() {
+        Map<String, Float> pooled = infer();
+
+        Config.setProperty(ADMMReasoner.PERSISTENT_WORKERS_KEY, true);
+        Map<String, Float> persistent = infer();
+
+        assertValuesEqual(pooled, persistent);
+    }
+
+    /**
+     * Balancing the residuals should change how we get there, but not where we end up.
+     */
+    @Test
+    public void testAdaptiveStepSize() {
+        Map<String, Float> fixed = infer();
+
+        Config.setProperty(ADMMReasoner.ADAPTIVE_STEP_SIZE_KEY, true);
+        Map<String, Float> adaptive = infer();
+
+        assertValuesEqual(fixed, adaptive);
+    }
+
+    /**
+     * Over-relaxation should reach the same solution in no more iterations.
+     */
+    @Test
+    public void testOverRelaxation() {
+        Map<String, Float> plain = infer();
+        int plainIterations = iterationCount;
+
+        Config.setProperty(ADMMReasoner.RELAXATION_KEY, 1.5f);
+        Map<String, Float> relaxed = infer();
+        int relaxedIterations = iterationCount;
+
+        assertValuesEqual(plain, relaxed);
+        assertTrue(relaxedIterations <= plainIterations);
+    }
+
+    /**
+     * Optimizing the same terms again should pick up where the last optimization left off.
+     */
+    @Test
+    public void testWarmStart() {
+        Config.setProperty(ADMMReasoner.WARM_START_KEY, true);
+
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMReasoner reasoner = (ADMMReasoner)mpe.getReasoner();
+
+        mpe.inference();
+        int coldIterations = reasoner.getIterationCount();
+
+        reasoner.optimize(mpe.getTermStore());
+        int warmIterations = reasoner.getIterationCount();
+
+        // Without a warm start, we are back to where we started.
+        reasoner.setWarmStart(false);
+        reasoner.optimize(mpe.getTermStore());
+        int restartIterations = reasoner.getIterationCount();
+
+        mpe.close();
+        inferDB.close();
+
+        assertTrue(warmIterations < coldIterations);
+        assertEquals(coldIterations, restartIterations);
+    }
+
+    /**
+     * Asynchronous workers take a different (nondeterministic) path, but should converge to the same solution.
+     */
+    @Test
+    public void testAsynchronous() {
+        Map<String, Float> synchronous = infer();
+
+        Config.setProperty(ADMMReasoner.ASYNCHRONOUS_KEY, true);
+        Map<String, Float> asynchronous = infer();
+
+        assertValuesEqual(synchronous, asynchronous);
+    }
+
+    /**
+     * An exception on one asynchronous worker has to stop the others and come out of optimize()
+     * (there is no time limit to fall back on).
+     */
+    @Test(timeout = 30000)
+    public void testAsynchronousException() {
+        Config.setProperty(ADMMReasoner.ASYNCHRONOUS_KEY, true);
+
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMTermStore source = (ADMMTermStore)mpe.getTermStore();
+
+        // Only the worker with the last slice of terms fails.
+        ADMMTermStore failing = new ADMMTermStore() {
+            @Override
+            public void updateAndMinimize(int start, int end, float stepSize, float[] consensusValues, boolean[] skip) {
+                if (end == size()) {
+                    throw new IllegalStateException("Failing term.");
+                }
+
+                super.updateAndMinimize(start, end, stepSize, consensusValues, skip);
+            }
+        };
+
+        for (int i = 0; i < source.size(); i++) {
+            failing.add(source.getGroundRule(i), source.get(i));
+        }
+
+        ADMMReasoner reasoner = new ADMMReasoner();
+        try {
+            reasoner.optimize(failing);
+            fail("Expected the worker exception to be rethrown.");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        } finally {
+            reasoner.close();
+            failing.close();
+            mpe.close();
+            inferDB.close();
+        }
+    }
+
+    /**
+     * An optimization that is stopped early and then resumed from its checkpoint
+     * should end up in the same place as one that ran all the way through.
+     */
+    @Test
+    public void testCheckpoint() throws IOException {
+        File checkpoint = File.createTempFile("ADMMReasonerTest", ".checkpoint");
+        checkpoint.delete();
+
+        try {
+            Map<String, Float> uninterrupted = infer();
+
+            Config.setProperty(ADMMReasoner.CHECKPOINT_PATH_KEY, checkpoint.getAbsolutePath());
+            Config.setProperty(ADMMReasoner.CHECKPOINT_PERIOD_KEY, 5);
+
+            // Stop early, the checkpoint is kept so that it can be continued.
+            Config.setProperty(ADMMReasoner.MAX_ITER_KEY, 10);
+            infer();
+            assertEquals(10, iterationCount);
+            assertTrue(checkpoint.exists());
+
+            // Resuming with the same max iterations is a new budget, not a run that is already over.
+            infer();
+            assertEquals(20, iterationCount);
+            assertTrue(checkpoint.exists());
+
+            // Continue, once converged the checkpoint is no longer needed.
+            Config.setProperty(ADMMReasoner.MAX_ITER_KEY, ADMMReasoner.MAX_ITER_DEFAULT);
+            Map<String, Float> resumed = infer();
+            assertFalse(checkpoint.exists());
+
+            assertValuesEqual(uninterrupted, resumed);
+        } finally {
+            checkpoint.delete();
+        }
+    }
+
+    /**
+     * Grouping the terms by type should not change the solution.
+     */
+    @Test
+    public void testGroupTypes() {
+        Map<String, Float> ungrouped = infer();
+
+        Config.setProperty(ADMMTermGenerator.GROUP_TYPES_KEY, true);
+        Map<String, Float> grouped = infer();
+
+        assertValuesEqual(ungrouped, grouped);
+    }
+
+    /**
+     * Every sampled iteration should be in the trace, in either format.
+     */
+    @Test
+    public void testTrace() throws IOException {
+        File trace = File.createTempFile("ADMMReasonerTest", ".trace");
+
+        try {
+            Config.setProperty(ADMMReasoner.TRACE_PATH_KEY, trace.getAbsolutePath());
+            Config.setProperty(ADMMReasoner.TRACE_PERIOD_KEY, 3);
+            infer();
+
+            List<String> lines = Files.readAllLines(trace.toPath(), StandardCharsets.UTF_8);
+            assertEquals(ADMMTrace.CSV_HEADER, lines.get(0));
+            assertEquals(iterationCount / 3, lines.size() - 1);
+
+            for (int i = 1; i < lines.size(); i++) {
+                String[] row = lines.get(i).split(",");
+                assertEquals(ADMMTrace.CSV_HEADER.split(",").length, row.length);
+
+                assertEquals(0, Integer.parseInt(row[0]));
+                assertEquals(i * 3, Integer.parseInt(row[1]));
+                assertTrue(Float.parseFloat(row[2]) >= 0.0f);
+                assertTrue(Long.parseLong(row[9]) >= 0);
+                assertTrue(Long.parseLong(row[10]) >= 0);
+            }
+
+            Config.setProperty(ADMMReasoner.TRACE_FORMAT_KEY, "binary");
+            infer();
+            assertEquals(8 + (iterationCount / 3) * ADMMTrace.RECORD_SIZE, trace.length());
+        } finally {
+            trace.delete();
+        }
+    }
+
+    /**
+     * Records that fill several buffers must all be written, in order.
+     */
+    @Test
+    public void testTraceBuffers() throws IOException {
+        File path = File.createTempFile("ADMMReasonerTest", ".trace");
+
+        try {
+            ADMMTrace trace = new ADMMTrace(path.getAbsolutePath(), ADMMTrace.Format.CSV, 4);
+            trace.startRun();
+            for (int i = 0; i < 10; i++) {
+                trace.record(i, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, Float.NaN, -1, -1, -1, -1);
+            }
+
+            trace.flush();
+            assertEquals(11, Files.readAllLines(path.toPath(), StandardCharsets.UTF_8).size());
+
+            trace.startRun();
+            for (int i = 0; i < 5; i++) {
+                trace.record(i, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, Float.NaN, -1, -1, -1, -1);
+            }
+            trace.close();
+
+            List<String> lines = Files.readAllLines(path.toPath(), StandardCharsets.UTF_8);
+            assertEquals(16, lines.size());
+            for (int i = 1; i < lines.size(); i++) {
+                String[] row = lines.get(i).split(",");
+                assertEquals((i <= 10) ? 0 : 1, Integer.parseInt(row[0]));
+                assertEquals((i <= 10) ? (i - 1) : (i - 11), Integer.parseInt(row[1]));
+            }
+        } finally {
+            path.delete();
+        }
+    }
+
+    /**
+     * A problem that cannot converge should stop at the time limit, say so, and report on the iterate it keeps.
+     */
+    @Test
+    public void testTimeLimit() {
+        Config.setProperty(ADMMReasoner.EPSILON_ABS_KEY, Float.MIN_VALUE);
+        Config.setProperty(ADMMReasoner.EPSILON_REL_KEY, Float.MIN_VALUE);
+        Config.setProperty(ADMMReasoner.MAX_ITER_KEY, Integer.MAX_VALUE);
+        Config.setProperty(ADMMReasoner.COMPUTE_PERIOD_KEY, 1);
+        // Short enough that the local variables are still far from the consensus values.
+        Config.setProperty(ADMMReasoner.TIME_LIMIT_KEY, 1L);
+
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+
+        assertFalse(mpe.isDeadlineReached());
+        mpe.inference();
+        assertTrue(mpe.isDeadlineReached());
+
+        ADMMReasoner reasoner = (ADMMReasoner)mpe.getReasoner();
+        assertTrue(reasoner.isDeadlineReached());
+        assertTrue(reasoner.getIterationCount() > 0);
+
+        ADMMTermStore termStore = (ADMMTermStore)mpe.getTermStore();
+        float[] values = new float[termStore.getNumGlobalVariables()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float)termStore.getGlobalVariable(i).getValue();
+            assertTrue(values[i] >= 0.0f && values[i] <= 1.0f);
+        }
+
+        // Every iterate is checked (COMPUTE_PERIOD_KEY is 1), so the best one is always restored
+        // and what gets reported must describe the restored values.
+        float objective = 0.0f;
+        int violatedConstraints = 0;
+        for (int i = 0; i < termStore.size(); i++) {
+            if (termStore.isConstraint(i)) {
+                if (termStore.evaluate(i, values) > 0.0f) {
+                    violatedConstraints++;
+                }
+            } else {
+                objective += (1.0f - termStore.evaluate(i, values));
+            }
+        }
+
+        assertEquals(objective, reasoner.getObjective(), 1e-4);
+        assertEquals(violatedConstraints, reasoner.getViolatedConstraints());
+
+        mpe.close();
+        inferDB.close();
+    }
+
+    /**
+     * Freezing stable variables should not change the solution.
+     */
+    @Test
+    public void testActiveSet() {
+        Map<String, Float> full = infer();
+
+        Config.setProperty(ADMMReasoner.ACTIVE_SET_KEY, true);
+        Config.setProperty(ADMMReasoner.ACTIVE_SET_STABLE_ITERATIONS_KEY, 2);
+        Config.setProperty(ADMMReasoner.ACTIVE_SET_REVALIDATE_PERIOD_KEY, 5);
+        Map<String, Float> activeSet = infer();
+
+        assertValuesEqual(full, activeSet);
+    }
+
+    /**
+     * Statically partitioning the terms between the sweep threads should not change the solution.
+     * This runs with however many threads the pool has (see Parallel.NUM_THREADS_KEY),
+     * run it with different counts to compare the scaling of the two modes.
+     */
+    @Test
+    public void testPartition() {
+        Config.setProperty(ADMMReasoner.PERSISTENT_WORKERS_KEY, true);
+        Map<String, Float> sliced = infer();
+
+        Config.setProperty(ADMMReasoner.PARTITION_KEY, true);
+        Map<String, Float> partitioned = infer();
+
+        assertValuesEqual(sliced, partitioned);
+    }
+
+    /**
+     * Optimizing each connected component on its own should land on the same solution as optimizing them all together.
+     */
+    @Test
+    public void testComponents() {
+        Map<String, Float> whole = infer();
+
+        Config.setProperty(ADMMReasoner.COMPONENTS_KEY, true);
+        Map<String, Float> components = infer();
+
+        assertValuesEqual(whole, components);
+    }
+
+    /**
+     * After grouping, every term's variables must be inside its component's variable range.
+     */
+    @Test
+    public void testComponentGrouping() {
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMTermStore termStore = (ADMMTermStore)mpe.getTermStore();
+
+        int numTerms = termStore.size();
+        TermComponents components = termStore.groupComponents();
+
+        // Friends(A, B) and Friends(B, A) only ever appear with each other.
+        assertEquals(10, components.size());
+        assertEquals(0, components.getTermStart(0));
+        assertEquals(numTerms, components.getTermEnd(components.size() - 1));
+
+        int[] termOffsets = termStore.getTermOffsets();
+        int[] localGlobalIds = termStore.getLocalGlobalIds();
+        for (int component = 0; component < components.size(); component++) {
+            for (int termIndex = components.getTermStart(component); termIndex < components.getTermEnd(component); termIndex++) {
+                for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                    assertTrue(localGlobalIds[i] >= components.getVariableStart(component));
+                    assertTrue(localGlobalIds[i] < components.getVariableEnd(component));
+                }
+            }
+        }
+
+        // The atom index must follow the new global ids.
+        List<RandomVariableAtom> atoms = termStore.getGlobalVariables();
+        for (int i = 0; i < atoms.size(); i++) {
+            assertEquals(i, termStore.lookupGlobalId(atoms.get(i)));
+        }
+
+        // Grouping again without any change is a no-op.
+        int version = termStore.getStructureVersion();
+        assertTrue(components == termStore.groupComponents());
+        assertEquals(version, termStore.getStructureVersion());
+
+        mpe.close();
+        inferDB.close();
+    }
+
+    /**
+     * Reordering for locality only renumbers things, it should not change the solution.
+     */
+    @Test
+    public void testLocalityReordering() {
+        Map<String, Float> original = infer();
+
+        Config.setProperty(ADMMTermGenerator.REORDER_KEY, true);
+        Map<String, Float> reordered = infer();
+
+        assertValuesEqual(original, reordered);
+
+        // Each Friends(A, B)/Friends(B, A) pair is its own component, so the pair should get adjacent ids.
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMTermStore termStore = (ADMMTermStore)mpe.getTermStore();
+
+        int[] termOffsets = termStore.getTermOffsets();
+        int[] localGlobalIds = termStore.getLocalGlobalIds();
+        int bandwidth = 0;
+        for (int termIndex = 0; termIndex < termStore.size(); termIndex++) {
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                for (int j = i + 1; j < termOffsets[termIndex + 1]; j++) {
+                    bandwidth = Math.max(bandwidth, Math.abs(localGlobalIds[i] - localGlobalIds[j]));
+                }
+            }
+        }
+        assertEquals(1, bandwidth);
+
+        mpe.close();
+        inferDB.close();
+    }
+
+    /**
+     * The single pass over the terms should match computing each ground rule's dual incompatibility on its own.
+     */
+    @Test
+    public void testDualIncompatibilities() {
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMReasoner reasoner = (ADMMReasoner)mpe.getReasoner();
+        ADMMTermStore termStore = (ADMMTermStore)mpe.getTermStore();
+
+        // Stop early so that the local variables still disagree with the consensus.
+        reasoner.setMaxIter(5);
+        mpe.inference();
+
+        List<Rule> rules = info.model.getRules();
+
+        double[] expected = new double[rules.size()];
+        float[] consensusBuffer = new float[termStore.getNumGlobalVariables()];
+        for (int i = 0; i < rules.size(); i++) {
+            for (GroundRule groundRule : mpe.getGroundRuleStore().getGroundRules(rules.get(i))) {
+                expected[i] += reasoner.getDualIncompatibility(groundRule, termStore, consensusBuffer);
+            }
+        }
+
+        double[] actual = new double[rules.size()];
+        reasoner.getDualIncompatibilities(rules, mpe.getGroundRuleStore(), termStore, actual);
+
+        for (int i = 0; i < rules.size(); i++) {
+            assertEquals(expected[i], actual[i], 1e-3);
+        }
+
+        mpe.close();
+        inferDB.close();
+    }
+
+    /**
+     * The objective is computed in parallel (either in its own pass or alongside the term sweep),
+     * make sure it matches a plain evaluation of every term.
+     */
+    @Test
+    public void testObjective() {
+        // A separate pass at the end.
+        checkObjective();
+
+        // Alongside the term sweep, including the last iteration.
+        Config.setProperty(ADMMReasoner.OBJECTIVE_BREAK_KEY, true);
+        Config.setProperty(ADMMReasoner.COMPUTE_PERIOD_KEY, 1);
+        checkObjective();
+
+        // Same with the persistent threads.
+        Config.setProperty(ADMMReasoner.PERSISTENT_WORKERS_KEY, true);
+        checkObjective();
+
+        // Stopping in the middle of a sweep that skips frozen terms.
+        Config.setProperty(ADMMReasoner.PERSISTENT_WORKERS_KEY, false);
+        Config.setProperty(ADMMReasoner.ACTIVE_SET_KEY, true);
+        Config.setProperty(ADMMReasoner.ACTIVE_SET_STABLE_ITERATIONS_KEY, 2);
+        Config.setProperty(ADMMReasoner.ACTIVE_SET_REVALIDATE_PERIOD_KEY, 5);
+        Config.setProperty(ADMMReasoner.MAX_ITER_KEY, 23);
+        checkObjective();
+    }
+
+    private void checkObjective() {
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMReasoner reasoner = (ADMMReasoner)mpe.getReasoner();
+        ADMMTermStore termStore = (ADMMTermStore)mpe.getTermStore();
+
+        mpe.inference();
+
+        float objective = 0.0f;
+        int violatedConstraints = 0;
+        for (int i = 0; i < termStore.size(); i++) {
+            if (termStore.isConstraint(i)) {
+                if (termStore.evaluate(i) > 0.0f) {
+                    violatedConstraints++;
+                }
+            } else {
+                objective += (1.0f - termStore.evaluate(i));
+            }
+        }
+
+        assertEquals(objective, reasoner.getObjective(), 1e-3);
+        assertEquals(violatedConstraints, reasoner.getViolatedConstraints());
+
+        mpe.close();
+        inferDB.close();
+    }
+
+    /**
+     * Run inference on a fresh copy of the test model and get the resulting value of every random variable atom.
+     */
+    private Map<String, Float> infer() {
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+
+        mpe.inference();
+        iterationCount = ((ADMMReasoner)mpe.getReasoner()).getIterationCount();
+
+        Map<String, Float> values = new HashMap<String, Float>();
+        for (RandomVariableAtom atom : ((ADMMTermStore)mpe.getTermStore()).getGlobalVariables()) {
+            values.put(atom.toString(), (float)atom.getValue());
+        }
+
+        mpe.close();
+        inferDB.close();
+
+        return values;
+    }
+
+    private void assertValuesEqual(Map<String, Float> expected, Map<String, Float> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<String, Float> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue().floatValue(), actual.get(entry.getKey()).floatValue(), 1e-3);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm.term;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.linqs.psl.TestModel;
+import org.linqs.psl.application.inference.MPEInference;
+import org.linqs.psl.config.Config;
+import org.linqs.psl.database.Database;
+import org.linqs.psl.model.atom.GroundAtom;
+import org.linqs.psl.model.atom.RandomVariableAtom;
+import org.linqs.psl.model.predicate.StandardPredicate;
+import org.linqs.psl.model.rule.GroundRule;
+import org.linqs.psl.model.term.Constant;
+import org.linqs.psl.model.term.ConstantType;
+import org.linqs.psl.model.term.UniqueStringID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class ADMMTermStoreTest {
+    private StandardPredicate predicate;
+
+    @Before
+    public void setup() {
+        Config.init();
+        predicate = StandardPredicate.get("ADMMTermStoreTest_Single", new ConstantType[]{ConstantType.UniqueStringID});
+    }
+
+    /**
+     * Atoms are looked up by their dense index, with a fallback for atoms whose index is missing or already taken.
+     */
+    @Test
+    public void testGlobalIds() {
+        ADMMTermStore termStore = new ADMMTermStore();
+
+        RandomVariableAtom a = makeAtom("A", 0);
+        RandomVariableAtom b = makeAtom("B", 5);
+        // Same index as A (like an atom from another database).
+        RandomVariableAtom c = makeAtom("C", 0);
+        // No index.
+        RandomVariableAtom d = makeAtom("D", -1);
+
+        assertEquals(-1, termStore.lookupGlobalId(a));
+
+        assertEquals(0, termStore.getGlobalId(a));
+        assertEquals(1, termStore.getGlobalId(b));
+        assertEquals(2, termStore.getGlobalId(c));
+        assertEquals(3, termStore.getGlobalId(d));
+
+        assertEquals(0, termStore.getGlobalId(a));
+        assertEquals(1, termStore.getGlobalId(b));
+        assertEquals(2, termStore.getGlobalId(c));
+        assertEquals(3, termStore.getGlobalId(d));
+        assertEquals(4, termStore.getNumGlobalVariables());
+
+        // Renumbering must keep every lookup in sync.
+        termStore.reorder(new int[0], new int[]{3, 2, 1, 0});
+        assertEquals(3, termStore.lookupGlobalId(a));
+        assertEquals(2, termStore.lookupGlobalId(b));
+        assertEquals(1, termStore.lookupGlobalId(c));
+        assertEquals(0, termStore.lookupGlobalId(d));
+
+        termStore.clear();
+        assertEquals(-1, termStore.lookupGlobalId(a));
+        assertEquals(-1, termStore.lookupGlobalId(c));
+        assertEquals(-1, termStore.lookupGlobalId(d));
+
+        assertEquals(0, termStore.getGlobalId(c));
+        assertEquals(1, termStore.getGlobalId(a));
+        assertEquals(0, termStore.lookupGlobalId(c));
+        assertEquals(1, termStore.lookupGlobalId(a));
+
+        termStore.close();
+    }
+
+    /**
+     * Equal atoms from different caches (databases) are different variables,
+     * even when all their indexes collide and they have to use the fallback.
+     */
+    @Test
+    public void testEqualAtomsFromDifferentCaches() {
+        ADMMTermStore termStore = new ADMMTermStore();
+
+        RandomVariableAtom[] atoms = new RandomVariableAtom[]{
+            makeAtom("Foo", 0),
+            makeAtom("Foo", 0),
+            makeAtom("Foo", 0),
+            makeAtom("Foo", -1),
+        };
+        assertEquals(atoms[0], atoms[2]);
+
+        for (int i = 0; i < atoms.length; i++) {
+            assertEquals(i, termStore.getGlobalId(atoms[i]));
+        }
+
+        for (int i = 0; i < atoms.length; i++) {
+            assertEquals(i, termStore.getGlobalId(atoms[i]));
+            assertEquals(i, termStore.lookupGlobalId(atoms[i]));
+        }
+
+        termStore.reorder(new int[0], new int[]{2, 3, 0, 1});
+        assertEquals(2, termStore.lookupGlobalId(atoms[0]));
+        assertEquals(3, termStore.lookupGlobalId(atoms[1]));
+        assertEquals(0, termStore.lookupGlobalId(atoms[2]));
+        assertEquals(1, termStore.lookupGlobalId(atoms[3]));
+
+        // An equal atom that was never registered is not found.
+        assertEquals(-1, termStore.lookupGlobalId(makeAtom("Foo", -1)));
+
+        termStore.close();
+    }
+
+    /**
+     * Adding a term (see TermStore.add()) copies it, into another store or the same one.
+     */
+    @Test
+    public void testAdd() {
+        RandomVariableAtom a = makeAtom("A", -1);
+        RandomVariableAtom b = makeAtom("B", -1);
+
+        FakeGroundRule rule = new FakeGroundRule(2.0);
+        TermBuffer buffer = new TermBuffer();
+        buffer.startTerm(0.5f);
+        buffer.addVariable(a, 1.0f);
+        buffer.addVariable(b, -2.0f);
+        buffer.finishTerm(rule, ADMMObjectiveTerm.TermType.SQUARED_HINGE_LOSS);
+
+        ADMMTermStore source = new ADMMTermStore();
+        source.addTerms(buffer);
+
+        ADMMTermStore target = new ADMMTermStore();
+        target.getGlobalId(b);
+
+        FakeGroundRule otherRule = new FakeGroundRule(3.0);
+        target.add(otherRule, source.get(0));
+        source.add(otherRule, source.get(0));
+
+        for (ADMMTermStore termStore : new ADMMTermStore[]{target, source}) {
+            int termIndex = termStore.size() - 1;
+            ADMMObjectiveTerm term = termStore.get(termIndex);
+
+            assertEquals(ADMMObjectiveTerm.TermType.SQUARED_HINGE_LOSS, term.getType());
+            assertTrue(term.getGroundRule() == otherRule);
+            assertEquals(3.0f, termStore.getTermWeights()[termIndex], 0.0f);
+            assertEquals(0.5f, termStore.getTermConstants()[termIndex], 0.0f);
+            assertEquals(2, term.size());
+
+            int offset = term.getLocalOffset();
+            assertEquals(termStore.lookupGlobalId(a), termStore.getLocalGlobalIds()[offset]);
+            assertEquals(termStore.lookupGlobalId(b), termStore.getLocalGlobalIds()[offset + 1]);
+            assertEquals(1.0f, termStore.getLocalCoefficients()[offset], 0.0f);
+            assertEquals(-2.0f, termStore.getLocalCoefficients()[offset + 1], 0.0f);
+        }
+
+        assertEquals(1, target.size());
+        assertEquals(1, target.lookupGlobalId(a));
+        assertEquals(2, source.size());
+        assertEquals(2, source.getNumGlobalVariables());
+
+        source.close();
+        target.close();
+    }
+
+    /**
+     * The same problem with its variables and terms added in a different order
+     * has the same canonical order (up to where things are in the store) and fingerprint.
+     */
+    @Test
+    public void testCanonicalOrder() {
+        String[] names = new String[]{"C", "A", "B"};
+        int[][] termVariables = new int[][]{{0, 1}, {2}, {1, 2}};
+        float[][] termCoefficients = new float[][]{{1.0f, -1.0f}, {2.0f}, {1.0f, 1.0f}};
+
+        ADMMTermStore forward = buildStore(names, termVariables, termCoefficients, new int[]{0, 1, 2}, new int[]{0, 1, 2});
+        ADMMTermStore backward = buildStore(names, termVariables, termCoefficients, new int[]{2, 1, 0}, new int[]{2, 1, 0});
+
+        CanonicalOrder forwardOrder = forward.getCanonicalOrder();
+        CanonicalOrder backwardOrder = backward.getCanonicalOrder();
+        assertEquals(forwardOrder.getFingerprint(), backwardOrder.getFingerprint());
+        assertEquals(forward.getFingerprint(), forwardOrder.getFingerprint());
+
+        assertEquals(names.length, forwardOrder.getNumVariables());
+        for (int i = 0; i < forwardOrder.getNumVariables(); i++) {
+            assertEquals(forward.getGlobalVariable(forwardOrder.getVariable(i)).toString(),
+                    backward.getGlobalVariable(backwardOrder.getVariable(i)).toString());
+        }
+
+        assertEquals(forward.getNumLocalVariables(), forwardOrder.getNumLocalVariables());
+        for (int i = 0; i < forwardOrder.getNumLocalVariables(); i++) {
+            int forwardLocal = forwardOrder.getLocalVariable(i);
+            int backwardLocal = backwardOrder.getLocalVariable(i);
+
+            assertEquals(forward.getGlobalVariable(forward.getLocalGlobalIds()[forwardLocal]).toString(),
+                    backward.getGlobalVariable(backward.getLocalGlobalIds()[backwardLocal]).toString());
+            assertEquals(forward.getLocalCoefficients()[forwardLocal], backward.getLocalCoefficients()[backwardLocal], 0.0f);
+        }
+
+        // A different problem has a different fingerprint.
+        termCoefficients[1][0] = 3.0f;
+        ADMMTermStore changed = buildStore(names, termVariables, termCoefficients, new int[]{0, 1, 2}, new int[]{0, 1, 2});
+        assertTrue(changed.getFingerprint() != forward.getFingerprint());
+
+        forward.close();
+        backward.close();
+        changed.close();
+    }
+
+    /**
+     * Looking up terms by ground rule has to follow additions and reorderings.
+     */
+    @Test
+    public void testRuleIndex() {
+        ADMMTermStore termStore = new ADMMTermStore();
+
+        FakeGroundRule ruleA = new FakeGroundRule(1.0);
+        FakeGroundRule ruleB = new FakeGroundRule(1.0);
+        FakeGroundRule ruleC = new FakeGroundRule(1.0);
+
+        ADMMTermStoreTestUtil.registerVariables(termStore, 4);
+        addTerm(termStore, ruleA, 0);
+        addTerm(termStore, ruleB, 1);
+        addTerm(termStore, ruleA, 2);
+
+        assertEquals(0, termStore.getFirstTermIndex(ruleA));
+        assertEquals(2, termStore.getNextTermIndex(0));
+        assertEquals(-1, termStore.getNextTermIndex(2));
+        assertEquals(1, termStore.getFirstTermIndex(ruleB));
+        assertEquals(-1, termStore.getNextTermIndex(1));
+        assertEquals(-1, termStore.getFirstTermIndex(ruleC));
+
+        // New terms must show up.
+        addTerm(termStore, ruleC, 3);
+        assertEquals(3, termStore.getFirstTermIndex(ruleC));
+
+        int count = 0;
+        for (ADMMObjectiveTerm term : termStore.getTerms(ruleA)) {
+            assertTrue(term.getGroundRule() == ruleA);
+            count++;
+        }
+        assertEquals(2, count);
+
+        termStore.clear();
+        assertEquals(-1, termStore.getFirstTermIndex(ruleA));
+
+        termStore.close();
+    }
+
+    /**
+     * Each term goes to the partition that owns most of its variables (ties go low),
+     * and the terms of a partition stay in their original order.
+     */
+    @Test
+    public void testPartitionTerms() {
+        ADMMTermStore termStore = new ADMMTermStore();
+        for (int i = 0; i < 4; i++) {
+            termStore.getGlobalId(makeAtom("P" + i, -1));
+        }
+
+        int[][] termVariables = new int[][]{{2, 3}, {0, 1}, {1, 2}, {3}, {0}};
+        FakeGroundRule[] rules = new FakeGroundRule[termVariables.length];
+        for (int i = 0; i < termVariables.length; i++) {
+            float[] coefficients = new float[termVariables[i].length];
+            Arrays.fill(coefficients, 1.0f);
+
+            rules[i] = new FakeGroundRule(1.0);
+            ADMMTermStoreTestUtil.addTerm(termStore, rules[i], ADMMObjectiveTerm.TermType.HINGE_LOSS,
+                    termVariables[i], coefficients, 0.0f);
+        }
+
+        int[] termOffsets = termStore.partitionTerms(new int[]{0, 2, 4});
+        assertArrayEquals(new int[]{0, 3, 5}, termOffsets);
+
+        int[] expectedOrder = new int[]{1, 2, 4, 0, 3};
+        for (int i = 0; i < expectedOrder.length; i++) {
+            assertTrue(termStore.getGroundRule(i) == rules[expectedOrder[i]]);
+        }
+
+        termStore.close();
+    }
+
+    /**
+     * Grouping only moves the terms in the range, and keeps the original order within a type and size.
+     */
+    @Test
+    public void testGroupTermTypes() {
+        ADMMTermStore termStore = new ADMMTermStore();
+        for (int i = 0; i < 3; i++) {
+            termStore.getGlobalId(makeAtom("G" + i, -1));
+        }
+
+        ADMMObjectiveTerm.TermType hinge = ADMMObjectiveTerm.TermType.HINGE_LOSS;
+        ADMMObjectiveTerm.TermType linear = ADMMObjectiveTerm.TermType.LINEAR_LOSS;
+
+        ADMMObjectiveTerm.TermType[] types = new ADMMObjectiveTerm.TermType[]{linear, linear, hinge, linear, hinge, hinge, linear};
+        int[] sizes = new int[]{1, 2, 2, 1, 1, 2, 1};
+
+        FakeGroundRule[] rules = new FakeGroundRule[types.length];
+        for (int i = 0; i < types.length; i++) {
+            rules[i] = new FakeGroundRule(1.0);
+            int[] variables = new int[sizes[i]];
+            float[] coefficients = new float[sizes[i]];
+            for (int j = 0; j < sizes[i]; j++) {
+                variables[j] = j;
+                coefficients[j] = 1.0f;
+            }
+
+            ADMMTermStoreTestUtil.addTerm(termStore, rules[i], types[i], variables, coefficients, 0.0f);
+        }
+
+        termStore.groupTermTypes(1, 6);
+
+        int[] expectedOrder = new int[]{0, 4, 2, 5, 3, 1, 6};
+        for (int i = 0; i < expectedOrder.length; i++) {
+            assertTrue(termStore.getGroundRule(i) == rules[expectedOrder[i]]);
+            assertEquals(types[expectedOrder[i]], termStore.getTermType(i));
+        }
+
+        termStore.close();
+    }
+
+    /**
+     * The batched kernels must do exactly what minimizing the terms one at a time does,
+     * and leave the terms they are told to skip alone.
+     */
+    @Test
+    public void testUpdateAndMinimize() {
+        ADMMObjectiveTerm.TermType[] types = new ADMMObjectiveTerm.TermType[]{
+            ADMMObjectiveTerm.TermType.HINGE_LOSS,
+            ADMMObjectiveTerm.TermType.LINEAR_LOSS,
+            ADMMObjectiveTerm.TermType.SQUARED_HINGE_LOSS,
+            ADMMObjectiveTerm.TermType.SQUARED_LINEAR_LOSS,
+            ADMMObjectiveTerm.TermType.EQUALITY_CONSTRAINT,
+            ADMMObjectiveTerm.TermType.SMALLER_THAN_CONSTRAINT,
+            ADMMObjectiveTerm.TermType.LARGER_THAN_CONSTRAINT
+        };
+
+        int numVariables = 5;
+        int numTerms = 200;
+        float stepSize = 0.7f;
+
+        ADMMTermStore single = new ADMMTermStore();
+        ADMMTermStore batched = new ADMMTermStore();
+        ADMMTermStore skipped = new ADMMTermStore();
+        for (int i = 0; i < numVariables; i++) {
+            RandomVariableAtom atom = makeAtom("M" + i, -1);
+            single.getGlobalId(atom);
+            batched.getGlobalId(atom);
+            skipped.getGlobalId(atom);
+        }
+
+        // Runs of mixed types and sizes (mostly two variable hinges).
+        Random random = new Random(4);
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            ADMMObjectiveTerm.TermType type = types[0];
+            int size = 2;
+            if (random.nextInt(3) == 0) {
+                type = types[random.nextInt(types.length)];
+                size = 1 + random.nextInt(numVariables);
+            }
+
+            int[] variables = new int[size];
+            float[] coefficients = new float[size];
+            for (int i = 0; i < size; i++) {
+                variables[i] = (i + termIndex) % numVariables;
+                coefficients[i] = (random.nextBoolean() ? 1.0f : -1.0f) * (0.5f + random.nextFloat());
+            }
+            float constant = random.nextFloat() - 0.5f;
+
+            FakeGroundRule rule = new FakeGroundRule(0.5 + random.nextDouble());
+            ADMMTermStoreTestUtil.addTerm(single, rule, type, variables, coefficients, constant);
+            ADMMTermStoreTestUtil.addTerm(batched, rule, type, variables, coefficients, constant);
+            ADMMTermStoreTestUtil.addTerm(skipped, rule, type, variables, coefficients, constant);
+        }
+
+        float[] consensus = new float[numVariables];
+        for (int i = 0; i < numVariables; i++) {
+            consensus[i] = random.nextFloat();
+        }
+
+        for (int i = 0; i < single.getNumLocalVariables(); i++) {
+            single.getLocalValues()[i] = random.nextFloat();
+            single.getLocalLagranges()[i] = random.nextFloat() - 0.5f;
+        }
+        System.arraycopy(single.getLocalValues(), 0, batched.getLocalValues(), 0, single.getNumLocalVariables());
+        System.arraycopy(single.getLocalLagranges(), 0, batched.getLocalLagranges(), 0, single.getNumLocalVariables());
+        System.arraycopy(single.getLocalValues(), 0, skipped.getLocalValues(), 0, single.getNumLocalVariables());
+        System.arraycopy(single.getLocalLagranges(), 0, skipped.getLocalLagranges(), 0, single.getNumLocalVariables());
+
+        float[] initialValues = Arrays.copyOf(single.getLocalValues(), single.getNumLocalVariables());
+        float[] initialLagranges = Arrays.copyOf(single.getLocalLagranges(), single.getNumLocalVariables());
+
+        boolean[] skip = new boolean[numTerms];
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            skip[termIndex] = random.nextInt(4) == 0;
+        }
+
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            single.updateLagrange(termIndex, stepSize, consensus);
+            single.minimize(termIndex, stepSize, consensus);
+        }
+
+        // Uneven blocks, so runs get cut.
+        batched.updateAndMinimize(0, 37, stepSize, consensus);
+        batched.updateAndMinimize(37, numTerms, stepSize, consensus);
+
+        int numLocals = single.getNumLocalVariables();
+        assertArrayEquals(Arrays.copyOf(single.getLocalValues(), numLocals), Arrays.copyOf(batched.getLocalValues(), numLocals), 0.0f);
+        assertArrayEquals(Arrays.copyOf(single.getLocalLagranges(), numLocals), Arrays.copyOf(batched.getLocalLagranges(), numLocals), 0.0f);
+
+        // Skipped terms are left alone, the rest are the same as without skipping.
+        skipped.updateAndMinimize(0, numTerms, stepSize, consensus, skip);
+        int[] termOffsets = skipped.getTermOffsets();
+        for (int termIndex = 0; termIndex < numTerms; termIndex++) {
+            float[] expectedValues = skip[termIndex] ? initialValues : single.getLocalValues();
+            float[] expectedLagranges = skip[termIndex] ? initialLagranges : single.getLocalLagranges();
+
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                assertEquals(expectedValues[i], skipped.getLocalValues()[i], 0.0f);
+                assertEquals(expectedLagranges[i], skipped.getLocalLagranges()[i], 0.0f);
+            }
+        }
+
+        single.close();
+        batched.close();
+        skipped.close();
+    }
+
+    /**
+     * Terms are built in per-thread buffers and merged afterwards.
+     * Make sure every term still matches its ground rule and that atoms shared between buffers
+     * were merged into the same global variable.
+     * This runs with however many threads the pool has (see Parallel.NUM_THREADS_KEY),
+     * run it with different counts to compare generation times (logged at debug).
+     */
+    @Test
+    public void testParallelGeneration() {
+        TestModel.ModelInformation info = TestModel.getModel();
+
+        Set<StandardPredicate> toClose = new HashSet<StandardPredicate>();
+        Database inferDB = info.dataStore.getDatabase(info.targetPartition, toClose, info.observationPartition);
+        MPEInference mpe = new MPEInference(info.model, inferDB);
+        ADMMTermStore termStore = (ADMMTermStore)mpe.getTermStore();
+
+        assertTrue(termStore.size() > 0);
+
+        int[] termOffsets = termStore.getTermOffsets();
+        int[] localGlobalIds = termStore.getLocalGlobalIds();
+        Set<GroundRule> seenRules = new HashSet<GroundRule>();
+
+        for (int termIndex = 0; termIndex < termStore.size(); termIndex++) {
+            GroundRule groundRule = termStore.getGroundRule(termIndex);
+            assertTrue(seenRules.add(groundRule));
+
+            Set<RandomVariableAtom> ruleAtoms = new HashSet<RandomVariableAtom>();
+            for (GroundAtom atom : groundRule.getAtoms()) {
+                if (atom instanceof RandomVariableAtom) {
+                    ruleAtoms.add((RandomVariableAtom)atom);
+                }
+            }
+
+            Set<RandomVariableAtom> termAtoms = new HashSet<RandomVariableAtom>();
+            for (int i = termOffsets[termIndex]; i < termOffsets[termIndex + 1]; i++) {
+                termAtoms.add(termStore.getGlobalVariable(localGlobalIds[i]));
+            }
+
+            assertEquals(ruleAtoms, termAtoms);
+        }
+
+        // Every atom is registered exactly once.
+        Set<RandomVariableAtom> atoms = new HashSet<RandomVariableAtom>(termStore.getGlobalVariables());
+        assertEquals(termStore.getNumGlobalVariables(), atoms.size());
+
+        mpe.close();
+        inferDB.close();
+    }
+
+    private void addTerm(ADMMTermStore termStore, GroundRule rule, int variable) {
+        ADMMTermStoreTestUtil.addTerm(termStore, rule, ADMMObjectiveTerm.TermType.HINGE_LOSS, new int[]{variable}, new float[]{1.0f}, 0.0f);
+    }
+
+    /**
+     * Build a store of hinge terms, registering the variables and adding the terms in the given orders.
+     */
+    private ADMMTermStore buildStore(String[] names, int[][] termVariables, float[][] termCoefficients,
+            int[] variableOrder, int[] termOrder) {
+        ADMMTermStore termStore = new ADMMTermStore();
+
+        RandomVariableAtom[] atoms = new RandomVariableAtom[names.length];
+        for (int variable : variableOrder) {
+            atoms[variable] = makeAtom(names[variable], -1);
+            termStore.getGlobalId(atoms[variable]);
+        }
+
+        for (int term : termOrder) {
+            int[] variables = new int[termVariables[term].length];
+            for (int i = 0; i < variables.length; i++) {
+                variables[i] = termStore.lookupGlobalId(atoms[termVariables[term][i]]);
+            }
+
+            ADMMTermStoreTestUtil.addTerm(termStore, new FakeGroundRule(1.0), ADMMObjectiveTerm.TermType.HINGE_LOSS,
+                    variables, termCoefficients[term], 0.0f);
+        }
+
+        return termStore;
+    }
+
+    private RandomVariableAtom makeAtom(String name, int index) {
+        return new RandomVariableAtom(predicate, new Constant[]{new UniqueStringID(name)}, 0.0f, index);
+    }
+}
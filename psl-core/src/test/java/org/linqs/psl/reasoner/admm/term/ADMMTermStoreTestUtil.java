@@ -0,0 +1,61 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.reasoner.admm.term;
+
+import org.linqs.psl.model.atom.RandomVariableAtom;
+import org.linqs.psl.model.predicate.StandardPredicate;
+import org.linqs.psl.model.rule.GroundRule;
+import org.linqs.psl.model.term.Constant;
+import org.linqs.psl.model.term.ConstantType;
+import org.linqs.psl.model.term.UniqueStringID;
+
+/**
+ * Build ADMM terms directly (without grounding) for tests.
+ */
+public class ADMMTermStoreTestUtil {
+    private static final String PREDICATE_NAME = "ADMMTermStoreTestUtil_Variable";
+
+    /**
+     * Register new atoms (without an index) until the store has at least the given number of global variables.
+     */
+    public static void registerVariables(ADMMTermStore termStore, int count) {
+        StandardPredicate predicate = StandardPredicate.get(PREDICATE_NAME, new ConstantType[]{ConstantType.UniqueStringID});
+        while (termStore.getNumGlobalVariables() < count) {
+            String name = "V" + termStore.getNumGlobalVariables();
+            termStore.getGlobalId(new RandomVariableAtom(predicate, new Constant[]{new UniqueStringID(name)}, 0.0f, -1));
+        }
+    }
+
+    /**
+     * Add a term over global variables that are already registered in the store (see registerVariables()).
+     * @return the index of the new term.
+     */
+    public static int addTerm(ADMMTermStore termStore, GroundRule groundRule, ADMMObjectiveTerm.TermType type,
+            int[] variables, float[] coefficients, float constant) {
+        TermBuffer buffer = new TermBuffer();
+        buffer.startTerm(constant);
+        for (int i = 0; i < variables.length; i++) {
+            buffer.addVariable(termStore.getGlobalVariable(variables[i]), coefficients[i]);
+        }
+        buffer.finishTerm(groundRule, type);
+
+        int termIndex = termStore.size();
+        termStore.addTerms(buffer);
+        return termIndex;
+    }
+}
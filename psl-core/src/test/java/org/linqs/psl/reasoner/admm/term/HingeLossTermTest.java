@@ -91,18 +91,24 @@ public class HingeLossTermTest {
 
     private void testProblem(float[] z, float[] y, float[] coeffs, float constant,
             float weight, final float stepSize, float[] expected) {
-        LocalVariable[] variables = new LocalVariable[z.length];
+        ADMMTermStore termStore = new ADMMTermStore();
+        int[] variables = new int[z.length];
 
         for (int i = 0; i < z.length; i++) {
-            variables[i] = new LocalVariable(i, z[i]);
-            variables[i].setLagrange(y[i]);
+            variables[i] = i;
+        }
+
+        ADMMTermStoreTestUtil.registerVariables(termStore, z.length);
+        int termIndex = ADMMTermStoreTestUtil.addTerm(termStore, new FakeGroundRule(weight), ADMMObjectiveTerm.TermType.HINGE_LOSS, variables, coeffs, constant);
+        ADMMObjectiveTerm term = termStore.get(termIndex);
+        for (int i = 0; i < z.length; i++) {
+            termStore.getLocalLagranges()[term.getLocalOffset() + i] = y[i];
         }
 
-        HingeLossTerm term = new HingeLossTerm(new FakeGroundRule(weight), new Hyperplane(variables, coeffs, constant, z.length));
         term.minimize(stepSize, z);
 
         for (int i = 0; i < z.length; i++) {
-            assertEquals(expected[i], variables[i].getValue(), 5e-5);
+            assertEquals(expected[i], termStore.getLocalValues()[term.getLocalOffset() + i], 5e-5);
         }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class IndexedIntSetTest {
+    @Test
+    public void testAddRemove() {
+        IndexedIntSet set = new IndexedIntSet(10);
+        assertTrue(set.isEmpty());
+
+        assertTrue(set.add(3));
+        assertTrue(set.add(7));
+        assertTrue(set.add(0));
+        assertFalse(set.add(7));
+        assertEquals(3, set.size());
+
+        assertTrue(set.remove(3));
+        assertFalse(set.remove(3));
+        assertFalse(set.remove(5));
+        assertEquals(2, set.size());
+
+        assertFalse(set.contains(3));
+        assertTrue(set.contains(7));
+        assertTrue(set.contains(0));
+
+        // The last member is moved into the removed member's place.
+        assertEquals(0, set.get(0));
+        assertEquals(7, set.get(1));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(7));
+        assertTrue(set.add(7));
+    }
+
+    /**
+     * Follow a random sequence of adds and removes with a HashSet.
+     */
+    @Test
+    public void testAgainstHashSet() {
+        int capacity = 50;
+        IndexedIntSet set = new IndexedIntSet(capacity);
+        Set<Integer> expected = new HashSet<Integer>();
+
+        Random random = new Random(4);
+        for (int i = 0; i < 5000; i++) {
+            int value = random.nextInt(capacity);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(value), set.add(value));
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+
+            assertEquals(expected.size(), set.size());
+        }
+
+        Set<Integer> members = new HashSet<Integer>();
+        for (int i = 0; i < set.size(); i++) {
+            members.add(set.get(i));
+        }
+        assertEquals(expected, members);
+
+        for (int value = 0; value < capacity; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(expected.contains(set.selectAtRandom()));
+        }
+    }
+}